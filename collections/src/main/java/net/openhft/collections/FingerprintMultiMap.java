@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+
+/**
+ * An index which keeps as many bits of the hash as the positions leave room for, so a key is only read and
+ * compared when its fingerprint matches, rather than on every collision of a 32-bit hash.
+ * <p/>
+ * Each 8-byte entry holds the fingerprint in the high bits and the position + 1 in the low bits, so an unset
+ * entry is 0.  Removing an entry moves back any entries after it which would no longer be found.
+ */
+class FingerprintMultiMap implements HashPosMultiMap {
+    private static final int ENTRY_SIZE = 8;
+    private static final long UNSET_ENTRY = 0;
+    private static final int UNSET_VALUE = Integer.MIN_VALUE;
+
+    private final int capacity;
+    private final int capacityMask;
+    private final int posBits;
+    private final long posMask;
+    private final long fingerprintMask;
+    private final Bytes bytes;
+
+    /**
+     * @param maxPositions one more than the largest position which will be added.
+     */
+    public FingerprintMultiMap(int minCapacity, int maxPositions) {
+        this(new DirectStore(null, Maths.nextPower2(minCapacity, 16) * ENTRY_SIZE, false).createSlice(), maxPositions);
+        clear();
+    }
+
+    public FingerprintMultiMap(Bytes bytes, int maxPositions) {
+        if (maxPositions < 1)
+            throw new IllegalArgumentException();
+        capacity = (int) (bytes.capacity() / ENTRY_SIZE);
+        assert capacity == Maths.nextPower2(capacity, 16);
+        capacityMask = capacity - 1;
+        posBits = 64 - Long.numberOfLeadingZeros(maxPositions);
+        posMask = (1L << posBits) - 1;
+        fingerprintMask = -1L >>> posBits;
+        this.bytes = bytes;
+    }
+
+    private long entryPos(long fingerprint) {
+        return ((int) fingerprint & capacityMask) * (long) ENTRY_SIZE;
+    }
+
+    private long nextEntryPos(long pos) {
+        return (pos + ENTRY_SIZE) & (capacityMask * (long) ENTRY_SIZE);
+    }
+
+    private long entryFor(long fingerprint, int pos) {
+        return (fingerprint << posBits) | (pos + 1);
+    }
+
+    @Override
+    public void put(long hash, int pos) {
+        long fingerprint = hash & fingerprintMask;
+        long entry = entryFor(fingerprint, pos);
+        long offset = entryPos(fingerprint);
+        for (int i = 0; i < capacity; i++) {
+            long entry2 = bytes.readLong(offset);
+            if (entry2 == UNSET_ENTRY) {
+                bytes.writeLong(offset, entry);
+                return;
+            }
+            if (entry2 == entry)
+                return;
+            offset = nextEntryPos(offset);
+        }
+        throw new IllegalStateException("FingerprintMultiMap is full");
+    }
+
+    @Override
+    public boolean remove(long hash, int pos) {
+        long fingerprint = hash & fingerprintMask;
+        long entry = entryFor(fingerprint, pos);
+        long hole = entryPos(fingerprint);
+        for (int i = 0; ; i++) {
+            if (i == capacity)
+                return false;
+            long entry2 = bytes.readLong(hole);
+            if (entry2 == UNSET_ENTRY)
+                return false;
+            if (entry2 == entry)
+                break;
+            hole = nextEntryPos(hole);
+        }
+        long offsetMask = capacityMask * (long) ENTRY_SIZE;
+        long offset = nextEntryPos(hole);
+        for (int i = 1; i < capacity; i++, offset = nextEntryPos(offset)) {
+            long entry2 = bytes.readLong(offset);
+            if (entry2 == UNSET_ENTRY)
+                break;
+            long ideal = entryPos(entry2 >>> posBits);
+            // move it if the hole is between where it should be and where it is.
+            if (((offset - ideal) & offsetMask) >= ((offset - hole) & offsetMask)) {
+                bytes.writeLong(hole, entry2);
+                hole = offset;
+            }
+        }
+        bytes.writeLong(hole, UNSET_ENTRY);
+        return true;
+    }
+
+    /////////////////////
+    // Stateful methods
+
+    private long searchFingerprint = -1;
+    private long searchPos = -1;
+
+    @Override
+    public long startSearch(long hash) {
+        searchFingerprint = hash & fingerprintMask;
+        searchPos = entryPos(searchFingerprint);
+        return searchFingerprint;
+    }
+
+    @Override
+    public int nextPos() {
+        for (int i = 0; i < capacity; i++) {
+            long entry = bytes.readLong(searchPos);
+            if (entry == UNSET_ENTRY)
+                return UNSET_VALUE;
+            searchPos = nextEntryPos(searchPos);
+            if (entry >>> posBits == searchFingerprint)
+                return (int) (entry & posMask) - 1;
+        }
+        return UNSET_VALUE;
+    }
+
+    @Override
+    public long nextPos(long hash, long searchState) {
+        long fingerprint = hash & fingerprintMask;
+        // the high 32 bits are the number of entries already probed.
+        int probed = (int) (searchState >>> 32);
+        long pos = entryPos(fingerprint + probed);
+        for (; probed < capacity; probed++) {
+            long entry = bytes.readLong(pos);
+            if (entry == UNSET_ENTRY)
+                return UNSET_VALUE;
+            pos = nextEntryPos(pos);
+            if (entry >>> posBits == fingerprint)
+                return ((long) (probed + 1) << 32) | ((entry & posMask) - 1);
+        }
+        return UNSET_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ ");
+        for (long pos = 0; pos < capacity * (long) ENTRY_SIZE; pos += ENTRY_SIZE) {
+            long entry = bytes.readLong(pos);
+            if (entry != UNSET_ENTRY)
+                sb.append(entry >>> posBits).append('=').append((entry & posMask) - 1).append(", ");
+        }
+        if (sb.length() > 2) {
+            sb.setLength(sb.length() - 2);
+            return sb.append(" }").toString();
+        }
+        return "{ }";
+    }
+
+    @Override
+    public void clear() {
+        bytes.zeroOut();
+    }
+}
@@ -1,5 +1,10 @@
 package net.openhft.collections;
 
+/**
+ * The index of a segment, from the hash of a key to the positions of the entries which may hold it.
+ * <p/>
+ * An implementation may keep only some of the bits of the hash, so the key of each position found must be checked.
+ */
 interface HashPosMultiMap {
 
     /**
@@ -8,7 +13,7 @@ interface HashPosMultiMap {
      * @param hash   to add
      * @param pos to add
      */
-    void put(int hash, int pos);
+    void put(long hash, int pos);
 
     /**
      * Remove a hash/pos pair.
@@ -17,22 +22,27 @@ interface HashPosMultiMap {
      * @param pos to remove
      * @return whether a match was found.
      */
-    boolean remove(int hash, int pos);
+    boolean remove(long hash, int pos);
 
     /**
      * @return normalized hash value, better to be used in subsequent calls
      */
-    int startSearch(int hash);
+    long startSearch(long hash);
 
     /**
-     * @return normalized hash value, better to be used in subsequent calls
+     * @return the next position for the last search or negative value
      */
-    int startSearch(long hash);
+    int nextPos();
 
     /**
-     * @return the next position for the last search or negative value
+     * A search which doesn't use the state kept by startSearch() and nextPos(), for readers which don't hold the
+     * segment lock.  Starting with a searchState of 0, pass back the previous result until it is negative.
+     *
+     * @param hash        to search for
+     * @param searchState 0 to start a search, otherwise the previous value returned.
+     * @return the position found in the low 32 bits with the state for the next call, or a negative value if there are no more
      */
-    int nextPos();
+    long nextPos(long hash, long searchState);
 
     void clear();
 }
@@ -244,9 +244,16 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
             sbKey = csKey ? new StringBuilder() : null;
         }
 
+        /**
+         * @return the 32 bits of the hash kept by the IntIntMultiMap.
+         */
+        private static long fold(long hash) {
+            return (int) ((hash >> 32) ^ hash);
+        }
+
         synchronized void put(long hash, K key, V value, boolean ifPresent, boolean ifAbsent) {
             // search for the previous entry
-            int h = smallMap.startSearch(hash);
+            int h = (int) smallMap.startSearch(fold(hash));
             boolean foundSmall = false, foundLarge = false;
             while (true) {
                 int pos = smallMap.nextPos();
@@ -329,7 +336,7 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         }
 
         synchronized V get(long hash, K key, V value) {
-            smallMap.startSearch(hash);
+            smallMap.startSearch(fold(hash));
             while (true) {
                 int pos = smallMap.nextPos();
                 if (pos < 0) {
@@ -381,7 +388,7 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         }
 
         synchronized boolean containsKey(long hash, K key) {
-            smallMap.startSearch(hash);
+            smallMap.startSearch(fold(hash));
             while (true) {
                 int pos = smallMap.nextPos();
                 if (pos < 0) {
@@ -397,7 +404,7 @@ public class HugeHashMap<K, V> extends AbstractMap<K, V> implements HugeMap<K, V
         }
 
         synchronized boolean remove(long hash, K key) {
-            int h = smallMap.startSearch(hash);
+            int h = (int) smallMap.startSearch(fold(hash));
             boolean found = false;
             while (true) {
                 int pos = smallMap.nextPos();
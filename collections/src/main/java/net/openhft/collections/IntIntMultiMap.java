@@ -22,6 +22,8 @@ import net.openhft.lang.io.DirectStore;
 
 /**
  * Supports a simple interface for int -> int[] off heap.
+ * <p/>
+ * Only the low 32 bits of a hash are kept, the index format of maps created before FingerprintMultiMap.
  */
 class IntIntMultiMap implements HashPosMultiMap {
     private static final int ENTRY_SIZE = 8;
@@ -66,7 +68,11 @@ class IntIntMultiMap implements HashPosMultiMap {
     }
 
     @Override
-    public void put(int hash, int value) {
+    public void put(long hash, int value) {
+        put((int) hash, value);
+    }
+
+    private void put(int hash, int value) {
         if (hash == UNSET_KEY)
             hash = HASH_INSTEAD_OF_UNSET_KEY;
         int pos = (hash & capacityMask) << 3; // 8 bytes per entry
@@ -88,7 +94,11 @@ class IntIntMultiMap implements HashPosMultiMap {
     }
 
     @Override
-    public boolean remove(int hash, int value) {
+    public boolean remove(long hash, int value) {
+        return remove((int) hash, value);
+    }
+
+    private boolean remove(int hash, int value) {
         if (hash == UNSET_KEY)
             hash = HASH_INSTEAD_OF_UNSET_KEY;
         int pos = (hash & capacityMask) << 3; // 8 bytes per entry
@@ -154,7 +164,11 @@ class IntIntMultiMap implements HashPosMultiMap {
     private int searchPos = -1;
 
     @Override
-    public int startSearch(int hash) {
+    public long startSearch(long hash) {
+        return startSearch((int) hash);
+    }
+
+    private int startSearch(int hash) {
         if (hash == UNSET_KEY)
             hash = HASH_INSTEAD_OF_UNSET_KEY;
 
@@ -162,11 +176,6 @@ class IntIntMultiMap implements HashPosMultiMap {
         return searchHash = hash;
     }
 
-    @Override
-    public int startSearch(long hash) {
-        return startSearch((int) ((hash >> 32) ^ hash));
-    }
-
     @Override
     public int nextPos() {
         for (int i = 0; i < capacity; i++) {
@@ -182,6 +191,26 @@ class IntIntMultiMap implements HashPosMultiMap {
         return UNSET_VALUE;
     }
 
+    @Override
+    public long nextPos(long hash64, long searchState) {
+        int hash = (int) hash64;
+        if (hash == UNSET_KEY)
+            hash = HASH_INSTEAD_OF_UNSET_KEY;
+        // the high 32 bits are the number of entries already probed.
+        int probed = (int) (searchState >>> 32);
+        int pos = ((hash + probed) & capacityMask) << 3; // 8 bytes per entry
+        for (; probed < capacity; probed++) {
+            long entry = bytes.readLong(pos);
+            int hash2 = (int) (entry >> 32);
+            if (hash2 == UNSET_KEY)
+                return UNSET_VALUE;
+            pos = (pos + ENTRY_SIZE) & capacityMask2;
+            if (hash2 == hash)
+                return ((long) (probed + 1) << 32) | (entry & 0xFFFFFFFFL);
+        }
+        return UNSET_VALUE;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
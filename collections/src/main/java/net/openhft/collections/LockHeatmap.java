@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Prints a heatmap of the time spent waiting for each segment's lock, and the segments waited for longest,
+ * from the statistics of a map created with lockStatistics(true).
+ * <p/>
+ * Usage: java net.openhft.collections.LockHeatmap {map file}
+ */
+public class LockHeatmap {
+    static final String SHADES = " .:-=+*#%@";
+    static final int PER_LINE = 64;
+    static final int TOP_SEGMENTS = 10;
+
+    public static void main(String... args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java " + LockHeatmap.class.getName() + " {map file}");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        if (!file.exists())
+            throw new IOException("No such file " + file);
+        SharedHashMap<Object, Object> map = new SharedHashMapBuilder()
+                .create(file, Object.class, Object.class);
+        try {
+            System.out.print(heatmap(map.lockStatistics()));
+        } finally {
+            map.close();
+        }
+    }
+
+    /**
+     * @return a line of shades per 64 segments, darker for more time spent waiting, then the segments waited for longest.
+     */
+    public static String heatmap(List<SegmentLockStatistics> statistics) {
+        long maxWait = 0;
+        for (SegmentLockStatistics s : statistics)
+            maxWait = Math.max(maxWait, s.waitNanos());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < statistics.size(); i++) {
+            long wait = statistics.get(i).waitNanos();
+            int shade = wait == 0 ? 0 : 1 + (int) ((SHADES.length() - 2) * wait / maxWait);
+            sb.append(SHADES.charAt(shade));
+            if (i % PER_LINE == PER_LINE - 1 || i == statistics.size() - 1)
+                sb.append('\n');
+        }
+        List<SegmentLockStatistics> sorted = new ArrayList<SegmentLockStatistics>(statistics);
+        Collections.sort(sorted, new Comparator<SegmentLockStatistics>() {
+            @Override
+            public int compare(SegmentLockStatistics s1, SegmentLockStatistics s2) {
+                return s1.waitNanos() < s2.waitNanos() ? 1 : s1.waitNanos() > s2.waitNanos() ? -1 : 0;
+            }
+        });
+        for (int i = 0; i < TOP_SEGMENTS && i < sorted.size(); i++) {
+            if (sorted.get(i).waitNanos() == 0)
+                break;
+            sb.append(sorted.get(i)).append('\n');
+        }
+        return sb.toString();
+    }
+}
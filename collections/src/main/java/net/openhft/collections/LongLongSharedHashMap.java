@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import java.io.Closeable;
+
+/**
+ * A shared map of long keys to long values, such as counters, which reads and writes the mapped memory directly.
+ * <p/>
+ * An absent key reads as 0, so a counter can be incremented without first being added.
+ */
+public interface LongLongSharedHashMap extends Closeable {
+    /**
+     * @return the value for the key, or 0 if absent.
+     */
+    long get(long key);
+
+    boolean containsKey(long key);
+
+    /**
+     * @return the previous value, or 0 if absent.
+     */
+    long put(long key, long value);
+
+    /**
+     * Add to the value for a key, adding the key with a value of delta if absent.
+     *
+     * @return the new value.
+     */
+    long addAndGet(long key, long delta);
+
+    /**
+     * Set the value if the current value, or 0 if absent, is the expected value.
+     *
+     * @return whether the value was set.
+     */
+    boolean compareAndSwap(long key, long expected, long value);
+
+    /**
+     * @return the value removed, or 0 if absent.
+     */
+    long remove(long key);
+
+    /**
+     * @return the number of entries, from counters kept in each segment.
+     */
+    long longSize();
+
+    void clear();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Identifies the process holding a lock, so a lock held by a process which has died can be recovered at once
+ * rather than after the lock time out.
+ * <p/>
+ * Liveness is checked with /proc, so on other platforms every process is assumed to be alive.
+ * Processes sharing a map must also share a pid namespace, e.g. not be in different containers.
+ */
+final class ProcessIds {
+    /**
+     * The id of this process, or 0 if unknown.
+     */
+    static final int PROCESS_ID = processId();
+    private static final boolean PROC_AVAILABLE = new File("/proc/self").exists();
+
+    private ProcessIds() {
+    }
+
+    private static int processId() {
+        // the name is pid@host on the common JVMs.
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true only if the process is known to have died.  A pid reused by a new process is seen as alive.
+     */
+    static boolean isDead(int pid) {
+        return pid > 0 && pid != PROCESS_ID && PROC_AVAILABLE && PROCESS_ID != 0
+                && !new File("/proc/" + pid).exists();
+    }
+}
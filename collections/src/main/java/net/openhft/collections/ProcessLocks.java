@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.NativeBytes;
+
+import java.util.logging.Logger;
+
+/**
+ * The locking shared by the maps' segments: an int lock with the id of the process holding it alongside, so a
+ * lock held by a process which has died is released at once rather than after the lock time out.
+ */
+final class ProcessLocks {
+    private static final Logger LOGGER = Logger.getLogger(ProcessLocks.class.getName());
+
+    private ProcessLocks() {
+    }
+
+    /**
+     * Try to obtain a lock which is held, waiting for up to the time out unless the holder has died.  On success
+     * the caller should record {@link ProcessIds#PROCESS_ID} at processOffset.
+     *
+     * @param name describes the lock when logging.
+     * @return whether the lock was obtained.
+     */
+    static boolean tryLockContended(NativeBytes bytes, long lockOffset, long processOffset,
+                                    long lockTimeOutNS, String name) {
+        if (releaseIfHolderDied(bytes, lockOffset, processOffset, name) && bytes.tryLockInt(lockOffset))
+            return true;
+        return bytes.tryLockNanosInt(lockOffset, lockTimeOutNS);
+    }
+
+    /**
+     * Called when a lock without a process id couldn't be obtained within the time out.  Unless the thread was
+     * interrupted, the error listener is told and the lock is reset so the caller can try again.
+     *
+     * @throws IllegalStateException if the thread was interrupted, or the error listener throws it.
+     */
+    static void lockTimedOut(NativeBytes bytes, long lockOffset, SharedMapErrorListener errorListener)
+            throws IllegalStateException {
+        lockTimedOut(bytes, lockOffset, -1, errorListener);
+    }
+
+    /**
+     * Called when a lock couldn't be obtained within the time out.  Unless the thread was interrupted, the error
+     * listener is told and the lock is reset so the caller can try again.
+     *
+     * @param processOffset of the id of the process holding the lock, or -1 if there isn't one.
+     * @throws IllegalStateException if the thread was interrupted, or the error listener throws it.
+     */
+    static void lockTimedOut(NativeBytes bytes, long lockOffset, long processOffset,
+                             SharedMapErrorListener errorListener) throws IllegalStateException {
+        if (Thread.currentThread().isInterrupted())
+            throw new IllegalStateException(new InterruptedException("Unable to obtain lock, interrupted"));
+        errorListener.onLockTimeout(bytes.threadIdForLockInt(lockOffset));
+        // as in releaseIfHolderDied, the process first, so the process which held it isn't taken to hold the lock
+        // of the next holder, which could then be released if that process has died.
+        if (processOffset >= 0)
+            bytes.writeOrderedInt(processOffset, 0);
+        bytes.resetLockInt(lockOffset);
+    }
+
+    /**
+     * Release the lock if the process holding it has died, rather than waiting for the lock time out.
+     *
+     * @return whether the lock was released.
+     */
+    static boolean releaseIfHolderDied(NativeBytes bytes, long lockOffset, long processOffset, String name) {
+        int lockWord = bytes.readVolatileInt(lockOffset);
+        int pid = bytes.readVolatileInt(processOffset);
+        if (lockWord == 0 || !ProcessIds.isDead(pid))
+            return false;
+        // clear the process first so only one process recovers it, and a process acquiring it after this
+        // can't be mistaken for the one which died.
+        if (!bytes.compareAndSwapInt(processOffset, pid, 0) || !bytes.compareAndSwapInt(lockOffset, lockWord, 0))
+            return false;
+        LOGGER.warning("Released the lock of " + name + " held by process " + pid
+                + " thread " + (lockWord & 0xFFFFFF) + " which has died");
+        return true;
+    }
+}
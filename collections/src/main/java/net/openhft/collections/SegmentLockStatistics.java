@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * The lock statistics of one segment, recorded by every process using the map since it was created.
+ */
+public class SegmentLockStatistics {
+    private final int segment;
+    private final long acquired;
+    private final long contended;
+    private final long waitNanos;
+    private final long holdNanos;
+    private final long maxWaitNanos;
+    private final long maxHoldNanos;
+    private final int maxHoldProcess;
+    private final int maxHoldThread;
+    private final int timeouts;
+
+    public SegmentLockStatistics(int segment, long acquired, long contended, long waitNanos, long holdNanos,
+                                 long maxWaitNanos, long maxHoldNanos, int maxHoldProcess, int maxHoldThread,
+                                 int timeouts) {
+        this.segment = segment;
+        this.acquired = acquired;
+        this.contended = contended;
+        this.waitNanos = waitNanos;
+        this.holdNanos = holdNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.maxHoldNanos = maxHoldNanos;
+        this.maxHoldProcess = maxHoldProcess;
+        this.maxHoldThread = maxHoldThread;
+        this.timeouts = timeouts;
+    }
+
+    public int segment() {
+        return segment;
+    }
+
+    /**
+     * @return the number of times the lock was acquired.
+     */
+    public long acquired() {
+        return acquired;
+    }
+
+    /**
+     * @return the number of times the lock was held by another thread when it was acquired.
+     */
+    public long contended() {
+        return contended;
+    }
+
+    /**
+     * @return the total time spent waiting for the lock.
+     */
+    public long waitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * @return the total time the lock was held.
+     */
+    public long holdNanos() {
+        return holdNanos;
+    }
+
+    public long maxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    public long maxHoldNanos() {
+        return maxHoldNanos;
+    }
+
+    /**
+     * @return the process which held the lock for maxHoldNanos, or 0 if unknown.
+     */
+    public int maxHoldProcess() {
+        return maxHoldProcess;
+    }
+
+    /**
+     * @return the id of the thread which held the lock for maxHoldNanos.
+     */
+    public int maxHoldThread() {
+        return maxHoldThread;
+    }
+
+    /**
+     * @return the number of times the lock was taken from a holder after lockTimeOutMS.
+     */
+    public int timeouts() {
+        return timeouts;
+    }
+
+    @Override
+    public String toString() {
+        return "segment " + segment + " acquired " + acquired + " contended " + contended
+                + " wait/max " + waitNanos / 1000 + "/" + maxWaitNanos / 1000 + " us"
+                + " hold/max " + holdNanos / 1000 + "/" + maxHoldNanos / 1000 + " us"
+                + " longest held by " + maxHoldProcess + "/" + maxHoldThread
+                + " timeouts " + timeouts;
+    }
+}
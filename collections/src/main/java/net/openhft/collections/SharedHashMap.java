@@ -17,7 +17,12 @@
 package net.openhft.collections;
 
 import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 public interface SharedHashMap<K, V> extends ConcurrentMap<K, V>, Closeable {
     /**
@@ -37,4 +42,131 @@ public interface SharedHashMap<K, V> extends ConcurrentMap<K, V>, Closeable {
      * @return value created or found.
      */
     V acquireUsing(K key, V value);
+
+    /**
+     * The version of the segment holding a key, which changes each time an entry in that segment is changed by
+     * any process, so it can change without this key changing.
+     *
+     * @param key to get the version of.
+     * @return the version, even unless a change is in progress.
+     * @throws IllegalArgumentException if the key is null or not of the map's key type.
+     */
+    long version(K key);
+
+    /**
+     * Wait for a change to the segment holding a key, made by any process, spinning briefly before parking.
+     * Entries can be changed in the meantime, so the caller reads the key again to see whether it has changed.
+     *
+     * @param key         to wait for.
+     * @param lastVersion the version when the key was last read.
+     * @param timeout     to wait for a change
+     * @return the new version, or lastVersion if there was no change before the timeout.
+     * @throws InterruptedException     if the thread is interrupted while waiting.
+     * @throws IllegalArgumentException if the key is null or not of the map's key type.
+     */
+    long awaitChange(K key, long lastVersion, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * The number of entries, from counters kept in each segment, so this doesn't scan the map.
+     * <p/>
+     * As segments are read in turn while other threads or processes may be changing them,
+     * this is only a snapshot if the map is not being modified.
+     *
+     * @return the number of entries, which can be more than Integer.MAX_VALUE
+     */
+    long longSize();
+
+    /**
+     * Look up a batch of keys, taking the lock of each segment once for all the keys in it.
+     *
+     * @param keys   to look up
+     * @param values the values found, reusing the objects already there where possible, or null if absent.
+     */
+    void getAll(K[] keys, V[] values);
+
+    /**
+     * Compute a new value for the key while its segment is locked.  When V is Byteable, the value passed to the
+     * function is a view of the entry which can be updated in place and returned, avoiding any copy.
+     *
+     * @param using    the object to read the current value into, or null to create one.
+     * @param function given the current value, or null if absent, returns the new value, or null to remove it.
+     * @return the new value, or null if there is none.
+     */
+    V compute(K key, V using, SharedMapFunction<? super K, V> function);
+
+    /**
+     * As compute, but only if the key is present.
+     */
+    V computeIfPresent(K key, V using, SharedMapFunction<? super K, V> function);
+
+    /**
+     * Put the value if the key is absent, otherwise merge it with the current value while the segment is locked.
+     *
+     * @param using    the object to read the current value into, or null to create one.
+     * @param function given the current value and value, returns the new value, or null to remove it.
+     * @return the new value, or null if there is none.
+     */
+    V merge(K key, V value, V using, SharedMapMergeFunction<V> function);
+
+    /**
+     * Double the number of segments, extending the file, while the map remains in use by this and other processes.
+     * <p/>
+     * Each segment is split in turn, locking only it and the segment it is split into.
+     * If a process dies part way through, the next call to grow() completes the split.
+     *
+     * @throws IOException if the file could not be extended.
+     */
+    void grow() throws IOException;
+
+    /**
+     * Copy the map to a file which can be opened with a SharedHashMapBuilder, while it remains in use.
+     * <p/>
+     * Each segment is copied while only it is locked, so the copy is consistent for each segment, but changes to
+     * different segments while the copy is made may or may not be included.  A transaction which changes several
+     * segments may appear only in part.
+     * The map can't grow until the copy is complete.
+     *
+     * @param file to copy to, replaced if it exists.
+     * @throws IOException if the file could not be written.
+     */
+    void snapshot(File file) throws IOException;
+
+    /**
+     * Remove the entries which have expired, locking each segment for a chunk of entries at a time.
+     * This is called by a background thread every expirySweepIntervalMS unless that is 0.
+     *
+     * @return the number of entries removed.
+     * @throws UnsupportedOperationException if the map was not created with an entryTimeToLive
+     */
+    long removeExpired();
+
+    /**
+     * @return a reader of the changes made to the map by any process, from now on.
+     * @throws UnsupportedOperationException if the map was not created with a journalCapacity
+     */
+    SharedMapJournalReader journalReader();
+
+    /**
+     * Find the entries with a field, using the secondary index added to the builder with this name, locking each
+     * segment in turn.
+     *
+     * @param index the name of the index
+     * @param field as returned by the index's SharedMapFieldExtractor
+     * @return a copy of the entries found.
+     * @throws IllegalArgumentException if there is no index with this name.
+     * @throws UnsupportedOperationException if the map was opened read only, as this takes the locks.
+     */
+    Map<K, V> findByIndex(String index, long field);
+
+    /**
+     * @return a new transaction for atomic changes to several keys.
+     * @throws UnsupportedOperationException if the map was not created with transactional(true)
+     */
+    SharedMapTransaction<K, V> startTransaction();
+
+    /**
+     * @return the lock statistics recorded by every process in each segment's header.
+     * @throws UnsupportedOperationException if the map was not created with lockStatistics(true)
+     */
+    List<SegmentLockStatistics> lockStatistics();
 }
@@ -16,22 +16,50 @@
 
 package net.openhft.collections;
 
+import net.openhft.lang.Maths;
+
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class SharedHashMapBuilder implements Cloneable {
 
     static final int HEADER_SIZE = 128;
     static final int SEGMENT_HEADER = 64;
-    private static final byte[] MAGIC = "SharedHM".getBytes();
+    // the magic was SharedHM before an entry could span several slots, which those files don't record.
+    private static final byte[] MAGIC = "SharedH2".getBytes();
+    private static final byte[] SINGLE_SLOT_MAGIC = "SharedHM".getBytes();
+    private static final byte[] LONG_LONG_MAGIC = "SharedLL".getBytes();
+    // the hasher is stored as the ordinal of a SharedMapHashers, so files without one use VANILLA.
+    private static final byte CUSTOM_HASHER = -1;
+    static final int MAX_INDEXES = 64;
 
     private int minSegments = 128;
     private int entrySize = 256;
+    private int maxEntryOversizeFactor = 64;
     private long entries = 1 << 20;
     private int replicas = 0;
     private boolean transactional = false;
+    private SharedMapHasher hasher = SharedMapHashers.XXHASH64;
+    private boolean fingerprintIndex = true;
+    private SharedMapMetrics metrics = null;
+    private boolean lockStatistics = false;
+    private SharedMapWarmUp warmUp = SharedMapWarmUp.INDEX;
+    private int warmUpThreads = Runtime.getRuntime().availableProcessors();
+    private SharedMapDurability durability = SharedMapDurability.OS;
+    private long flushIntervalMS = 1000;
+    private long entryTimeToLiveMS = 0;
+    private long expirySweepIntervalMS = 1000;
+    private boolean evictWhenFull = false;
+    private SharedMapEvictionListener<?, ?> evictionListener = null;
+    private int journalCapacity = 0;
+    private boolean readOnly = false;
+    private Map<String, SharedMapFieldExtractor> indexes = new LinkedHashMap<String, SharedMapFieldExtractor>();
     private long lockTimeOutMS = 1000;
     private SharedMapErrorListener errorListener = SharedMapErrorListeners.LOGGING;
     private boolean putReturnsNull = false;
@@ -43,7 +71,9 @@ public class SharedHashMapBuilder implements Cloneable {
     @Override
     public SharedHashMapBuilder clone() {
         try {
-            return (SharedHashMapBuilder) super.clone();
+            SharedHashMapBuilder builder = (SharedHashMapBuilder) super.clone();
+            builder.indexes = new LinkedHashMap<String, SharedMapFieldExtractor>(indexes);
+            return builder;
         } catch (CloneNotSupportedException e) {
             throw new AssertionError(e);
         }
@@ -74,6 +104,26 @@ public class SharedHashMapBuilder implements Cloneable {
         return entrySize;
     }
 
+    /**
+     * Set the maximum number of contiguous entrySize slots a single entry may span.
+     * <p/>
+     * Entries which don't fit in one slot use as many slots as they need, up to this limit,
+     * so the entrySize only needs to suit the typical entry, not the largest.
+     * This is stored in the file, so opening an existing map uses the factor it was created with.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder maxEntryOversizeFactor(int maxEntryOversizeFactor) {
+        if (maxEntryOversizeFactor < 1)
+            throw new IllegalArgumentException("maxEntryOversizeFactor must be at least 1, was " + maxEntryOversizeFactor);
+        this.maxEntryOversizeFactor = maxEntryOversizeFactor;
+        return this;
+    }
+
+    public int maxEntryOversizeFactor() {
+        return maxEntryOversizeFactor;
+    }
+
     SharedHashMapBuilder entries(long entries) {
         this.entries = entries;
         return this;
@@ -83,7 +133,16 @@ public class SharedHashMapBuilder implements Cloneable {
         return entries;
     }
 
-    SharedHashMapBuilder replicas(int replicas) {
+    /**
+     * Set the number of replicas this map sends its changes to, each with its own dirty list in every segment.
+     * <p/>
+     * Changes are sent by a {@link TcpReplicationSender} per replica, numbered from 0.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder replicas(int replicas) {
+        if (replicas < 0)
+            throw new IllegalArgumentException("replicas cannot be negative, was " + replicas);
         this.replicas = replicas;
         return this;
     }
@@ -93,9 +152,12 @@ public class SharedHashMapBuilder implements Cloneable {
     }
 
     /**
-     * Not supported yet.
+     * Set whether the map supports {@link SharedHashMap#startTransaction()}, which reserves an undo log
+     * in every segment.
+     *
+     * @return this builder object back
      */
-    SharedHashMapBuilder transactional(boolean transactional) {
+    public SharedHashMapBuilder transactional(boolean transactional) {
         this.transactional = transactional;
         return this;
     }
@@ -104,15 +166,312 @@ public class SharedHashMapBuilder implements Cloneable {
         return transactional;
     }
 
+    /**
+     * Set the hash function for keys.  Maps created before this setting existed use {@link SharedMapHashers#VANILLA}.
+     * <p/>
+     * The {@link SharedMapHashers} are recorded in the file, so other processes use the same one.
+     * A custom hasher is not recorded, and every process must set the same one.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder hasher(SharedMapHasher hasher) {
+        if (hasher == null)
+            throw new IllegalArgumentException("hasher cannot be null");
+        this.hasher = hasher;
+        return this;
+    }
+
+    public SharedMapHasher hasher() {
+        return hasher;
+    }
+
+    /**
+     * Set whether each segment's index keeps as many bits of the hash as there is room for, rather than 32,
+     * so fewer keys are compared.  Maps created before this setting existed use a 32-bit index.
+     *
+     * @return this builder object back
+     */
+    SharedHashMapBuilder fingerprintIndex(boolean fingerprintIndex) {
+        this.fingerprintIndex = fingerprintIndex;
+        return this;
+    }
+
+    boolean fingerprintIndex() {
+        return fingerprintIndex;
+    }
+
+    /**
+     * Set where measurements of operations, locking and probe lengths are sent, such as a {@link SharedMapStatistics}.
+     * This is for this process only and is not stored in the file.
+     *
+     * @param metrics to receive measurements, or null, the default, for none.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder metrics(SharedMapMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public SharedMapMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Set whether every process using the map records how long it waits for and holds each segment's lock, in the
+     * segment's header, so any process can read them with {@link SharedHashMap#lockStatistics()} or {@link LockHeatmap}.
+     * This is stored in the file and reserves a second cache line per segment header.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder lockStatistics(boolean lockStatistics) {
+        this.lockStatistics = lockStatistics;
+        return this;
+    }
+
+    public boolean lockStatistics() {
+        return lockStatistics;
+    }
+
+    /**
+     * Set how much of the file is touched when the map is opened, or grows, so the first operations don't wait for
+     * page faults.  The default is {@link SharedMapWarmUp#INDEX}.  This is not stored in the file.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder warmUp(SharedMapWarmUp warmUp) {
+        if (warmUp == null)
+            throw new IllegalArgumentException("warmUp cannot be null");
+        this.warmUp = warmUp;
+        return this;
+    }
+
+    public SharedMapWarmUp warmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Set the number of threads which warm up the segments, by default one per processor.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder warmUpThreads(int warmUpThreads) {
+        if (warmUpThreads < 1)
+            throw new IllegalArgumentException("warmUpThreads must be at least 1, was " + warmUpThreads);
+        this.warmUpThreads = warmUpThreads;
+        return this;
+    }
+
+    public int warmUpThreads() {
+        return warmUpThreads;
+    }
+
+    /**
+     * Set when changes are written to disk, by default when the OS chooses.  This is for this process only and is
+     * not stored in the file.
+     * <p/>
+     * Only changes made by the map's operations are tracked, not those made in place to a value returned by
+     * acquireUsing, which are written when the OS chooses or when another change to the segment is flushed.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder durability(SharedMapDurability durability) {
+        if (durability == null)
+            throw new IllegalArgumentException("durability cannot be null");
+        this.durability = durability;
+        return this;
+    }
+
+    public SharedMapDurability durability() {
+        return durability;
+    }
+
+    /**
+     * Set how often the segments changed are forced to disk with {@link SharedMapDurability#PERIODIC}.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder flushIntervalMS(long flushIntervalMS) {
+        if (flushIntervalMS < 1)
+            throw new IllegalArgumentException("flushIntervalMS must be at least 1, was " + flushIntervalMS);
+        this.flushIntervalMS = flushIntervalMS;
+        return this;
+    }
+
+    public long flushIntervalMS() {
+        return flushIntervalMS;
+    }
+
+    /**
+     * Set how long an entry remains after it was last put or replaced.  Each entry records when it expires, after which
+     * it is treated as absent and removed by the next operation on it or by {@link SharedHashMap#removeExpired()}.
+     * The size includes the entries which have expired until they are removed.
+     * This is stored in the file, as it adds 8 bytes to each entry.
+     *
+     * @param time to live, or 0, the default, for entries which don't expire.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder entryTimeToLive(long time, TimeUnit unit) {
+        if (time < 0)
+            throw new IllegalArgumentException("time to live cannot be negative, was " + time);
+        this.entryTimeToLiveMS = unit.toMillis(time);
+        return this;
+    }
+
+    public long entryTimeToLiveMS() {
+        return entryTimeToLiveMS;
+    }
+
+    /**
+     * Set how often a background thread removes the expired entries when entries have a time to live.
+     * This is for this process only and is not stored in the file.
+     *
+     * @param expirySweepIntervalMS the interval, or 0 to only remove them as they are used or by calling
+     *                              {@link SharedHashMap#removeExpired()}.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder expirySweepIntervalMS(long expirySweepIntervalMS) {
+        if (expirySweepIntervalMS < 0)
+            throw new IllegalArgumentException("expirySweepIntervalMS cannot be negative, was " + expirySweepIntervalMS);
+        this.expirySweepIntervalMS = expirySweepIntervalMS;
+        return this;
+    }
+
+    public long expirySweepIntervalMS() {
+        return expirySweepIntervalMS;
+    }
+
+    /**
+     * Set whether a segment which is full evicts entries, chosen by CLOCK, to make room for new ones rather than
+     * throwing an IllegalStateException, so the map can be used as a cache of a fixed size.
+     * <p/>
+     * Each segment has a bit set of the entries used since the clock hand last passed them, and the hand moves
+     * over the entries, clearing these bits, until it finds one which hasn't been used.  Evictions are not sent to
+     * replicas.  This is stored in the file.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder evictWhenFull(boolean evictWhenFull) {
+        this.evictWhenFull = evictWhenFull;
+        return this;
+    }
+
+    public boolean evictWhenFull() {
+        return evictWhenFull;
+    }
+
+    /**
+     * Set the listener notified of each entry evicted.  This is for this process only and is not stored in the file.
+     *
+     * @param evictionListener to notify, or null, the default, for none.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder evictionListener(SharedMapEvictionListener<?, ?> evictionListener) {
+        this.evictionListener = evictionListener;
+        return this;
+    }
+
+    public SharedMapEvictionListener<?, ?> evictionListener() {
+        return evictionListener;
+    }
+
+    /**
+     * Set the number of changes kept in a journal, in a file next to the map's, which any process can read with
+     * {@link SharedHashMap#journalReader()}.  It is rounded up to a power of 2, and 0, the default, is no journal.
+     * This is stored in the file.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder journalCapacity(int journalCapacity) {
+        if (journalCapacity < 0 || journalCapacity > 1 << 30)
+            throw new IllegalArgumentException("journalCapacity must be between 0 and 2^30, was " + journalCapacity);
+        this.journalCapacity = journalCapacity == 0 ? 0 : Maths.nextPower2(journalCapacity, 1);
+        return this;
+    }
+
+    public int journalCapacity() {
+        return journalCapacity;
+    }
+
+    /**
+     * Set whether to open an existing map read only, mapping the file READ_ONLY so this process can't write to it.
+     * <p/>
+     * Lookups retry until they read a segment without a change in progress, without taking its lock, and fail
+     * with an IllegalStateException if this takes longer than lockTimeOutMS.  Iteration reads each entry the same
+     * way, so entries changed meanwhile may or may not be seen.  Anything which changes the map or takes a lock
+     * throws an UnsupportedOperationException.  This is not stored in the file.
+     *
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder readOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    public boolean readOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Add a secondary index on a field of the values, which {@link SharedHashMap#findByIndex(String, long)} looks up.
+     * <p/>
+     * Each segment has an off heap multi-map from the field to the entries with it, updated with the segment locked
+     * as entries are added, replaced or removed.  An entry added by acquireUsing is indexed when the segment is next
+     * searched, so the value written to it after is seen.  Other changes made to a Byteable value in place, other
+     * than by compute, are not seen by the index.  The number of indexes is stored in the file, and every process adds the same
+     * indexes in the same order.
+     *
+     * @param name      to find by
+     * @param extractor of the field from the bytes of a value.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder addIndex(String name, SharedMapFieldExtractor extractor) {
+        if (indexes.containsKey(name))
+            throw new IllegalArgumentException("There is already an index called " + name);
+        if (indexes.size() >= MAX_INDEXES)
+            throw new IllegalArgumentException("There can be at most " + MAX_INDEXES + " indexes");
+        indexes.put(name, extractor);
+        return this;
+    }
+
+    /**
+     * @return the extractor of each index by name, in the order added.
+     */
+    public Map<String, SharedMapFieldExtractor> indexes() {
+        return Collections.unmodifiableMap(indexes);
+    }
+
     public <K, V> SharedHashMap<K, V> create(File file, Class<K> kClass, Class<V> vClass) throws IOException {
+        SharedHashMapBuilder builder = openFile(file, MAGIC);
+        return new VanillaSharedHashMap<K, V>(builder, file, kClass, vClass);
+    }
+
+    /**
+     * Create or open a map of long keys to long values, stored as fixed size entries which are read and written
+     * without any marshalling.  The entrySize, replicas, transactional and hasher settings are not used.
+     */
+    public LongLongSharedHashMap createLongLong(File file) throws IOException {
+        if (readOnly)
+            throw new UnsupportedOperationException("A LongLongSharedHashMap can't be opened read only");
+        if (!indexes.isEmpty())
+            throw new UnsupportedOperationException("A LongLongSharedHashMap can't have indexes");
+        SharedHashMapBuilder builder = openFile(file, LONG_LONG_MAGIC);
+        return new VanillaLongLongSharedHashMap(builder, file);
+    }
+
+    /**
+     * @return a copy of this builder with the settings of the file, creating it if it doesn't exist.
+     */
+    private SharedHashMapBuilder openFile(File file, byte[] magic) throws IOException {
+        if (readOnly && !(file.exists() && file.length() > 0))
+            throw new FileNotFoundException("Unable to open " + file + " read only as it doesn't exist");
         SharedHashMapBuilder builder = null;
         for (int i = 0; i < 10; i++) {
             if (file.exists() && file.length() > 0) {
-                builder = readFile(file);
+                builder = readFile(file, magic);
                 break;
             }
             if (file.createNewFile() || file.length() == 0) {
-                newFile(file);
+                newFile(file, magic);
                 builder = clone();
                 break;
             }
@@ -124,10 +483,13 @@ public class SharedHashMapBuilder implements Cloneable {
         }
         if (builder == null || !file.exists())
             throw new FileNotFoundException("Unable to create " + file);
-        return new VanillaSharedHashMap<K, V>(builder, file, kClass, vClass);
+        return builder;
     }
 
-    private static SharedHashMapBuilder readFile(File file) throws IOException {
+    /**
+     * @return a copy of this builder with the settings stored in the file header.
+     */
+    private SharedHashMapBuilder readFile(File file, byte[] magic) throws IOException {
         ByteBuffer bb = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder());
         FileInputStream fis = new FileInputStream(file);
         fis.getChannel().read(bb);
@@ -136,26 +498,58 @@ public class SharedHashMapBuilder implements Cloneable {
         if (bb.remaining() <= 20) throw new IOException("File too small, corrupted? " + file);
         byte[] bytes = new byte[8];
         bb.get(bytes);
-        if (!Arrays.equals(bytes, MAGIC)) throw new IOException("Unknown magic number, was " + new String(bytes, 0));
-        SharedHashMapBuilder builder = new SharedHashMapBuilder();
+        if (magic == MAGIC && Arrays.equals(bytes, SINGLE_SLOT_MAGIC))
+            throw new IOException(file + " uses the older single slot entry format, which can't be read");
+        if (!Arrays.equals(bytes, magic))
+            throw new IOException("Unknown magic number, was " + new String(bytes, "ISO-8859-1"));
+        SharedHashMapBuilder builder = clone();
         builder.minSegments(bb.getInt());
         builder.entries(bb.getLong());
         builder.entrySize(bb.getInt());
         builder.replicas(bb.getInt());
         builder.transactional(bb.get() == 'Y');
-        if (builder.minSegments() <= 0 || builder.entries() <= 0 || builder.entrySize() <= 0)
+        byte hasherId = bb.get();
+        if (hasherId == CUSTOM_HASHER) {
+            if (hasher instanceof SharedMapHashers)
+                throw new IOException("A custom hasher is needed to read " + file);
+        } else if (hasherId >= 0 && hasherId < SharedMapHashers.values().length) {
+            builder.hasher(SharedMapHashers.values()[hasherId]);
+        } else {
+            throw new IOException("Unknown hasher " + hasherId + " for " + file);
+        }
+        builder.fingerprintIndex(bb.get() == 'Y');
+        builder.lockStatistics(bb.get() == 'Y');
+        // zero in files written before entries could expire.
+        builder.entryTimeToLive(bb.getLong(), TimeUnit.MILLISECONDS);
+        builder.evictWhenFull(bb.get() == 'Y');
+        builder.journalCapacity(bb.getInt());
+        int indexCount = bb.get();
+        if (indexCount != indexes.size())
+            throw new IOException(file + " has " + indexCount + " indexes but " + indexes.size() + " were added");
+        // every process must agree on how many slots an entry may span.
+        builder.maxEntryOversizeFactor = bb.getInt();
+        if (builder.minSegments() <= 0 || builder.entries() <= 0 || builder.entrySize() <= 0
+                || builder.maxEntryOversizeFactor() <= 0)
             throw new IOException("Corrupt header for " + file);
         return builder;
     }
 
-    private void newFile(File file) throws IOException {
+    private void newFile(File file, byte[] magic) throws IOException {
         ByteBuffer bb = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder());
-        bb.put(MAGIC);
+        bb.put(magic);
         bb.putInt(minSegments);
         bb.putLong(entries);
         bb.putInt(entrySize);
         bb.putInt(replicas);
         bb.put((byte) (transactional ? 'Y' : 'N'));
+        bb.put(hasher instanceof SharedMapHashers ? (byte) ((SharedMapHashers) hasher).ordinal() : CUSTOM_HASHER);
+        bb.put((byte) (fingerprintIndex ? 'Y' : 'N'));
+        bb.put((byte) (lockStatistics ? 'Y' : 'N'));
+        bb.putLong(entryTimeToLiveMS);
+        bb.put((byte) (evictWhenFull ? 'Y' : 'N'));
+        bb.putInt(journalCapacity);
+        bb.put((byte) indexes.size());
+        bb.putInt(maxEntryOversizeFactor);
         bb.flip();
         FileOutputStream fos = new FileOutputStream(file);
         fos.getChannel().write(bb);
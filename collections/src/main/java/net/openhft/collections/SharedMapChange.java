@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+/**
+ * The kind of change recorded in a SharedHashMap's journal.
+ *
+ * @see SharedMapJournalReader
+ */
+public enum SharedMapChange {
+    /**
+     * An entry was added or its value replaced, or acquired for update.
+     */
+    PUT,
+    /**
+     * An entry was removed, or expired.
+     */
+    REMOVE,
+    /**
+     * An entry was evicted to make room for another.
+     */
+    EVICT,
+    /**
+     * Every entry in the segment was removed, the slot is -1.
+     */
+    CLEAR
+}
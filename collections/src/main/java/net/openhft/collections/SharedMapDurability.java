@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+/**
+ * When the changes to a SharedHashMap are written to disk, bounding what is lost if the host crashes.
+ * Every process using the map sees every change at once, whichever is chosen.
+ *
+ * @see SharedHashMapBuilder#durability(SharedMapDurability)
+ */
+public enum SharedMapDurability {
+    /**
+     * The OS writes back changed pages when it chooses.
+     */
+    OS,
+    /**
+     * A background thread forces the segments changed to disk every flushIntervalMS.
+     */
+    PERIODIC,
+    /**
+     * Each change is forced to disk before the operation returns.  Threads committing at the same time share one
+     * force of the segments they changed.
+     */
+    SYNC
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+/**
+ * Notified when an entry is evicted to make room for another in a map created with evictWhenFull(true).
+ *
+ * @see SharedHashMapBuilder#evictionListener(SharedMapEvictionListener)
+ */
+public interface SharedMapEvictionListener<K, V> {
+    /**
+     * Called by the thread which evicted the entry, after its change is complete and the entry's segment is unlocked,
+     * so the listener may use the map.  The key and value are copies, which the listener may keep.
+     */
+    void onEvict(K key, V value);
+}
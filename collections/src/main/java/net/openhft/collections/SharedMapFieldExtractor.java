@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+/**
+ * Extracts the field a SharedHashMap's secondary index is on from the bytes of a value, without deserializing it.
+ * <p/>
+ * It is called with the segment locked, so it must not access the map, and it mustn't throw.
+ *
+ * @see SharedHashMapBuilder#addIndex(String, SharedMapFieldExtractor)
+ */
+public interface SharedMapFieldExtractor {
+    /**
+     * @param value the bytes of the value, positioned at its start.  The limit can include padding after it.
+     * @return the field, or a hash of it if it doesn't fit in a long.
+     */
+    long extract(Bytes value);
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * Computes a new value for an entry while its segment is locked.
+ * <p/>
+ * When V is Byteable the value passed is a view of the entry's bytes, which can be changed in place and returned,
+ * so nothing is copied.  The function must not access the map itself.
+ */
+public interface SharedMapFunction<K, V> {
+    /**
+     * @param key   of the entry
+     * @param value the current value, or null if absent
+     * @return the value to store, value itself if changed in place, or null to remove the entry.
+     */
+    V apply(K key, V value);
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+/**
+ * Hashes the serialized form of a key, which picks both its segment and its place in the segment's index.
+ * <p/>
+ * Every process sharing a map must use the same hash function, so only the {@link SharedMapHashers}
+ * are recorded in the map's file.
+ */
+public interface SharedMapHasher {
+    /**
+     * @return a 64-bit hash of the bytes from 0 to the limit, which should be well mixed in all bits.
+     */
+    long hash(Bytes bytes);
+}
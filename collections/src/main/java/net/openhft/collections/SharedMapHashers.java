@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+public enum SharedMapHashers implements SharedMapHasher {
+    /**
+     * The original hash, kept for maps created before the hash was configurable.
+     * Its low bits are poorly mixed, so sequential keys can cluster in a few segments.
+     */
+    VANILLA {
+        @Override
+        public long hash(Bytes bytes) {
+            long h = 0;
+            int i = 0;
+            long limit = bytes.limit(); // clustering.
+            for (; i < limit - 7; i += 8)
+                h = 10191 * h + bytes.readLong(i);
+            for (; i < limit; i++)
+                h = 57 * h + bytes.readByte(i);
+            h ^= (h >>> 31) + (h << 31);
+            h += (h >>> 21) + (h >>> 11);
+            return h;
+        }
+    },
+    /**
+     * xxHash64 with a seed of 0, reading 8-byte words in native byte order.
+     */
+    XXHASH64 {
+        @Override
+        public long hash(Bytes bytes) {
+            long limit = bytes.limit();
+            long i = 0;
+            long h;
+            if (limit >= 32) {
+                long v1 = PRIME1 + PRIME2;
+                long v2 = PRIME2;
+                long v3 = 0;
+                long v4 = -PRIME1;
+                for (; i <= limit - 32; i += 32) {
+                    v1 = round(v1, bytes.readLong(i));
+                    v2 = round(v2, bytes.readLong(i + 8));
+                    v3 = round(v3, bytes.readLong(i + 16));
+                    v4 = round(v4, bytes.readLong(i + 24));
+                }
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                        + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = mergeRound(h, v1);
+                h = mergeRound(h, v2);
+                h = mergeRound(h, v3);
+                h = mergeRound(h, v4);
+            } else {
+                h = PRIME5;
+            }
+            h += limit;
+            for (; i <= limit - 8; i += 8) {
+                h ^= round(0, bytes.readLong(i));
+                h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+            }
+            if (i <= limit - 4) {
+                h ^= (bytes.readInt(i) & 0xFFFFFFFFL) * PRIME1;
+                h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+                i += 4;
+            }
+            for (; i < limit; i++) {
+                h ^= (bytes.readByte(i) & 0xFF) * PRIME5;
+                h = Long.rotateLeft(h, 11) * PRIME1;
+            }
+            h ^= h >>> 33;
+            h *= PRIME2;
+            h ^= h >>> 29;
+            h *= PRIME3;
+            h ^= h >>> 32;
+            return h;
+        }
+    };
+
+    static final long PRIME1 = 0x9E3779B185EBCA87L;
+    static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    static final long PRIME3 = 0x165667B19E3779F9L;
+    static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME1 + PRIME4;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.DirectBytes;
+import net.openhft.lang.io.MappedStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A ring buffer of the changes to a SharedHashMap, in a file next to the map's, which any process can read.
+ * <p/>
+ * Each record is appended by the process making the change, with the segment locked, so the records of a segment are
+ * in the order of its changes.  A writer claims a sequence number with a CAS on the header, marks the record as being
+ * written for that sequence number, writes the record and then writes the sequence number in the record, last, to
+ * publish it.  A record which isn't published, as its writer died, is skipped by readers after a time out.
+ */
+final class SharedMapJournal {
+    /*
+    The header holds
+    - the long number of records, a power of 2.
+    - the long sequence number of the next record to be written.
+
+    Each record holds
+    - the long sequence number + 1, or -(sequence number + 1) while being written.
+    - the int segment.
+    - the int slot of the entry in the segment.
+    - the int ordinal of the SharedMapChange.
+    - the int id of the process writing it.
+    - the long hash of the key.
+     */
+    static final int HEADER_SIZE = 64;
+    static final int CAPACITY = 0;
+    static final int WRITE_SEQUENCE = 8;
+    static final int RECORD_SIZE = 32;
+    static final int RECORD_SEQUENCE = 0;
+    static final int RECORD_SEGMENT = 8;
+    static final int RECORD_SLOT = 12;
+    static final int RECORD_CHANGE = 16;
+    static final int RECORD_PROCESS = 20;
+    static final int RECORD_KEY_HASH = 24;
+
+    private final MappedStore store;
+    private final DirectBytes bytes;
+    private final long capacity;
+    private final long writeTimeOutNS;
+
+    /**
+     * @param writeTimeOutNS how long readers wait for a record to be published before skipping it.
+     */
+    SharedMapJournal(File file, long capacity, boolean readOnly, long writeTimeOutNS) throws IOException {
+        store = new MappedStore(file, readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                HEADER_SIZE + capacity * RECORD_SIZE);
+        bytes = store.createSlice();
+        // the first process to open it sets the capacity, they all use the same one.
+        if (!readOnly)
+            bytes.compareAndSwapLong(CAPACITY, 0, capacity);
+        if (bytes.readVolatileLong(CAPACITY) != capacity)
+            throw new IllegalStateException("Journal " + file + " has a capacity of " + bytes.readVolatileLong(CAPACITY)
+                    + " records, not " + capacity);
+        this.capacity = capacity;
+        this.writeTimeOutNS = writeTimeOutNS;
+    }
+
+    /**
+     * @return the journal file of the map file.
+     */
+    static File fileFor(File mapFile) {
+        return new File(mapFile.getPath() + ".journal");
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    long writeTimeOutNS() {
+        return writeTimeOutNS;
+    }
+
+    void append(int segment, int slot, long keyHash, SharedMapChange change) {
+        long sequence;
+        do {
+            sequence = bytes.readVolatileLong(WRITE_SEQUENCE);
+        } while (!bytes.compareAndSwapLong(WRITE_SEQUENCE, sequence, sequence + 1));
+        long offset = offsetOf(sequence);
+        // the process is written first, so a reader seeing this record marked knows which process is writing it.
+        bytes.writeInt(offset + RECORD_PROCESS, ProcessIds.PROCESS_ID);
+        bytes.writeOrderedLong(offset + RECORD_SEQUENCE, -(sequence + 1));
+        bytes.writeInt(offset + RECORD_SEGMENT, segment);
+        bytes.writeInt(offset + RECORD_SLOT, slot);
+        bytes.writeInt(offset + RECORD_CHANGE, change.ordinal());
+        bytes.writeLong(offset + RECORD_KEY_HASH, keyHash);
+        bytes.writeOrderedLong(offset + RECORD_SEQUENCE, sequence + 1);
+    }
+
+    /**
+     * @return the sequence number of the next record to be written.
+     */
+    long writeSequence() {
+        return bytes.readVolatileLong(WRITE_SEQUENCE);
+    }
+
+    long offsetOf(long sequence) {
+        return HEADER_SIZE + (sequence & (capacity - 1)) * RECORD_SIZE;
+    }
+
+    DirectBytes bytes() {
+        return bytes;
+    }
+
+    void close() {
+        store.free();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.DirectBytes;
+
+/**
+ * Reads the changes to a SharedHashMap, made by any process, from its journal, with a cursor of its own.
+ * <p/>
+ * The journal is a ring buffer, so a reader which falls more than its capacity behind loses the oldest records,
+ * counted by lost().  The slot of an entry can change when it is replaced with a larger value or the map grows, and a
+ * slot can be reused for another key, so each record also holds the hash of the key.  A record which isn't published
+ * within the map's lock time out, or whose writer has died, is skipped and counted by skipped().
+ * A reader is for one thread at a time.
+ */
+public class SharedMapJournalReader {
+    private static final SharedMapChange[] CHANGES = SharedMapChange.values();
+
+    private final SharedMapJournal journal;
+    private final DirectBytes bytes;
+    private long position;
+    private long lost = 0;
+    private long skipped = 0;
+    private long sequence = -1;
+    private int segment, slot;
+    private long keyHash;
+    private SharedMapChange change;
+    // the record waited for, and since when.
+    private long waitingFor = -1;
+    private long waitingSince;
+
+    SharedMapJournalReader(SharedMapJournal journal, long position) {
+        this.journal = journal;
+        this.bytes = journal.bytes();
+        this.position = position;
+    }
+
+    /**
+     * Read the next record, if there is one.
+     *
+     * @return whether a record was read.
+     */
+    public boolean next() {
+        while (true) {
+            long end = journal.writeSequence();
+            if (position >= end)
+                return false;
+            if (end - position > journal.capacity()) {
+                lost += end - journal.capacity() - position;
+                position = end - journal.capacity();
+            }
+            long offset = journal.offsetOf(position);
+            long published = bytes.readVolatileLong(offset + SharedMapJournal.RECORD_SEQUENCE);
+            if (published == position + 1) {
+                int segment = bytes.readInt(offset + SharedMapJournal.RECORD_SEGMENT);
+                int slot = bytes.readInt(offset + SharedMapJournal.RECORD_SLOT);
+                int change = bytes.readInt(offset + SharedMapJournal.RECORD_CHANGE);
+                long keyHash = bytes.readLong(offset + SharedMapJournal.RECORD_KEY_HASH);
+                // not overwritten while reading it.
+                if (bytes.readVolatileLong(offset + SharedMapJournal.RECORD_SEQUENCE) == published
+                        && change >= 0 && change < CHANGES.length) {
+                    this.sequence = position++;
+                    this.segment = segment;
+                    this.slot = slot;
+                    this.keyHash = keyHash;
+                    this.change = CHANGES[change];
+                    return true;
+                }
+            } else if (Math.abs(published) <= position + 1) {
+                // still being written, or not yet marked, by the writer of this record.
+                if (!writerFailed(offset, published))
+                    return false;
+                skipped++;
+                position++;
+                continue;
+            }
+            // overwritten by a writer which has wrapped around.
+            lost++;
+            position++;
+        }
+    }
+
+    /**
+     * @return whether the writer of the record at position has died, or not published it within the time out.
+     */
+    private boolean writerFailed(long offset, long published) {
+        if (published == -(position + 1)
+                && ProcessIds.isDead(bytes.readVolatileInt(offset + SharedMapJournal.RECORD_PROCESS)))
+            return true;
+        long now = System.nanoTime();
+        if (waitingFor != position) {
+            waitingFor = position;
+            waitingSince = now;
+            return false;
+        }
+        return now - waitingSince > journal.writeTimeOutNS();
+    }
+
+    /**
+     * @return the sequence number of the record read.
+     */
+    public long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the segment of the entry changed.
+     */
+    public int segment() {
+        return segment;
+    }
+
+    /**
+     * @return the slot of the entry changed in its segment, or -1 for a CLEAR.
+     */
+    public int slot() {
+        return slot;
+    }
+
+    /**
+     * @return the hash of the key changed, as computed by the map's hasher, or 0 for a CLEAR.
+     */
+    public long keyHash() {
+        return keyHash;
+    }
+
+    public SharedMapChange change() {
+        return change;
+    }
+
+    /**
+     * @return the sequence number of the next record to read, which can be saved to resume from later.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Set the sequence number of the next record to read.
+     */
+    public void position(long position) {
+        if (position < 0)
+            throw new IllegalArgumentException("position cannot be negative, was " + position);
+        this.position = position;
+    }
+
+    /**
+     * @return the number of records overwritten before they could be read.
+     */
+    public long lost() {
+        return lost;
+    }
+
+    /**
+     * @return the number of records skipped as they weren't published in time, or their writer died.
+     */
+    public long skipped() {
+        return skipped;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * Merges a value into an existing entry while its segment is locked.
+ * <p/>
+ * When V is Byteable the old value is a view of the entry's bytes, which can be changed in place and returned,
+ * so nothing is copied.  The function must not access the map itself.
+ */
+public interface SharedMapMergeFunction<V> {
+    /**
+     * @param oldValue the current value
+     * @param value    the value being merged
+     * @return the value to store, oldValue itself if changed in place, or null to remove the entry.
+     */
+    V merge(V oldValue, V value);
+}
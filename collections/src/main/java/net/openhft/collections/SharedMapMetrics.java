@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * Receives measurements from a SharedHashMap, set with {@link SharedHashMapBuilder#metrics(SharedMapMetrics)}.
+ * <p/>
+ * Without metrics the map doesn't read the clock at all.  The callbacks are made by every thread using the map,
+ * while it may hold a segment lock, so they should be thread safe and quick.
+ */
+public interface SharedMapMetrics {
+    /**
+     * @param nanos the time the operation took, including any waiting for locks.
+     */
+    void onOperation(SharedMapOperation operation, long nanos);
+
+    /**
+     * @param waitNanos the time taken to acquire a segment's lock.
+     */
+    void onLockAcquired(int segment, long waitNanos);
+
+    /**
+     * @param heldNanos    the time the lock was held.
+     * @param keysCompared the number of stored keys compared while the lock was held, the length of the probes.
+     */
+    void onLockReleased(int segment, long heldNanos, int keysCompared);
+
+    /**
+     * A lookup without the lock succeeded.
+     *
+     * @param keysCompared the number of stored keys compared.
+     * @param attempts     the number of times the lookup was made, more than one if the segment changed while reading.
+     */
+    void onOptimisticRead(int segment, int keysCompared, int attempts);
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Counts operations and keeps histograms of their latency, lock wait and hold times and the keys compared per lookup,
+ * logging any operation slower than a threshold.
+ * <p/>
+ * Each histogram has a bucket per power of two, so the percentiles are the upper bound of a bucket, within a factor of two.
+ */
+public class SharedMapStatistics implements SharedMapMetrics {
+    private static final Logger LOGGER = Logger.getLogger(SharedMapStatistics.class.getName());
+    private static final SharedMapOperation[] OPERATIONS = SharedMapOperation.values();
+    // bucket 0 for 0, then bucket n for 2^(n-1) to 2^n - 1
+    static final int BUCKETS = 65;
+
+    private final long slowOperationNanos;
+    private final AtomicLongArray operationTimes = new AtomicLongArray(OPERATIONS.length * BUCKETS);
+    private final AtomicLongArray lockWaits = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray lockHolds = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray keysCompared = new AtomicLongArray(BUCKETS);
+    private final AtomicLong optimisticRetries = new AtomicLong();
+    private final AtomicLong slowOperations = new AtomicLong();
+
+    public SharedMapStatistics() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * @param slowOperationNanos operations which take longer are counted and logged.
+     */
+    public SharedMapStatistics(long slowOperationNanos) {
+        this.slowOperationNanos = slowOperationNanos;
+    }
+
+    static int bucket(long value) {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    @Override
+    public void onOperation(SharedMapOperation operation, long nanos) {
+        operationTimes.incrementAndGet(operation.ordinal() * BUCKETS + bucket(nanos));
+        if (nanos > slowOperationNanos) {
+            slowOperations.incrementAndGet();
+            LOGGER.warning(operation + " took " + nanos / 1000 + " us");
+        }
+    }
+
+    @Override
+    public void onLockAcquired(int segment, long waitNanos) {
+        lockWaits.incrementAndGet(bucket(waitNanos));
+    }
+
+    @Override
+    public void onLockReleased(int segment, long heldNanos, int keysCompared) {
+        lockHolds.incrementAndGet(bucket(heldNanos));
+        this.keysCompared.incrementAndGet(bucket(keysCompared));
+    }
+
+    @Override
+    public void onOptimisticRead(int segment, int keysCompared, int attempts) {
+        this.keysCompared.incrementAndGet(bucket(keysCompared));
+        if (attempts > 1)
+            optimisticRetries.addAndGet(attempts - 1);
+    }
+
+    public long operations(SharedMapOperation operation) {
+        return count(operationTimes, operation.ordinal() * BUCKETS);
+    }
+
+    /**
+     * @param fraction e.g. 0.99 for the 99th percentile.
+     * @return an upper bound on the time in nanoseconds of that fraction of operations.
+     */
+    public long operationPercentile(SharedMapOperation operation, double fraction) {
+        return percentile(operationTimes, operation.ordinal() * BUCKETS, fraction);
+    }
+
+    public long lockWaitPercentile(double fraction) {
+        return percentile(lockWaits, 0, fraction);
+    }
+
+    public long lockHoldPercentile(double fraction) {
+        return percentile(lockHolds, 0, fraction);
+    }
+
+    public long keysComparedPercentile(double fraction) {
+        return percentile(keysCompared, 0, fraction);
+    }
+
+    /**
+     * @return the number of times a lookup without the lock was repeated as the segment was changing.
+     */
+    public long optimisticRetries() {
+        return optimisticRetries.get();
+    }
+
+    public long slowOperations() {
+        return slowOperations.get();
+    }
+
+    private static long count(AtomicLongArray histogram, int start) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += histogram.get(start + i);
+        return count;
+    }
+
+    private static long percentile(AtomicLongArray histogram, int start, double fraction) {
+        long count = count(histogram, start);
+        if (count == 0)
+            return 0;
+        long target = (long) Math.ceil(count * fraction);
+        long total = 0;
+        int i = 0;
+        for (; i < BUCKETS - 1; i++) {
+            total += histogram.get(start + i);
+            if (total >= target)
+                break;
+        }
+        return i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (SharedMapOperation operation : OPERATIONS) {
+            long count = operations(operation);
+            if (count == 0)
+                continue;
+            sb.append(operation).append(": count ").append(count)
+                    .append(" 50/99/worst ns ").append(operationPercentile(operation, 0.5))
+                    .append('/').append(operationPercentile(operation, 0.99))
+                    .append('/').append(operationPercentile(operation, 1)).append('\n');
+        }
+        sb.append("lock wait 50/99/worst ns ").append(lockWaitPercentile(0.5))
+                .append('/').append(lockWaitPercentile(0.99)).append('/').append(lockWaitPercentile(1)).append('\n');
+        sb.append("lock hold 50/99/worst ns ").append(lockHoldPercentile(0.5))
+                .append('/').append(lockHoldPercentile(0.99)).append('/').append(lockHoldPercentile(1)).append('\n');
+        sb.append("keys compared 50/99/worst ").append(keysComparedPercentile(0.5))
+                .append('/').append(keysComparedPercentile(0.99)).append('/').append(keysComparedPercentile(1)).append('\n');
+        sb.append("optimistic retries ").append(optimisticRetries()).append(", slow operations ").append(slowOperations());
+        return sb.toString();
+    }
+}
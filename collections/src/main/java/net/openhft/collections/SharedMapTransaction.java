@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * Changes to several keys of a SharedHashMap which are applied atomically on commit().
+ * <p/>
+ * Nothing is locked until commit(), which only locks the segments the keys are in, so transactions touching
+ * different segments commit in parallel.  A transaction is not thread safe.
+ */
+public interface SharedMapTransaction<K, V> {
+    void put(K key, V value);
+
+    void remove(K key);
+
+    /**
+     * Apply all the changes, or none of them if a change fails or the process dies part way through.
+     * The transaction can be reused afterwards.
+     *
+     * @throws IllegalArgumentException if the changes don't fit in the undo log of a segment.
+     */
+    void commit();
+
+    /**
+     * Discard the changes not yet committed.
+     */
+    void rollback();
+}
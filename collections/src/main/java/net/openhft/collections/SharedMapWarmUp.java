@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+/**
+ * How much of a SharedHashMap's memory mapped file is touched when it is opened, so the first operations don't
+ * stall on page faults.
+ *
+ * @see SharedHashMapBuilder#warmUp(SharedMapWarmUp)
+ */
+public enum SharedMapWarmUp {
+    /**
+     * Nothing is touched, pages are faulted in as they are used.
+     */
+    NONE,
+    /**
+     * The index and the free lists of every segment are touched before the map is returned.
+     */
+    INDEX,
+    /**
+     * The index of every segment is touched by background threads, so the map is returned at once.
+     */
+    INDEX_IN_BACKGROUND,
+    /**
+     * The index, the free lists and the entries of every segment are touched before the map is returned.
+     */
+    ALL
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+import java.io.Closeable;
+import java.util.Map;
+
+/**
+ * A sorted map in a file shared between processes, stored as a B+tree of fixed size pages, for range scans and
+ * ordered iteration without an on heap copy.
+ * <p/>
+ * Keys are Long, Integer or CharSequence, ordered as Long, Integer or String would be.  Lookups and scans read
+ * pages without locking them, retrying if a page changes while being read, and changes lock only the pages
+ * they modify.
+ */
+public interface SharedTreeMap<K, V> extends Map<K, V>, Closeable {
+    /**
+     * Get a value for a key if available.  If the value is Byteable, it will be assigned to reference the value,
+     * which stays in place until the key is removed, instead of copying the data.
+     *
+     * @param key   to lookup.
+     * @param value to reuse if possible. If null, a new object will be created.
+     * @return value found or null if not.
+     */
+    V getUsing(K key, V value);
+
+    /**
+     * @return the entry with the least key, or null if empty.
+     */
+    Entry<K, V> firstEntry();
+
+    /**
+     * @return the entry with the greatest key, or null if empty.
+     */
+    Entry<K, V> lastEntry();
+
+    /**
+     * @return the entry with the least key greater than or equal to key, or null if there is none.
+     */
+    Entry<K, V> ceilingEntry(K key);
+
+    /**
+     * @return the entry with the greatest key less than or equal to key, or null if there is none.
+     */
+    Entry<K, V> floorEntry(K key);
+
+    /**
+     * @return the entry with the least key strictly greater than key, or null if there is none.
+     */
+    Entry<K, V> higherEntry(K key);
+
+    /**
+     * @return the entry with the greatest key strictly less than key, or null if there is none.
+     */
+    Entry<K, V> lowerEntry(K key);
+
+    /**
+     * A read only view of a range of keys, which iterates in key order a page at a time.  Each page is read
+     * consistently, but changes made while iterating may or may not be seen.
+     *
+     * @param fromKey the low end of the range, or null for no low end.
+     * @param toKey   the high end of the range, or null for no high end.
+     * @return a view of the entries in the range.
+     */
+    Map<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive);
+
+    /**
+     * @return the number of entries, which can be more than Integer.MAX_VALUE
+     */
+    long longSize();
+}
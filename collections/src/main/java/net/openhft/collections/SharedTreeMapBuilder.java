@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Creates or opens a {@link SharedTreeMap}.  The pageSize, maxKeySize, maxValueSize and entries are stored in the
+ * file, so the settings of an existing file are used rather than these.
+ */
+public class SharedTreeMapBuilder implements Cloneable {
+    static final int HEADER_SIZE = 128;
+    private static final byte[] MAGIC = "SharedTM".getBytes();
+
+    private int pageSize = 4096;
+    private int maxKeySize = 64;
+    private int maxValueSize = 128;
+    private long entries = 1 << 20;
+    private long lockTimeOutMS = 1000;
+    private SharedMapErrorListener errorListener = SharedMapErrorListeners.LOGGING;
+    private boolean generatedValueType = false;
+
+    @Override
+    public SharedTreeMapBuilder clone() {
+        try {
+            return (SharedTreeMapBuilder) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Set the size of each page of the tree, a power of 2 of at least 256.  Each page holds as many keys as fit.
+     *
+     * @return this builder object back
+     */
+    public SharedTreeMapBuilder pageSize(int pageSize) {
+        if (pageSize < 256 || Integer.bitCount(pageSize) != 1)
+            throw new IllegalArgumentException("pageSize must be a power of 2 of at least 256, was " + pageSize);
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public int pageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Set the largest key in bytes, 8 for a Long, 4 for an Integer, and up to 3 per char of a CharSequence.
+     *
+     * @return this builder object back
+     */
+    public SharedTreeMapBuilder maxKeySize(int maxKeySize) {
+        if (maxKeySize < 4 || maxKeySize > Short.MAX_VALUE)
+            throw new IllegalArgumentException("maxKeySize must be between 4 and " + Short.MAX_VALUE + ", was " + maxKeySize);
+        this.maxKeySize = maxKeySize;
+        return this;
+    }
+
+    public int maxKeySize() {
+        return maxKeySize;
+    }
+
+    /**
+     * Set the largest serialized value in bytes.  Every value has a cell of this size, so it can be changed in place.
+     *
+     * @return this builder object back
+     */
+    public SharedTreeMapBuilder maxValueSize(int maxValueSize) {
+        if (maxValueSize < 1)
+            throw new IllegalArgumentException("maxValueSize must be positive, was " + maxValueSize);
+        this.maxValueSize = maxValueSize;
+        return this;
+    }
+
+    public int maxValueSize() {
+        return maxValueSize;
+    }
+
+    /**
+     * Set the number of entries the file has room for.
+     *
+     * @return this builder object back
+     */
+    public SharedTreeMapBuilder entries(long entries) {
+        if (entries < 1 || entries > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("entries must be between 1 and " + Integer.MAX_VALUE + ", was " + entries);
+        this.entries = entries;
+        return this;
+    }
+
+    public long entries() {
+        return entries;
+    }
+
+    public SharedTreeMapBuilder lockTimeOutMS(long lockTimeOutMS) {
+        this.lockTimeOutMS = lockTimeOutMS;
+        return this;
+    }
+
+    public long lockTimeOutMS() {
+        return lockTimeOutMS;
+    }
+
+    public SharedTreeMapBuilder errorListener(SharedMapErrorListener errorListener) {
+        this.errorListener = errorListener;
+        return this;
+    }
+
+    public SharedMapErrorListener errorListener() {
+        return errorListener;
+    }
+
+    public boolean generatedValueType() {
+        return generatedValueType;
+    }
+
+    public SharedTreeMapBuilder generatedValueType(boolean generatedValueType) {
+        this.generatedValueType = generatedValueType;
+        return this;
+    }
+
+    /**
+     * Create or open a tree map.
+     *
+     * @param kClass Long, Integer, CharSequence or String
+     */
+    public <K, V> SharedTreeMap<K, V> create(File file, Class<K> kClass, Class<V> vClass) throws IOException {
+        SharedTreeMapBuilder builder = null;
+        for (int i = 0; i < 10; i++) {
+            if (file.exists() && file.length() > 0) {
+                builder = readFile(file);
+                break;
+            }
+            if (file.createNewFile() || file.length() == 0) {
+                newFile(file);
+                builder = clone();
+                break;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        if (builder == null || !file.exists())
+            throw new FileNotFoundException("Unable to create " + file);
+        return new VanillaSharedTreeMap<K, V>(builder, file, kClass, vClass);
+    }
+
+    /**
+     * @return a copy of this builder with the settings stored in the file header.
+     */
+    private SharedTreeMapBuilder readFile(File file) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        FileInputStream fis = new FileInputStream(file);
+        fis.getChannel().read(bb);
+        fis.close();
+        bb.flip();
+        if (bb.remaining() <= 28) throw new IOException("File too small, corrupted? " + file);
+        byte[] bytes = new byte[8];
+        bb.get(bytes);
+        if (!Arrays.equals(bytes, MAGIC)) throw new IOException("Unknown magic number, was " + new String(bytes, "ISO-8859-1"));
+        SharedTreeMapBuilder builder = clone();
+        try {
+            builder.pageSize(bb.getInt());
+            builder.maxKeySize(bb.getInt());
+            builder.maxValueSize(bb.getInt());
+            builder.entries(bb.getLong());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt header for " + file, e);
+        }
+        return builder;
+    }
+
+    private void newFile(File file) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        bb.put(MAGIC);
+        bb.putInt(pageSize);
+        bb.putInt(maxKeySize);
+        bb.putInt(maxValueSize);
+        bb.putLong(entries);
+        bb.flip();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.getChannel().write(bb);
+        fos.close();
+    }
+}
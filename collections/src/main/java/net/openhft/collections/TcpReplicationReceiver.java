@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.ByteBufferBytes;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies the changes sent by a {@link TcpReplicationSender} to a SharedHashMap.
+ * <p/>
+ * The maps should be created with the same entrySize and maxEntryOversizeFactor.
+ * Changes applied are not sent on to this map's own replicas.  Each batch is acknowledged once applied.
+ */
+public class TcpReplicationReceiver implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(TcpReplicationReceiver.class.getName());
+    static final int MIN_BATCH_CAPACITY = 64 * 1024;
+
+    private final VanillaSharedHashMap<?, ?> map;
+    private final ServerSocketChannel serverChannel;
+    private final ByteBuffer buffer;
+    private final ByteBufferBytes bytes;
+    private final ByteBuffer ack = ByteBuffer.allocateDirect(4);
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * Start listening for a sender.
+     *
+     * @param port to listen on, or 0 for any free port.
+     */
+    public TcpReplicationReceiver(SharedHashMap<?, ?> map, int port) throws IOException {
+        if (!(map instanceof VanillaSharedHashMap))
+            throw new IllegalArgumentException("Unable to replicate to a " + map.getClass());
+        this.map = (VanillaSharedHashMap<?, ?>) map;
+        buffer = ByteBuffer.allocateDirect(batchCapacity(this.map));
+        bytes = new ByteBufferBytes(buffer);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runReceiver();
+            }
+        }, "replication-receiver-" + port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the size of a batch, large enough for at least one of the largest entries.
+     */
+    static int batchCapacity(VanillaSharedHashMap<?, ?> map) {
+        long capacity = Math.max(MIN_BATCH_CAPACITY, 2 * map.maxEntrySize() + 64);
+        if (capacity > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Entries of " + map.maxEntrySize() + " bytes are too large to replicate");
+        return (int) capacity;
+    }
+
+    /**
+     * @return the port listened to.
+     */
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    void runReceiver() {
+        while (!closed) {
+            SocketChannel channel = null;
+            try {
+                channel = serverChannel.accept();
+                while (!closed)
+                    receiveBatch(channel);
+            } catch (IOException e) {
+                if (closed)
+                    break;
+                if (!(e instanceof EOFException))
+                    LOGGER.log(Level.WARNING, "Replication connection failed", e);
+            } finally {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    private void receiveBatch(SocketChannel channel) throws IOException {
+        readFully(channel, 4);
+        int length = bytes.readInt(0);
+        if (length < 0 || length > buffer.capacity())
+            throw new IOException("Batch of " + length + " bytes exceeds the capacity of " + buffer.capacity());
+        readFully(channel, length);
+        bytes.position(0);
+        bytes.limit(length);
+        map.applyChanges(bytes);
+        ack.clear();
+        ack.putInt(0, length);
+        while (ack.hasRemaining())
+            channel.write(ack);
+    }
+
+    private void readFully(SocketChannel channel, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                throw new EOFException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverChannel.close();
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
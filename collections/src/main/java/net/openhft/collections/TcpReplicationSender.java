@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.ByteBufferBytes;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the changes to a SharedHashMap to a {@link TcpReplicationReceiver} on another host.
+ * <p/>
+ * Rather than a message per update, a background thread takes each segment in turn and sends the entries marked
+ * in this replica's dirty list as one batch, so an entry updated many times between batches is sent once.
+ * On each (re)connection every entry is sent, so the replica catches up with changes it has missed.
+ * <p/>
+ * The receiver acknowledges each batch once applied.  Removed entries are kept until then, and a batch which
+ * isn't acknowledged is marked to be sent again, so removals aren't lost when the connection fails.
+ * <p/>
+ * Changes are applied by the receiver in the order sent, so concurrent updates of the same key on both maps
+ * are not reconciled.
+ */
+public class TcpReplicationSender implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(TcpReplicationSender.class.getName());
+    static final long IDLE_PAUSE_NS = 100 * 1000;
+    static final long RECONNECT_PAUSE_MS = 500;
+
+    private final VanillaSharedHashMap<?, ?> map;
+    private final int replica;
+    private final InetSocketAddress address;
+    private final ByteBuffer buffer;
+    private final ByteBufferBytes bytes;
+    private final ByteBuffer ack = ByteBuffer.allocateDirect(4);
+    private final int[] sent;
+    private final Thread thread;
+    private volatile boolean closed = false;
+    private SocketChannel channel;
+
+    /**
+     * Start sending the changes to the map to the receiver at address.
+     *
+     * @param replica the dirty list for this replica, from 0 to the builder's replicas - 1
+     */
+    public TcpReplicationSender(SharedHashMap<?, ?> map, int replica, InetSocketAddress address) {
+        if (!(map instanceof VanillaSharedHashMap))
+            throw new IllegalArgumentException("Unable to replicate a " + map.getClass());
+        this.map = (VanillaSharedHashMap<?, ?>) map;
+        if (replica < 0 || replica >= this.map.replicas())
+            throw new IllegalArgumentException("replica must be between 0 and " + (this.map.replicas() - 1) + ", was " + replica);
+        this.replica = replica;
+        this.address = address;
+        buffer = ByteBuffer.allocateDirect(TcpReplicationReceiver.batchCapacity(this.map));
+        bytes = new ByteBufferBytes(buffer);
+        // each change is at least a type, a key length and a value length.
+        sent = new int[buffer.capacity() / 3];
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSender();
+            }
+        }, "replication-sender-" + replica + "-" + address);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void runSender() {
+        while (!closed) {
+            try {
+                if (channel == null)
+                    connect();
+                if (!sendChanges())
+                    LockSupport.parkNanos(IDLE_PAUSE_NS);
+            } catch (IOException e) {
+                if (closed)
+                    break;
+                LOGGER.log(Level.WARNING, "Replication to " + address + " failed, reconnecting", e);
+                closeChannel();
+                try {
+                    Thread.sleep(RECONNECT_PAUSE_MS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        closeChannel();
+    }
+
+    private void connect() throws IOException {
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        map.markAllChanged(replica);
+    }
+
+    /**
+     * @return whether any changes were sent.
+     */
+    boolean sendChanges() throws IOException {
+        boolean sent = false;
+        for (int i = 0, segments = map.segmentCount(); i < segments; i++) {
+            // send batches until the segment has no more changes.
+            while (true) {
+                // the buffer's limit also bounds the bytes written.
+                buffer.clear();
+                bytes.clear();
+                bytes.writeInt(0);
+                int count = map.writeChanges(replica, i, bytes, this.sent);
+                if (count == 0)
+                    break;
+                int length = (int) bytes.position();
+                bytes.writeInt(0, length - 4);
+                buffer.limit(length);
+                try {
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                    readAck(length - 4);
+                } catch (IOException e) {
+                    map.changesNotSent(replica, i, this.sent, count);
+                    throw e;
+                }
+                map.changesAcknowledged(i, this.sent, count);
+                sent = true;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Wait for the receiver to acknowledge it has applied the batch.
+     */
+    private void readAck(int length) throws IOException {
+        ack.clear();
+        while (ack.hasRemaining())
+            if (channel.read(ack) < 0)
+                throw new EOFException();
+        int acknowledged = ack.getInt(0);
+        if (acknowledged != length)
+            throw new IOException("Batch of " + length + " bytes acknowledged as " + acknowledged);
+    }
+
+    private void closeChannel() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join(RECONNECT_PAUSE_MS * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
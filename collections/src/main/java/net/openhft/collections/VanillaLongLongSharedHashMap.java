@@ -0,0 +1,402 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.io.MappedStore;
+import net.openhft.lang.io.NativeBytes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores each entry as a 16-byte key and value in an open addressed table per segment, so no key or value
+ * is marshalled.
+ * <p/>
+ * Updates take the segment's lock, but a get only reads the table, retrying if the segment's sequence shows
+ * entries were moved while reading.  Values are written with ordered writes, so changing a value or adding an
+ * entry doesn't disturb readers, only a remove does.
+ * <p/>
+ * As a key of 0 marks an empty slot, the key 0 is kept in the segment header.
+ */
+public class VanillaLongLongSharedHashMap implements LongLongSharedHashMap {
+    static final int ENTRY_SIZE = 16;
+    static final int MAX_SEGMENT_CAPACITY = 1 << 30;
+
+    private final long lockTimeOutNS;
+    private final SharedMapErrorListener errorListener;
+    private final int segmentMask;
+    private final int capacity;
+    private MappedStore ms;
+    private Segment[] segments;
+
+    public VanillaLongLongSharedHashMap(SharedHashMapBuilder builder, File file) throws IOException {
+        lockTimeOutNS = builder.lockTimeOutMS() * 1000000;
+        errorListener = builder.errorListener();
+
+        // at most two thirds full so probe sequences stay short.
+        long entriesForLoad = builder.entries() * 3 / 2;
+        long segments = Maths.nextPower2(builder.minSegments(), 1);
+        while ((entriesForLoad + segments - 1) / segments > MAX_SEGMENT_CAPACITY / 2)
+            segments *= 2;
+        if (segments > 1 << 30)
+            throw new IllegalStateException("Unable to hold " + builder.entries() + " entries");
+        capacity = (int) Maths.nextPower2((entriesForLoad + segments - 1) / segments, 16);
+        segmentMask = (int) segments - 1;
+
+        long segmentSize = Segment.HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+        ms = new MappedStore(file, FileChannel.MapMode.READ_WRITE,
+                SharedHashMapBuilder.HEADER_SIZE + segments * segmentSize);
+        this.segments = new Segment[(int) segments];
+        for (int i = 0; i < segments; i++)
+            this.segments[i] = new Segment(ms.createSlice(SharedHashMapBuilder.HEADER_SIZE + i * segmentSize, segmentSize));
+    }
+
+    /**
+     * The finalizer of MurmurHash3, so both the low bits choosing the segment and the high bits choosing
+     * the slot are well mixed.
+     */
+    static long hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[((int) hash) & segmentMask];
+    }
+
+    @Override
+    public long get(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).containsKey(key, hash);
+    }
+
+    @Override
+    public long put(long key, long value) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long pos = segment.find(key, hash);
+            if (pos < 0) {
+                segment.insert(key, hash, value);
+                return 0;
+            }
+            long previous = segment.bytes.readLong(pos + 8);
+            segment.bytes.writeOrderedLong(pos + 8, value);
+            return previous;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public long addAndGet(long key, long delta) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long pos = segment.find(key, hash);
+            if (pos < 0) {
+                segment.insert(key, hash, delta);
+                return delta;
+            }
+            long value = segment.bytes.readLong(pos + 8) + delta;
+            segment.bytes.writeOrderedLong(pos + 8, value);
+            return value;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public boolean compareAndSwap(long key, long expected, long value) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long pos = segment.find(key, hash);
+            long current = pos < 0 ? 0 : segment.bytes.readLong(pos + 8);
+            if (current != expected)
+                return false;
+            if (pos < 0)
+                segment.insert(key, hash, value);
+            else
+                segment.bytes.writeOrderedLong(pos + 8, value);
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public long remove(long key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long pos = segment.find(key, hash);
+            if (pos < 0)
+                return 0;
+            long previous = segment.bytes.readLong(pos + 8);
+            segment.remove(pos);
+            return previous;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public long longSize() {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ms == null)
+            return;
+        ms.free();
+        segments = null;
+        ms = null;
+    }
+
+    class Segment {
+        /*
+        The segment header holds
+        - the lock, the id of the process holding it and a sequence, odd while entries are being moved,
+          for optimistic readers.
+        - the number of entries.
+        - whether the key 0 is present, followed by an entry for it, which is always 0 and its value.
+         */
+        static final int LOCK = 0;
+        static final int LOCK_PROCESS = 4;
+        static final int SEQUENCE = 8;
+        static final int SIZE = 16;
+        static final int HAS_ZERO_KEY = 20;
+        static final int ZERO_KEY = 24;
+        static final int HEADER_SIZE = 64;
+        static final int OPTIMISTIC_READ_ATTEMPTS = 64;
+
+        final NativeBytes bytes;
+        private final int mask = capacity - 1;
+        private boolean writing = false;
+
+        Segment(NativeBytes bytes) {
+            this.bytes = bytes;
+        }
+
+        void lock() throws IllegalStateException {
+            while (true) {
+                boolean success = bytes.tryLockInt(LOCK)
+                        || ProcessLocks.tryLockContended(bytes, LOCK, LOCK_PROCESS, lockTimeOutNS, "a segment");
+                if (success) {
+                    bytes.writeOrderedInt(LOCK_PROCESS, ProcessIds.PROCESS_ID);
+                    long sequence = bytes.readLong(SEQUENCE);
+                    // the previous holder died part way through a remove.
+                    if ((sequence & 1) != 0)
+                        bytes.writeOrderedLong(SEQUENCE, sequence + 1);
+                    return;
+                }
+                ProcessLocks.lockTimedOut(bytes, LOCK, LOCK_PROCESS, errorListener);
+            }
+        }
+
+        void unlock() {
+            if (writing) {
+                writing = false;
+                bytes.writeOrderedLong(SEQUENCE, bytes.readLong(SEQUENCE) + 1);
+            }
+            // the last unlock of a re-entrant lock.
+            if (bytes.readInt(LOCK) >>> 24 == 1)
+                bytes.writeOrderedInt(LOCK_PROCESS, 0);
+            try {
+                bytes.unlockInt(LOCK);
+            } catch (IllegalMonitorStateException e) {
+                errorListener.errorOnUnlock(e);
+            }
+        }
+
+        /**
+         * Called with the lock held, before entries are moved, so optimistic readers will retry.
+         */
+        void startWrite() {
+            if (writing)
+                return;
+            long sequence = bytes.readLong(SEQUENCE);
+            // a full barrier so the sequence is visible before any of the changes.
+            bytes.compareAndSwapLong(SEQUENCE, sequence, sequence + 1);
+            writing = true;
+        }
+
+        int size() {
+            return bytes.readVolatileInt(SIZE);
+        }
+
+        long get(long key, long hash) {
+            for (int i = 0; i < OPTIMISTIC_READ_ATTEMPTS; i++) {
+                long sequence = bytes.readVolatileLong(SEQUENCE);
+                if ((sequence & 1) != 0)
+                    continue;
+                long pos = find(key, hash);
+                long value = pos < 0 ? 0 : bytes.readVolatileLong(pos + 8);
+                if (bytes.readVolatileLong(SEQUENCE) == sequence)
+                    return value;
+            }
+            lock();
+            try {
+                long pos = find(key, hash);
+                return pos < 0 ? 0 : bytes.readLong(pos + 8);
+            } finally {
+                unlock();
+            }
+        }
+
+        boolean containsKey(long key, long hash) {
+            for (int i = 0; i < OPTIMISTIC_READ_ATTEMPTS; i++) {
+                long sequence = bytes.readVolatileLong(SEQUENCE);
+                if ((sequence & 1) != 0)
+                    continue;
+                boolean found = find(key, hash) >= 0;
+                if (bytes.readVolatileLong(SEQUENCE) == sequence)
+                    return found;
+            }
+            lock();
+            try {
+                return find(key, hash) >= 0;
+            } finally {
+                unlock();
+            }
+        }
+
+        private long offsetOf(int slot) {
+            return HEADER_SIZE + (long) slot * ENTRY_SIZE;
+        }
+
+        private int slotFor(long hash) {
+            // the low bits pick the segment.
+            return (int) (hash >>> 32) & mask;
+        }
+
+        /**
+         * @return the offset of the entry for the key, or -1 if absent.
+         */
+        long find(long key, long hash) {
+            if (key == 0)
+                return bytes.readVolatileInt(HAS_ZERO_KEY) == 0 ? -1 : ZERO_KEY;
+            // bounded, as an optimistic reader can see slots change.
+            for (int i = 0, slot = slotFor(hash); i <= mask; i++, slot = (slot + 1) & mask) {
+                long pos = offsetOf(slot);
+                long key2 = bytes.readVolatileLong(pos);
+                if (key2 == key)
+                    return pos;
+                if (key2 == 0)
+                    return -1;
+            }
+            return -1;
+        }
+
+        /**
+         * Called with the lock held for a key which is absent.
+         */
+        void insert(long key, long hash, long value) {
+            int size = bytes.readInt(SIZE);
+            if (key == 0) {
+                bytes.writeOrderedLong(ZERO_KEY + 8, value);
+                bytes.writeOrderedInt(HAS_ZERO_KEY, 1);
+            } else {
+                // leave at least one empty slot to end every search.
+                if (size >= mask)
+                    throw new IllegalStateException("Segment is full, no free entries found");
+                int slot = slotFor(hash);
+                while (bytes.readLong(offsetOf(slot)) != 0)
+                    slot = (slot + 1) & mask;
+                long pos = offsetOf(slot);
+                // the value is visible before the key.
+                bytes.writeOrderedLong(pos + 8, value);
+                bytes.writeOrderedLong(pos, key);
+            }
+            bytes.writeOrderedInt(SIZE, size + 1);
+        }
+
+        /**
+         * Called with the lock held, moves any entries after this one which would no longer be found back
+         * into the gap, rather than leaving a marker for a removed entry.
+         */
+        void remove(long pos) {
+            if (pos == ZERO_KEY) {
+                bytes.writeOrderedInt(HAS_ZERO_KEY, 0);
+                bytes.writeOrderedLong(ZERO_KEY + 8, 0);
+            } else {
+                startWrite();
+                int hole = (int) ((pos - HEADER_SIZE) / ENTRY_SIZE);
+                for (int slot = (hole + 1) & mask; ; slot = (slot + 1) & mask) {
+                    long key = bytes.readLong(offsetOf(slot));
+                    if (key == 0)
+                        break;
+                    int ideal = slotFor(hash(key));
+                    // move it if the hole is between where it should be and where it is.
+                    if (((slot - ideal) & mask) >= ((slot - hole) & mask)) {
+                        bytes.writeLong(offsetOf(hole), key);
+                        bytes.writeLong(offsetOf(hole) + 8, bytes.readLong(offsetOf(slot) + 8));
+                        hole = slot;
+                    }
+                }
+                bytes.writeLong(offsetOf(hole), 0);
+                bytes.writeLong(offsetOf(hole) + 8, 0);
+            }
+            bytes.writeOrderedInt(SIZE, bytes.readInt(SIZE) - 1);
+        }
+
+        /**
+         * Called with the lock held.
+         */
+        void clear() {
+            startWrite();
+            bytes.writeOrderedInt(HAS_ZERO_KEY, 0);
+            bytes.writeLong(ZERO_KEY + 8, 0);
+            bytes.zeroOut(HEADER_SIZE, offsetOf(mask + 1));
+            bytes.writeOrderedInt(SIZE, 0);
+        }
+    }
+}
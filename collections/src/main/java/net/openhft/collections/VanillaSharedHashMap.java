@@ -17,6 +17,7 @@
 package net.openhft.collections;
 
 import net.openhft.lang.Maths;
+import net.openhft.lang.collection.ATSDirectBitSet;
 import net.openhft.lang.collection.DirectBitSet;
 import net.openhft.lang.collection.SingleThreadedDirectBitSet;
 import net.openhft.lang.io.*;
@@ -27,44 +28,123 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.AbstractMap;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements SharedHashMap<K, V> {
+    private static final Logger LOGGER = Logger.getLogger(VanillaSharedHashMap.class.getName());
+    // fields of the file header maintained by the map, after those written by the builder.
+    static final int HEADER_SEGMENTS = 64;
+    static final int HEADER_GROW_LOCK = 68;
+    static final int HEADER_TRANSACTION_ID = 72;
+    // the types of change sent to replicas.
+    static final byte REPLICATED_PUT = 'P';
+    static final byte REPLICATED_REMOVE = 'R';
+    // the before images in an undo log.
+    static final byte UNDO_ABSENT = 'A';
+    static final byte UNDO_PRESENT = 'P';
+    static final int MIN_UNDO_LOG_SIZE = 4096;
+    static final int AWAIT_SPINS = 1000;
+    static final long AWAIT_MIN_PARK_NS = 1000;
+    static final long AWAIT_MAX_PARK_NS = 1000 * 1000;
+
     private final ThreadLocal<DirectBytes> localBytes = new ThreadLocal<DirectBytes>();
+    private final ThreadLocal<DirectBytes> localValueBytes = new ThreadLocal<DirectBytes>();
     private final Class<K> kClass;
     private final Class<V> vClass;
     private final long lockTimeOutNS;
-    private Segment[] segments;
+    private final File file;
+    private volatile Segment[] segments;
     private MappedStore ms;
+    private DirectBytes header;
+    // later stores map the segments added as the map grows.
+    private final List<MappedStore> stores = new ArrayList<MappedStore>();
+    private final int initialSegments;
 
     private final int replicas;
     private final int entrySize;
+    private final int maxEntryOversizeFactor;
     private final long entriesPerSegment;
     private final int bitSetSizeInBytes;
+    private final int undoLogSize;
+    private final boolean fingerprintIndex;
 
     private final SharedMapErrorListener errorListener;
+    private final SharedMapHasher hasher;
+    private final SharedMapMetrics metrics;
+    private final boolean lockStatistics;
+    private final SharedMapWarmUp warmUp;
+    private final int warmUpThreads;
+    // warming up in the background, stopped before the file is unmapped.
+    private final List<ExecutorService> warmUpPools = new ArrayList<ExecutorService>();
+    private final SharedMapDurability durability;
+    private final long entryTimeToLiveMS;
+    private final boolean evictWhenFull;
+    private final SharedMapEvictionListener<K, V> evictionListener;
+    private final ScheduledExecutorService sweepService;
+    private final SharedMapJournal journal;
+    private final boolean readOnly;
+    private final List<String> indexNames;
+    private final SharedMapFieldExtractor[] indexExtractors;
+    private final FileChannel.MapMode mapMode;
+    // to force the segments changed to disk, unless the durability is OS.
+    private final RandomAccessFile flushFile;
+    private final ScheduledExecutorService flushService;
+    private final Object commitLock = new Object();
+    private long commitsRequested = 0;
+    private long commitsFlushed = 0;
+    private boolean flushing = false;
+    // set while this thread makes a batch of changes, which are forced to disk once at the end.
+    private final ThreadLocal<boolean[]> batchChanged = new ThreadLocal<boolean[]>();
     private final boolean generatedKeyType;
     private final boolean generatedValueType;
     private final boolean putReturnsNull;
     private final boolean removeReturnsNull;
 
-    public VanillaSharedHashMap(SharedHashMapBuilder builder, File file,
+    public VanillaSharedHashMap(SharedHashMapBuilder builder, final File file,
                                 Class<K> kClass, Class<V> vClass) throws IOException {
         this.kClass = kClass;
         this.vClass = vClass;
+        this.file = file;
 
         lockTimeOutNS = builder.lockTimeOutMS() * 1000000;
 
         this.replicas = builder.replicas();
         this.entrySize = builder.entrySize();
+        this.maxEntryOversizeFactor = builder.maxEntryOversizeFactor();
+        this.fingerprintIndex = builder.fingerprintIndex();
 
         this.errorListener = builder.errorListener();
+        this.hasher = builder.hasher();
+        this.metrics = builder.metrics();
+        this.lockStatistics = builder.lockStatistics();
+        this.warmUp = builder.warmUp();
+        this.warmUpThreads = builder.warmUpThreads();
+        this.durability = builder.durability();
+        this.entryTimeToLiveMS = builder.entryTimeToLiveMS();
+        this.evictWhenFull = builder.evictWhenFull();
+        @SuppressWarnings("unchecked")
+        SharedMapEvictionListener<K, V> evictionListener = (SharedMapEvictionListener<K, V>) builder.evictionListener();
+        this.evictionListener = evictionListener;
         this.generatedKeyType = builder.generatedKeyType();
         this.generatedValueType = builder.generatedValueType();
         this.putReturnsNull = builder.putReturnsNull();
         this.removeReturnsNull = builder.removeReturnsNull();
+        this.readOnly = builder.readOnly();
+        this.mapMode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        this.indexNames = new ArrayList<String>(builder.indexes().keySet());
+        this.indexExtractors = builder.indexes().values().toArray(new SharedMapFieldExtractor[indexNames.size()]);
 
         long entries = builder.entries();
         /**
@@ -85,25 +165,473 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
                 segments++;
             }
         }
+        // a power of two so the map can grow by splitting each segment in two.
+        segments = Maths.nextPower2(segments, 1);
         if (segments > Integer.MAX_VALUE)
             throw new IllegalStateException();
 
         entriesPerSegment = entriesPerSegment(entriesForReliability, segments);
         bitSetSizeInBytes = (int) (entriesPerSegment / 8);
+        initialSegments = (int) segments;
+        // only depends on settings stored in the file.
+        undoLogSize = builder.transactional()
+                ? (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_UNDO_LOG_SIZE, entriesPerSegment * entrySize / 64))
+                : 0;
+
+        this.ms = new MappedStore(file, mapMode, sizeInBytes(initialSegments));
+        header = ms.createSlice(0, SharedHashMapBuilder.HEADER_SIZE);
 
         @SuppressWarnings("unchecked")
         Segment[] ss = (VanillaSharedHashMap.Segment[])
-                new VanillaSharedHashMap.Segment[(int) segments];
-        this.segments = ss;
+                new VanillaSharedHashMap.Segment[0];
+        this.segments = createSegments(ss, ms, initialSegments);
+        // the map might have grown since it was created.
+        refreshSegments();
+
+        journal = builder.journalCapacity() > 0
+                ? new SharedMapJournal(SharedMapJournal.fileFor(file), builder.journalCapacity(), readOnly,
+                        lockTimeOutNS)
+                : null;
+
+        // a read only map makes no changes to flush.
+        flushFile = durability == SharedMapDurability.OS || readOnly ? null : new RandomAccessFile(file, "rw");
+        if (flushFile != null && durability == SharedMapDurability.PERIODIC) {
+            flushService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "flush-" + file.getName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flushService.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushSegments();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Unable to flush " + file, e);
+                    }
+                }
+            }, builder.flushIntervalMS(), builder.flushIntervalMS(), TimeUnit.MILLISECONDS);
+        } else {
+            flushService = null;
+        }
+        if (entryTimeToLiveMS > 0 && builder.expirySweepIntervalMS() > 0 && !readOnly) {
+            sweepService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "expiry-" + file.getName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            sweepService.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        removeExpired();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Unable to remove expired entries from " + file, e);
+                    }
+                }
+            }, builder.expirySweepIntervalMS(), builder.expirySweepIntervalMS(), TimeUnit.MILLISECONDS);
+        } else {
+            sweepService = null;
+        }
+    }
+
+    /**
+     * Force the segments changed since they were last flushed to disk.
+     */
+    void flushSegments() {
+        for (Segment segment : currentSegments())
+            segment.flush();
+    }
+
+    /**
+     * Called before a batch of changes, so with {@link SharedMapDurability#SYNC} they are forced to disk once, when
+     * the batch ends rather than as each segment is unlocked.
+     *
+     * @return whether this started the batch, rather than it being part of one already started.
+     */
+    private boolean startBatch() {
+        if (durability != SharedMapDurability.SYNC || batchChanged.get() != null)
+            return false;
+        batchChanged.set(new boolean[1]);
+        return true;
+    }
+
+    /**
+     * Called once every lock taken for the batch has been released.
+     *
+     * @param started as returned by startBatch()
+     */
+    private void endBatch(boolean started) {
+        if (!started)
+            return;
+        boolean[] changed = batchChanged.get();
+        batchChanged.remove();
+        if (changed[0])
+            groupCommit();
+    }
+
+    /**
+     * Called after a change with {@link SharedMapDurability#SYNC}, once the segment is unlocked.
+     */
+    private void commitChange() {
+        boolean[] changed = batchChanged.get();
+        if (changed != null)
+            changed[0] = true;
+        else
+            groupCommit();
+    }
+
+    /**
+     * @return the number of times changes have been forced to disk with {@link SharedMapDurability#SYNC}.
+     */
+    long commitsRequested() {
+        synchronized (commitLock) {
+            return commitsRequested;
+        }
+    }
 
-        this.ms = new MappedStore(file, FileChannel.MapMode.READ_WRITE,
-                sizeInBytes());
+    /**
+     * Called after a change with {@link SharedMapDurability#SYNC}, returns once the segments changed so far have
+     * been forced to disk, by this thread or by another committing at the same time.
+     */
+    private void groupCommit() {
+        boolean interrupted = false;
+        long ticket;
+        synchronized (commitLock) {
+            ticket = ++commitsRequested;
+        }
+        while (true) {
+            long upTo;
+            synchronized (commitLock) {
+                while (flushing && commitsFlushed < ticket) {
+                    try {
+                        commitLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (commitsFlushed >= ticket)
+                    break;
+                // flush for every commit requested so far.
+                flushing = true;
+                upTo = commitsRequested;
+            }
+            boolean flushed = false;
+            try {
+                flushSegments();
+                flushed = true;
+            } finally {
+                synchronized (commitLock) {
+                    flushing = false;
+                    if (flushed)
+                        commitsFlushed = upTo;
+                    commitLock.notifyAll();
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
 
-        long offset = SharedHashMapBuilder.HEADER_SIZE;
+    private Segment[] createSegments(Segment[] segments, MappedStore store, int count) {
+        Segment[] ss = Arrays.copyOf(segments, count);
         long segmentSize = segmentSize();
-        for (int i = 0; i < this.segments.length; i++) {
-            this.segments[i] = new Segment(ms.createSlice(offset, segmentSize));
-            offset += segmentSize;
+        for (int i = segments.length; i < count; i++)
+            ss[i] = new Segment(store.createSlice(SharedHashMapBuilder.HEADER_SIZE + i * segmentSize, segmentSize), i);
+        warmUp(ss, segments.length, count);
+        return ss;
+    }
+
+    /**
+     * Touch the pages of the segments from .. to - 1 with a pool of threads, as set by the builder's warmUp.
+     */
+    private void warmUp(Segment[] ss, int from, int to) {
+        if (warmUp == SharedMapWarmUp.NONE || from >= to)
+            return;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(warmUpThreads, to - from), new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "warm-up-" + file.getName() + "-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = from; i < to; i++) {
+            final Segment segment = ss[i];
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    segment.warmUp(warmUp);
+                }
+            });
+        }
+        pool.shutdown();
+        if (warmUp == SharedMapWarmUp.INDEX_IN_BACKGROUND) {
+            synchronized (warmUpPools) {
+                warmUpPools.add(pool);
+            }
+        } else {
+            awaitTermination(pool);
+        }
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the map was opened read only, so writing would fault.
+     */
+    void checkWritable() {
+        if (readOnly)
+            throw new UnsupportedOperationException("The map was opened read only");
+    }
+
+    private static void awaitTermination(ExecutorService pool) {
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                // still running.
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return all the segments, including those added by another map growing the file.
+     */
+    private Segment[] currentSegments() {
+        refreshSegments();
+        return segments;
+    }
+
+    /**
+     * Map any segments added by another map growing the file.
+     */
+    private void refreshSegments() {
+        if (header.readVolatileInt(HEADER_SEGMENTS) > segments.length)
+            mapNewSegments();
+    }
+
+    private synchronized void mapNewSegments() {
+        int count = header.readVolatileInt(HEADER_SEGMENTS);
+        Segment[] segments = this.segments;
+        if (count <= segments.length)
+            return;
+        MappedStore store;
+        try {
+            store = new MappedStore(file, mapMode, sizeInBytes(count));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map " + count + " segments of " + file, e);
+        }
+        stores.add(store);
+        this.segments = createSegments(segments, store, count);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void grow() throws IOException {
+        refreshSegments();
+        int segmentsBefore = segments.length;
+        lockGrowth();
+        try {
+            refreshSegments();
+            // complete any growth another map didn't finish.
+            splitSegments();
+            if (segments.length != segmentsBefore)
+                return; // another map has grown it already.
+            if (segmentsBefore >= 1 << 30)
+                throw new IllegalStateException("Unable to grow beyond " + segmentsBefore + " segments");
+            int count = segmentsBefore * 2;
+            MappedStore store = new MappedStore(file, FileChannel.MapMode.READ_WRITE, sizeInBytes(count));
+            synchronized (this) {
+                stores.add(store);
+                Segment[] ss = createSegments(segments, store, count);
+                // the new segments are not used until their half of a segment has been split off.
+                for (int i = segmentsBefore; i < count; i++)
+                    ss[i].indexedFor(Segment.INACTIVE);
+                header.writeOrderedInt(HEADER_SEGMENTS, count);
+                // the entries moved to the new segments are lost after a crash unless the header is on disk first.
+                if (flushFile != null)
+                    flushFile.getChannel().force(false);
+                segments = ss;
+            }
+            splitSegments();
+        } finally {
+            header.unlockInt(HEADER_GROW_LOCK);
+        }
+    }
+
+    private void lockGrowth() {
+        checkWritable();
+        while (!header.tryLockNanosInt(HEADER_GROW_LOCK, lockTimeOutNS)) {
+            ProcessLocks.lockTimedOut(header, HEADER_GROW_LOCK, errorListener);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void snapshot(File snapshotFile) throws IOException {
+        if (snapshotFile.getCanonicalFile().equals(file.getCanonicalFile()))
+            throw new IllegalArgumentException("Unable to snapshot " + file + " to itself");
+        // the segments can't change size or number until the copy is complete.
+        lockGrowth();
+        try {
+            refreshSegments();
+            // complete any growth another map didn't finish.
+            splitSegments();
+            Segment[] segments = this.segments;
+            RandomAccessFile from = new RandomAccessFile(file, "r");
+            try {
+                RandomAccessFile to = new RandomAccessFile(snapshotFile, "rw");
+                try {
+                    to.setLength(0);
+                    FileChannel fromChannel = from.getChannel();
+                    FileChannel toChannel = to.getChannel();
+                    // the mapped file and the channels share the OS page cache, so this copies what is in memory.
+                    transfer(fromChannel, toChannel, 0, SharedHashMapBuilder.HEADER_SIZE);
+                    writeZeroInt(toChannel, HEADER_GROW_LOCK);
+                    long segmentSize = segmentSize();
+                    for (int i = 0; i < segments.length; i++) {
+                        long position = SharedHashMapBuilder.HEADER_SIZE + i * segmentSize;
+                        Segment segment = segments[i];
+                        segment.lock();
+                        try {
+                            transfer(fromChannel, toChannel, position, segmentSize);
+                        } finally {
+                            segment.unlock();
+                        }
+                        // held by this thread when copied, and nothing is part way through a change or transaction.
+                        writeZeroInt(toChannel, position + Segment.LOCK);
+                        writeZeroInt(toChannel, position + Segment.LOCK_PROCESS);
+                    }
+                    toChannel.force(true);
+                } finally {
+                    to.close();
+                }
+            } finally {
+                from.close();
+            }
+        } finally {
+            header.unlockInt(HEADER_GROW_LOCK);
+        }
+    }
+
+    private static void transfer(FileChannel from, FileChannel to, long position, long length) throws IOException {
+        to.position(position);
+        for (long done = 0; done < length; ) {
+            long count = from.transferTo(position + done, length - done, to);
+            if (count <= 0)
+                throw new IOException("Unable to copy " + length + " bytes at " + position);
+            done += count;
+        }
+    }
+
+    private static void writeZeroInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer zero = ByteBuffer.allocate(4);
+        while (zero.hasRemaining())
+            channel.write(zero, position + zero.position());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long removeExpired() {
+        if (entryTimeToLiveMS == 0)
+            throw new UnsupportedOperationException("Map was not created with an entryTimeToLive");
+        long removed = 0;
+        for (Segment segment : currentSegments())
+            removed += segment.removeExpired();
+        return removed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SharedMapJournalReader journalReader() {
+        if (journal == null)
+            throw new UnsupportedOperationException("Map was not created with a journalCapacity");
+        return new SharedMapJournalReader(journal, journal.writeSequence());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<K, V> findByIndex(String index, long field) {
+        int indexNum = indexNames.indexOf(index);
+        if (indexNum < 0)
+            throw new IllegalArgumentException("No index called " + index);
+        Map<K, V> found = new LinkedHashMap<K, V>();
+        for (Segment segment : currentSegments())
+            segment.findByIndex(indexNum, field, found);
+        return found;
+    }
+
+    /**
+     * Split each segment added by the last growth from the segment which held its entries until now.
+     */
+    private void splitSegments() {
+        Segment[] segments = this.segments;
+        int half = segments.length / 2;
+        for (int i = half; i < segments.length; i++) {
+            Segment child = segments[i];
+            if (child.indexedFor() != Segment.INACTIVE)
+                continue;
+            // always lock the lower segment first.
+            Segment parent = segments[i - half];
+            parent.lock();
+            try {
+                child.lock();
+                try {
+                    if (child.indexedFor() == Segment.INACTIVE)
+                        parent.splitInto(child, segments.length);
+                } finally {
+                    child.unlock();
+                }
+            } finally {
+                parent.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the segment for this hash, which is the segment it will be split from if that hasn't happened yet.
+     */
+    Segment segmentFor(long hash) {
+        Segment[] segments = this.segments;
+        int count = segments.length;
+        Segment segment = segments[(int) (hash & (count - 1))];
+        while (segment.indexedFor() == Segment.INACTIVE) {
+            count >>>= 1;
+            segment = segments[(int) (hash & (count - 1))];
+        }
+        return segment;
+    }
+
+    /**
+     * @return the segment for this hash, locked.
+     */
+    Segment lockSegmentFor(long hash) {
+        while (true) {
+            Segment segment = segmentFor(hash);
+            segment.lock();
+            if (segment.owns(hash))
+                return segment;
+            // the segment has been split since.
+            segment.unlock();
+            refreshSegments();
         }
     }
 
@@ -113,16 +641,36 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         return (minEPS + 63) / 64 * 64;
     }
 
-    long sizeInBytes() {
+    long sizeInBytes(int segments) {
         return SharedHashMapBuilder.HEADER_SIZE +
-                segments.length * segmentSize();
+                segments * segmentSize();
     }
 
     long segmentSize() {
-        return (SharedHashMapBuilder.SEGMENT_HEADER
+        long size = segmentHeaderSize()
                 + Maths.nextPower2(entriesPerSegment * 12, 16 * 8) // the IntIntMultiMap
-                + (1 + replicas) * bitSetSizeInBytes // the free list and 0+ dirty lists.
-                + entriesPerSegment * entrySize); // the actual entries used.
+                + bitSets() * bitSetSizeInBytes
+                // an IntIntMultiMap and the field of each entry per secondary index.
+                + indexExtractors.length * (Maths.nextPower2(entriesPerSegment * 12, 16 * 8) + entriesPerSegment * 8)
+                + entriesPerSegment * entrySize // the actual entries used.
+                + undoLogSize;
+        // keep every segment header cache line aligned.
+        return (size + 63) & ~63L;
+    }
+
+    /**
+     * @return the size of a segment's header, with a second cache line for the lock statistics if recorded.
+     */
+    int segmentHeaderSize() {
+        return lockStatistics ? 2 * SharedHashMapBuilder.SEGMENT_HEADER : SharedHashMapBuilder.SEGMENT_HEADER;
+    }
+
+    /**
+     * @return the number of bit sets per segment, the free list, a dirty list per replica,
+     * if replicated, the list of removed entries still to be sent and, if evicting, the entries referenced.
+     */
+    private int bitSets() {
+        return (replicas > 0 ? 2 + replicas : 1) + (evictWhenFull ? 1 : 0) + (indexExtractors.length > 0 ? 1 : 0);
     }
 
     /**
@@ -132,15 +680,55 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     public void close() {
         if (ms == null)
             return;
+        synchronized (warmUpPools) {
+            for (ExecutorService pool : warmUpPools) {
+                pool.shutdownNow();
+                awaitTermination(pool);
+            }
+            warmUpPools.clear();
+        }
+        if (sweepService != null) {
+            sweepService.shutdown();
+            awaitTermination(sweepService);
+        }
+        if (flushService != null) {
+            flushService.shutdown();
+            awaitTermination(flushService);
+        }
+        if (flushFile != null) {
+            flushSegments();
+            for (Segment segment : segments)
+                segment.releaseFlushBuffers();
+            try {
+                flushFile.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to close " + file, e);
+            }
+        }
+        if (journal != null)
+            journal.close();
         ms.free();
+        for (MappedStore store : stores)
+            store.free();
+        stores.clear();
         segments = null;
         ms = null;
     }
 
     DirectBytes acquireBytes() {
-        DirectBytes bytes = localBytes.get();
+        return acquireBytes(localBytes);
+    }
+
+    DirectBytes acquireValueBytes() {
+        return acquireBytes(localValueBytes);
+    }
+
+    private DirectBytes acquireBytes(ThreadLocal<DirectBytes> local) {
+        DirectBytes bytes = local.get();
         if (bytes == null) {
-            localBytes.set(bytes = new DirectStore(ms.bytesMarshallerFactory(), entrySize * 2, false).createSlice());
+            // large enough for the biggest entry allowed.
+            long capacity = (long) entrySize * Math.max(2, maxEntryOversizeFactor);
+            local.set(bytes = new DirectStore(ms.bytesMarshallerFactory(), capacity, false).createSlice());
         } else {
             bytes.clear();
         }
@@ -166,10 +754,215 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     private V put0(K key, V value, boolean replaceIfPresent) {
         if (!kClass.isInstance(key)) return null;
         DirectBytes bytes = getKeyAsBytes(key);
+        DirectBytes valueBytes = getValueAsBytes(value);
+        long start = startTime();
         long hash = longHashCode(bytes);
-        int segmentNum = (int) (hash & (segments.length - 1));
-        int hash2 = (int) (hash / segments.length);
-        return segments[segmentNum].put(bytes, value, hash2, replaceIfPresent);
+        Segment segment = lockSegmentFor(hash);
+        try {
+            return segment.put(bytes, valueBytes, hash, replaceIfPresent, !putReturnsNull);
+        } finally {
+            segment.unlock();
+            recordOperation(SharedMapOperation.PUT, start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V compute(K key, V using, SharedMapFunction<? super K, V> function) {
+        return update(key, using, function, null, null, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V computeIfPresent(K key, V using, SharedMapFunction<? super K, V> function) {
+        return update(key, using, function, null, null, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V merge(K key, V value, V using, SharedMapMergeFunction<V> function) {
+        if (value == null)
+            throw new NullPointerException("value");
+        return update(key, using, null, value, function, false);
+    }
+
+    private V update(K key, V using, SharedMapFunction<? super K, V> function,
+                     V mergeValue, SharedMapMergeFunction<V> mergeFunction, boolean onlyIfPresent) {
+        if (!kClass.isInstance(key)) return null;
+        long start = startTime();
+        DirectBytes keyBytes = getKeyAsBytes(key);
+        long hash = longHashCode(keyBytes);
+        Segment segment = lockSegmentFor(hash);
+        try {
+            int pos = segment.find(keyBytes, hash);
+            if (pos < 0 && onlyIfPresent)
+                return null;
+            V value = pos < 0 ? null : segment.valueAt(pos, using);
+            // the function may change it in place.
+            if (value instanceof Byteable)
+                segment.startWrite();
+            V result;
+            if (mergeFunction == null)
+                result = function.apply(key, value);
+            else
+                result = value == null ? mergeValue : mergeFunction.merge(value, mergeValue);
+            // the function may have used the map, reusing this thread's key buffer and moving entries.
+            keyBytes = getKeyAsBytes(key);
+            pos = segment.find(keyBytes, hash);
+            return segment.store(keyBytes, hash, pos, value, result);
+        } finally {
+            segment.unlock();
+            recordOperation(SharedMapOperation.UPDATE, start);
+        }
+    }
+
+    /**
+     * Puts all the entries, taking the lock of each segment once for all the entries in it.
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        long opStart = startTime();
+        boolean batch = startBatch();
+        try {
+            putAll0(m);
+        } finally {
+            endBatch(batch);
+        }
+        recordOperation(SharedMapOperation.PUT_ALL, opStart);
+    }
+
+    private void putAll0(Map<? extends K, ? extends V> m) {
+        List<K> keys = new ArrayList<K>(m.size());
+        List<V> values = new ArrayList<V>(m.size());
+        for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            if (!kClass.isInstance(entry.getKey()))
+                continue;
+            keys.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+        long[] hashes = new long[keys.size()];
+        // each key is marshalled once, and kept to be used with the lock held.
+        long[] keyStarts = new long[keys.size() + 1];
+        DirectStore keyStore = new DirectStore(ms.bytesMarshallerFactory(), Math.max(256, keys.size() * 32L), false);
+        List<Integer> notOwned = new ArrayList<Integer>();
+        try {
+            for (int i = 0; i < hashes.length; i++) {
+                DirectBytes keyBytes = getKeyAsBytes(keys.get(i));
+                hashes[i] = longHashCode(keyBytes);
+                keyStore = append(keyStore, keyStarts[i], keyBytes);
+                keyStarts[i + 1] = keyStarts[i] + keyBytes.remaining();
+            }
+            DirectBytes keyBytes = keyStore.createSlice();
+            long[] bySegment = bySegment(hashes);
+            for (int start = 0, end; start < bySegment.length; start = end) {
+                end = endOfSegment(bySegment, start);
+                Segment segment = segmentFor(hashes[((int) bySegment[start])]);
+                segment.lock();
+                try {
+                    for (int j = start; j < end; j++) {
+                        int i = (int) bySegment[j];
+                        if (segment.owns(hashes[i])) {
+                            keyBytes.positionAndSize(keyStarts[i], keyStarts[i + 1] - keyStarts[i]);
+                            segment.put(keyBytes, getValueAsBytes(values.get(i)), hashes[i], true, false);
+                        } else {
+                            notOwned.add(i);
+                        }
+                    }
+                } finally {
+                    segment.unlock();
+                }
+            }
+        } finally {
+            keyStore.free();
+        }
+        // the segment was split while processing the batch.
+        for (int i : notOwned)
+            put0(keys.get(i), values.get(i), true);
+    }
+
+    /**
+     * Copies bytes to the store at offset, replacing the store with a larger copy if needed.
+     *
+     * @return the store copied to.
+     */
+    private DirectStore append(DirectStore store, long offset, DirectBytes bytes) {
+        long length = bytes.remaining();
+        if (offset + length > store.size()) {
+            DirectStore larger = new DirectStore(ms.bytesMarshallerFactory(), Math.max(store.size() * 2, offset + length), false);
+            larger.createSlice().write(store.createSlice(), 0, offset);
+            store.free();
+            store = larger;
+        }
+        DirectBytes to = store.createSlice();
+        to.position(offset);
+        to.write(bytes, bytes.position(), length);
+        return store;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void getAll(K[] keys, V[] values) {
+        if (values.length < keys.length)
+            throw new IllegalArgumentException("values.length " + values.length + " < keys.length " + keys.length);
+        if (readOnly) {
+            // without taking the locks.
+            for (int i = 0; i < keys.length; i++)
+                values[i] = getUsing(keys[i], values[i]);
+            return;
+        }
+        long opStart = startTime();
+        long[] hashes = new long[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            hashes[i] = kClass.isInstance(keys[i]) ? longHashCode(getKeyAsBytes(keys[i])) : 0;
+        List<Integer> notOwned = new ArrayList<Integer>();
+        long[] bySegment = bySegment(hashes);
+        for (int start = 0, end; start < bySegment.length; start = end) {
+            end = endOfSegment(bySegment, start);
+            Segment segment = segmentFor(hashes[((int) bySegment[start])]);
+            segment.lock();
+            try {
+                for (int j = start; j < end; j++) {
+                    int i = (int) bySegment[j];
+                    if (!kClass.isInstance(keys[i]))
+                        values[i] = null;
+                    else if (segment.owns(hashes[i]))
+                        values[i] = segment.acquire(getKeyAsBytes(keys[i]), values[i], hashes[i], false);
+                    else
+                        notOwned.add(i);
+                }
+            } finally {
+                segment.unlock();
+            }
+        }
+        for (int i : notOwned)
+            values[i] = lookupLocked(getKeyAsBytes(keys[i]), values[i], hashes[i], false);
+        recordOperation(SharedMapOperation.GET_ALL, opStart);
+    }
+
+    /**
+     * @return the indexes of the hashes sorted by segment, with the segment number in the high 32 bits.
+     */
+    private long[] bySegment(long[] hashes) {
+        long[] bySegment = new long[hashes.length];
+        for (int i = 0; i < hashes.length; i++)
+            bySegment[i] = ((long) segmentFor(hashes[i]).segmentNum << 32) | i;
+        Arrays.sort(bySegment);
+        return bySegment;
+    }
+
+    private static int endOfSegment(long[] bySegment, int start) {
+        int end = start + 1;
+        while (end < bySegment.length && (bySegment[end] >>> 32) == (bySegment[start] >>> 32))
+            end++;
+        return end;
     }
 
     private DirectBytes getKeyAsBytes(K key) {
@@ -182,6 +975,16 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         return bytes;
     }
 
+    private DirectBytes getValueAsBytes(V value) {
+        DirectBytes bytes = acquireValueBytes();
+        if (generatedValueType)
+            ((BytesMarshallable) value).writeMarshallable(bytes);
+        else
+            bytes.writeInstance(vClass, value);
+        bytes.flip();
+        return bytes;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -202,42 +1005,569 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
 
     private V lookupUsing(K key, V value, boolean create) {
         if (!kClass.isInstance(key)) return null;
+        long start = startTime();
         DirectBytes bytes = getKeyAsBytes(key);
         long hash = longHashCode(bytes);
-        int segmentNum = (int) (hash & (segments.length - 1));
-        int hash2 = (int) (hash / segments.length);
-        return segments[segmentNum].acquire(bytes, value, hash2, create);
+        V result = create ? lookupLocked(bytes, value, hash, true) : segmentFor(hash).get(bytes, value, hash);
+        recordOperation(create ? SharedMapOperation.ACQUIRE : SharedMapOperation.GET, start);
+        return result;
     }
 
-
-    private long longHashCode(DirectBytes bytes) {
-        long h = 0;
-        int i = 0;
-        long limit = bytes.limit(); // clustering.
-        for (; i < limit - 7; i += 8)
-            h = 10191 * h + bytes.readLong(i);
-//        for (; i < bytes.limit() - 3; i += 2)
-//            h = 10191 * h + bytes.readInt(i);
-        for (; i < limit; i++)
-            h = 57 * h + bytes.readByte(i);
-        h ^= (h >>> 31) + (h << 31);
-        h += (h >>> 21) + (h >>> 11);
-        return h;
+    @Override
+    public long version(K key) {
+        checkKey(key);
+        DirectBytes bytes = getKeyAsBytes(key);
+        return segmentFor(longHashCode(bytes)).sequence();
     }
 
-
     /**
-     * {@inheritDoc}
+     * Unlike a lookup, waiting for a key which can't be in the map would never end, so it fails instead.
      */
-    @NotNull
+    private void checkKey(K key) {
+        if (!kClass.isInstance(key))
+            throw new IllegalArgumentException("Key must be a " + kClass.getName() + ", was "
+                    + (key == null ? null : key.getClass().getName()));
+    }
+
     @Override
-    public Set<Entry<K, V>> entrySet() {
-        throw new UnsupportedOperationException();
+    public long awaitChange(K key, long lastVersion, long timeout, TimeUnit unit) throws InterruptedException {
+        checkKey(key);
+        DirectBytes bytes = getKeyAsBytes(key);
+        long hash = longHashCode(bytes);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long parkNS = AWAIT_MIN_PARK_NS;
+        for (int i = 0; ; i++) {
+            Segment segment = segmentFor(hash);
+            // the key has moved to a segment added by another process.
+            if (!segment.owns(hash)) {
+                refreshSegments();
+                continue;
+            }
+            long version = segment.sequence();
+            // the change is complete when the sequence is even again.
+            if (version != lastVersion && (version & 1) == 0)
+                return version;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (i < AWAIT_SPINS)
+                continue;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return lastVersion;
+            LockSupport.parkNanos(Math.min(parkNS, remaining));
+            parkNS = Math.min(parkNS * 2, AWAIT_MAX_PARK_NS);
+        }
     }
 
+    V lookupLocked(DirectBytes keyBytes, V value, long hash, boolean create) {
+        if (readOnly && !create) {
+            // the key has moved to a segment added by another process.
+            refreshSegments();
+            return segmentFor(hash).get(keyBytes, value, hash);
+        }
+        Segment segment = lockSegmentFor(hash);
+        try {
+            return segment.acquire(keyBytes, value, hash, create);
+        } finally {
+            segment.unlock();
+        }
+    }
 
-    /**
-     * {@inheritDoc}
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!kClass.isInstance(key)) return false;
+        long start = startTime();
+        DirectBytes bytes = getKeyAsBytes((K) key);
+        long hash = longHashCode(bytes);
+        boolean found = segmentFor(hash).containsKey(bytes, hash);
+        recordOperation(SharedMapOperation.CONTAINS_KEY, start);
+        return found;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long longSize() {
+        long size = 0;
+        for (Segment segment : currentSegments())
+            size += segment.size();
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return (int) Math.min(longSize(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        for (Segment segment : currentSegments())
+            if (segment.size() > 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        for (Segment segment : currentSegments())
+            segment.clear();
+    }
+
+    int replicas() {
+        return replicas;
+    }
+
+    /**
+     * @return the size of the largest entry, as written by writeChanges.
+     */
+    long maxEntrySize() {
+        return (long) entrySize * maxEntryOversizeFactor;
+    }
+
+    int segmentCount() {
+        return currentSegments().length;
+    }
+
+    /**
+     * @return the bytes of a segment, starting with its header.
+     */
+    NativeBytes segmentBytes(int segmentNum) {
+        return segment(segmentNum).bytes;
+    }
+
+    /**
+     * @return a segment, which is inactive if it hasn't been split off since the map grew.
+     */
+    Segment segment(int segmentNum) {
+        return currentSegments()[segmentNum];
+    }
+
+    /**
+     * Writes as many of the entries in a segment changed since they were last sent to this replica as fit in out.
+     * Deleted entries are kept until changesAcknowledged is called, or changesNotSent if the send fails.
+     *
+     * @param sent the position of each entry written.
+     * @return the number of entries written.
+     */
+    int writeChanges(int replica, int segmentNum, Bytes out, int[] sent) {
+        Segment segment = currentSegments()[segmentNum];
+        segment.lock();
+        try {
+            return segment.writeChanges(replica, out, sent);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Called once the replica has applied the entries written by writeChanges, frees those which were deleted
+     * and have been sent to every replica.
+     */
+    void changesAcknowledged(int segmentNum, int[] sent, int count) {
+        Segment segment = currentSegments()[segmentNum];
+        segment.lock();
+        try {
+            segment.changesAcknowledged(sent, count);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Called if the entries written by writeChanges may not have reached the replica, so they are sent again.
+     */
+    void changesNotSent(int replica, int segmentNum, int[] sent, int count) {
+        Segment segment = currentSegments()[segmentNum];
+        segment.lock();
+        try {
+            segment.changesNotSent(replica, sent, count);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Marks every entry as changed for this replica so they will all be sent, e.g. when it (re)connects.
+     */
+    void markAllChanged(int replica) {
+        for (Segment segment : currentSegments()) {
+            segment.lock();
+            try {
+                segment.markAllDirty(replica);
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies the changes written by writeChanges of another map. These are not sent on to this map's replicas.
+     */
+    void applyChanges(Bytes in) {
+        while (in.remaining() > 0) {
+            int type = in.readByte();
+            if (type != REPLICATED_PUT && type != REPLICATED_REMOVE)
+                throw new IllegalStateException("Unknown change type " + type);
+            DirectBytes keyBytes = readBytes(in, acquireBytes());
+            DirectBytes valueBytes = type == REPLICATED_PUT ? readBytes(in, acquireValueBytes()) : null;
+            long hash = longHashCode(keyBytes);
+            Segment segment = lockSegmentFor(hash);
+            segment.replicating = true;
+            try {
+                if (valueBytes == null)
+                    segment.remove(keyBytes, null, hash);
+                else
+                    segment.put(keyBytes, valueBytes, hash, true, false);
+            } finally {
+                segment.replicating = false;
+                segment.unlock();
+            }
+        }
+    }
+
+    private static void skipBytes(Bytes in) {
+        long length = in.readStopBit();
+        in.position(in.position() + length);
+    }
+
+    private static DirectBytes readBytes(Bytes in, DirectBytes bytes) {
+        long length = in.readStopBit();
+        if (length > bytes.remaining() || length > in.remaining())
+            throw new IllegalStateException("Length " + length + " too large");
+        bytes.write(in, in.position(), length);
+        in.position(in.position() + length);
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SharedMapTransaction<K, V> startTransaction() {
+        if (undoLogSize == 0)
+            throw new UnsupportedOperationException("The map was not created as transactional");
+        checkWritable();
+        return new Transaction();
+    }
+
+    /**
+     * Lock the segments for all these hashes in ascending order.
+     *
+     * @return the segments locked.
+     */
+    List<Segment> lockSegmentsFor(long[] hashes) {
+        while (true) {
+            TreeMap<Integer, Segment> bySegmentNum = new TreeMap<Integer, Segment>();
+            for (long hash : hashes) {
+                Segment segment = segmentFor(hash);
+                bySegmentNum.put(segment.segmentNum, segment);
+            }
+            List<Segment> locked = new ArrayList<Segment>(bySegmentNum.values());
+            for (Segment segment : locked)
+                segment.lock();
+            boolean owned = true;
+            for (long hash : hashes) {
+                Segment segment = segmentFor(hash);
+                if (bySegmentNum.get(segment.segmentNum) != segment || !segment.owns(hash)) {
+                    owned = false;
+                    break;
+                }
+            }
+            if (owned)
+                return locked;
+            // a segment has been split since.
+            for (int i = locked.size() - 1; i >= 0; i--)
+                locked.get(i).unlock();
+            refreshSegments();
+        }
+    }
+
+    /**
+     * Changes are held until commit(), which locks the segments touched in ascending order. Each segment logs
+     * the previous state of the entries changed before changing them, and the lowest segment locked holds the
+     * commit point. If this process dies part way through, the next to lock one of the segments rolls back
+     * or completes the transaction.
+     */
+    class Transaction implements SharedMapTransaction<K, V> {
+        private final List<K> keys = new ArrayList<K>();
+        // null for a remove.
+        private final List<V> values = new ArrayList<V>();
+
+        @Override
+        public void put(K key, V value) {
+            if (value == null)
+                throw new NullPointerException("value");
+            add(key, value);
+        }
+
+        @Override
+        public void remove(K key) {
+            add(key, null);
+        }
+
+        private void add(K key, V value) {
+            if (!kClass.isInstance(key))
+                throw new IllegalArgumentException("Key must be a " + kClass.getName());
+            keys.add(key);
+            values.add(value);
+        }
+
+        @Override
+        public void commit() {
+            if (keys.isEmpty())
+                return;
+            long[] hashes = new long[keys.size()];
+            for (int i = 0; i < hashes.length; i++)
+                hashes[i] = longHashCode(getKeyAsBytes(keys.get(i)));
+            boolean batch = startBatch();
+            try {
+                List<Segment> locked = lockSegmentsFor(hashes);
+                try {
+                    apply(locked, hashes);
+                } finally {
+                    for (int i = locked.size() - 1; i >= 0; i--)
+                        locked.get(i).unlock();
+                    rollback();
+                }
+            } finally {
+                endBatch(batch);
+            }
+        }
+
+        private void apply(List<Segment> locked, long[] hashes) {
+            long transactionId = header.addAtomicLong(HEADER_TRANSACTION_ID, 1);
+            Segment coordinator = locked.get(0);
+            int[] participants = new int[locked.size() - 1];
+            for (int i = 0; i < participants.length; i++)
+                participants[i] = locked.get(i + 1).segmentNum;
+            boolean committed = false;
+            try {
+                coordinator.startUndo(transactionId, coordinator.segmentNum, participants);
+                for (int i = 1; i < locked.size(); i++)
+                    locked.get(i).startUndo(transactionId, coordinator.segmentNum, new int[0]);
+
+                for (int i = 0; i < hashes.length; i++) {
+                    Segment segment = segmentFor(hashes[i]);
+                    DirectBytes keyBytes = getKeyAsBytes(keys.get(i));
+                    segment.logUndo(keyBytes, hashes[i]);
+                    V value = values.get(i);
+                    if (value == null)
+                        segment.remove(keyBytes, null, hashes[i]);
+                    else
+                        segment.put(keyBytes, getValueAsBytes(value), hashes[i], true, false);
+                }
+                coordinator.commitUndo(transactionId);
+                committed = true;
+
+            } finally {
+                if (!committed) {
+                    // the coordinator last, so no participant is left to find the transaction undecided.
+                    for (int i = locked.size() - 1; i >= 0; i--)
+                        locked.get(i).rollbackUndo();
+                }
+            }
+            for (Segment segment : locked)
+                segment.endUndo();
+        }
+
+        @Override
+        public void rollback() {
+            keys.clear();
+            values.clear();
+        }
+    }
+
+    private long longHashCode(Bytes bytes) {
+        return hasher.hash(bytes);
+    }
+
+
+    /**
+     * Iterates over each segment in turn, only holding a segment's lock while reading an entry, or for a read only
+     * map, reading each entry optimistically.
+     * <p/>
+     * To avoid creating garbage, the iterator returns the same Entry each time with the key and value read into
+     * the same objects where possible, and a generated value type is a reference to the entry itself.  Copy these
+     * if they are needed after the next call to next().
+     * <p/>
+     * The iterator is weakly consistent; entries added or removed while iterating may or may not be seen.
+     */
+    @NotNull
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    class EntrySet extends AbstractSet<Entry<K, V>> {
+        @NotNull
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return VanillaSharedHashMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            VanillaSharedHashMap.this.clear();
+        }
+    }
+
+    class EntryIterator implements Iterator<Entry<K, V>> {
+        private final Segment[] segments = currentSegments();
+        private final FlyweightEntry entry = new FlyweightEntry();
+        private final MultiStoreBytes entryBytes = new MultiStoreBytes();
+        private int segmentNum = 0;
+        private int pos = 0;
+        private long sequence = -1;
+        private boolean nextRead = false;
+        private int lastSegmentNum = -1, lastPos = -1;
+        private long lastSequence = -1;
+
+        @Override
+        public boolean hasNext() {
+            if (nextRead)
+                return true;
+            for (; segmentNum < segments.length; segmentNum++, pos = 0, sequence = -1) {
+                Segment segment = segments[segmentNum];
+                if (readOnly) {
+                    if (readNextOptimistically(segment))
+                        return nextRead = true;
+                    continue;
+                }
+                segment.lock();
+                try {
+                    int next = segment.nextEntryPos(entryBytes, pos, sequence);
+                    if (next < 0)
+                        continue;
+                    pos = next + segment.readEntry(entryBytes, next, entry);
+                    lastSegmentNum = segmentNum;
+                    lastPos = next;
+                    lastSequence = sequence = segment.sequence();
+                    return nextRead = true;
+                } finally {
+                    segment.unlock();
+                }
+            }
+            return false;
+        }
+
+        /**
+         * A read only map can't take the lock, so read the next entry of the segment until it didn't change while
+         * reading it.
+         *
+         * @return whether an entry was read.
+         */
+        private boolean readNextOptimistically(Segment segment) {
+            long deadline = 0;
+            for (int i = 0; ; i++) {
+                if (i >= Segment.OPTIMISTIC_READ_ATTEMPTS)
+                    deadline = segment.pauseReadOnly(deadline);
+                long segmentSequence = segment.sequence();
+                if ((segmentSequence & 1) != 0)
+                    continue;
+                int next, slots = 0;
+                try {
+                    next = segment.nextEntryPos(entryBytes, pos, sequence);
+                    if (next >= 0)
+                        slots = segment.readEntry(entryBytes, next, entry);
+                } catch (RuntimeException e) {
+                    if (segment.sequence() == segmentSequence)
+                        throw e;
+                    continue;
+                }
+                if (segment.sequence() != segmentSequence)
+                    continue;
+                if (next < 0)
+                    return false;
+                pos = next + slots;
+                lastSegmentNum = segmentNum;
+                lastPos = next;
+                lastSequence = sequence = segmentSequence;
+                return true;
+            }
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            nextRead = false;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (lastPos < 0)
+                throw new IllegalStateException();
+            if (!segments[lastSegmentNum].removeAt(lastPos, lastSequence))
+                // the segment has changed since, so look it up by key.
+                removeIfValueIs(entry.key, null);
+            lastPos = -1;
+        }
+    }
+
+    /**
+     * A Map.Entry which is reused to avoid creating garbage.
+     */
+    class FlyweightEntry implements Entry<K, V> {
+        K key;
+        V value;
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            V prev = put(key, value);
+            this.value = value;
+            return prev;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) return false;
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return (key == null ? e.getKey() == null : key.equals(e.getKey())) &&
+                    (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
      *
      * @throws NullPointerException if the specified key is null
      */
@@ -277,11 +1607,16 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         if (!kClass.isInstance(key))
             return null;
 
+        final long start = startTime();
         final DirectBytes bytes = getKeyAsBytes((K) key);
         final long hash = longHashCode(bytes);
-        final int segmentNum = (int) (hash & (segments.length - 1));
-        final int hash2 = (int) (hash / segments.length);
-        return segments[segmentNum].remove(bytes, expectedValue, hash2);
+        final Segment segment = lockSegmentFor(hash);
+        try {
+            return segment.remove(bytes, expectedValue, hash);
+        } finally {
+            segment.unlock();
+            recordOperation(SharedMapOperation.REMOVE, start);
+        }
     }
 
     /**
@@ -338,207 +1673,1600 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         if (!kClass.isInstance(key))
             return null;
 
+        final long start = startTime();
         final DirectBytes bytes = getKeyAsBytes((K) key);
+        final DirectBytes valueBytes = getValueAsBytes(newValue);
         final long hash = longHashCode(bytes);
-        final int segmentNum = (int) (hash & (segments.length - 1));
-        final int hash2 = (int) (hash / segments.length);
-        return segments[segmentNum].replace(bytes, existingValue, newValue, hash2);
+        final Segment segment = lockSegmentFor(hash);
+        try {
+            return segment.replace(bytes, existingValue, valueBytes, hash);
+        } finally {
+            segment.unlock();
+            recordOperation(SharedMapOperation.REPLACE, start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<SegmentLockStatistics> lockStatistics() {
+        if (!lockStatistics)
+            throw new UnsupportedOperationException("The map was not created with lockStatistics(true)");
+        Segment[] segments = currentSegments();
+        List<SegmentLockStatistics> statistics = new ArrayList<SegmentLockStatistics>(segments.length);
+        for (Segment segment : segments)
+            statistics.add(segment.lockStatistics());
+        return statistics;
+    }
+
+    /**
+     * @return the time an operation started, or 0 if there are no metrics.
+     */
+    private long startTime() {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    private void recordOperation(SharedMapOperation operation, long start) {
+        if (metrics != null)
+            metrics.onOperation(operation, System.nanoTime() - start);
+    }
+
+    /**
+     * The entry read by a thread looking up a key without the lock, and the number of keys it compared.
+     */
+    static final class OptimisticReader {
+        final MultiStoreBytes entry = new MultiStoreBytes();
+        int keysCompared;
     }
 
     // these methods should be package local, not public or private.
     class Segment {
         /*
         The entry format is
+        - stop-bit encoded number of entrySize slots used by the entry
+        - if entries have a time to live, the long time in ms it expires
         - stop-bit encoded length for key
         - bytes for the key
-        - stop-bit encoded length of the value
+        - padding to a 4 byte boundary
         - bytes for the value.
+
+        An entry spans one or more contiguous slots, each of which is marked in the free list.
+        If the map has replicas, the first slot of a changed entry is marked in each replica's dirty list,
+        and a removed entry stays in the index, marked in the deleted list, until it has been sent to every replica.
+        If entries are evicted when full, the first slot of an entry used since the clock hand passed it is marked
+        in the referenced list.
+
+        The segment header holds
+        - the int lock, and the id of the process holding it.
+        - the long sequence, which is odd while the segment is being modified, for optimistic readers.
+        - the int number of entries.
+        - the int number of segments the index was built for, 0 for the initial number or INACTIVE
+          if the segment hasn't been split from its parent yet.
+        - for a transactional map, the id of the transaction in progress, the last transaction committed when
+          this segment coordinated it, the segment coordinating it, the length of the undo log and the id of the
+          thread which holds the lock for the transaction.
+        - if entries have a time to live, the int slot the sweep for expired entries continues from, always the
+          start of an entry or a free slot.
+        - if entries are evicted when full, the int slot of the clock hand, also the start of an entry or free.
+        - if the map records lock statistics, in a second cache line, the number of times the lock was acquired,
+          how many of those had to wait, the total and longest wait and hold times, the process and thread which
+          held it longest and the number of lock time outs.
+
+        The undo log of a transaction holds the segments also in the transaction, if this segment is the coordinator,
+        followed by the previous state of each entry changed.
          */
         static final int LOCK = 0;
+        static final int LOCK_PROCESS = 4;
+        static final int SEQUENCE = 8;
+        static final int SIZE = 16;
+        static final int INDEXED_FOR = 20;
+        static final int INACTIVE = -1;
+        static final int UNDO_TRANSACTION = 24;
+        static final int COMMITTED_TRANSACTION = 32;
+        static final int UNDO_COORDINATOR = 40;
+        static final int UNDO_LENGTH = 44;
+        static final int UNDO_HOLDER = 48;
+        static final int SWEEP_POSITION = 52;
+        static final int CLOCK_HAND = 56;
+        static final int LOCK_ACQUIRED = 64;
+        static final int LOCK_CONTENDED = 72;
+        static final int LOCK_WAIT_NS = 80;
+        static final int LOCK_HOLD_NS = 88;
+        static final int LOCK_MAX_WAIT_NS = 96;
+        static final int LOCK_MAX_HOLD_NS = 104;
+        static final int LOCK_MAX_HOLD_PROCESS = 112;
+        static final int LOCK_MAX_HOLD_THREAD = 116;
+        static final int LOCK_TIMEOUTS = 120;
+        static final int OPTIMISTIC_READ_ATTEMPTS = 64;
+        static final int WARM_UP_PAGE_SIZE = 4096;
+        static final long FLUSH_CHUNK = 1 << 30;
+        // the slots checked for expired entries per lock.
+        static final int SWEEP_CHUNK = 1024;
+        // check for interruption every 256 pages.
+        static final int WARM_UP_CHECK_MASK = 255;
 
         private final NativeBytes bytes;
         private final MultiStoreBytes tmpBytes = new MultiStoreBytes();
+        private final ThreadLocal<OptimisticReader> readers = new ThreadLocal<OptimisticReader>();
+        private final MultiStoreBytes storedKeyBytes = new MultiStoreBytes();
+        private final MultiStoreBytes journalBytes = new MultiStoreBytes();
         private final HashPosMultiMap hashLookup;
         private final SingleThreadedDirectBitSet freeList;
+        private final SingleThreadedDirectBitSet[] dirtyLists;
+        private final SingleThreadedDirectBitSet deletedList;
+        // set without the lock by optimistic readers, so updated atomically.
+        private final ATSDirectBitSet referenced;
+        private final IntIntMultiMap[] indexLookups;
+        // the field each entry was indexed by, so it can be removed from the index.
+        private final NativeBytes[] indexedFields;
+        // entries added by acquire, whose values are written after, so they are indexed when next searched.
+        private final SingleThreadedDirectBitSet unindexedList;
+        // copies of the entries evicted while locked, passed to the listener once unlocked.
+        private final List<FlyweightEntry> evicted = new ArrayList<FlyweightEntry>();
+        private final NativeBytes undoBytes;
         private final long entriesOffset;
+        private final int segmentNum;
         private int nextSet = 0;
-
-        Segment(NativeBytes bytes) {
+        private boolean writing = false;
+        // the thread in this process holding the lock, as lang counts a re-entry without reporting it as taken.
+        private volatile Thread holder;
+        // changed since last forced to disk.
+        private volatile boolean dirty = false;
+        // views of the segment to force to disk, mapped on the first flush.
+        private MappedByteBuffer[] flushBuffers;
+        // for metrics, while the lock is held.
+        private long lockedAt;
+        private int keysCompared;
+        // applying changes from another replica, which are not sent back.
+        private boolean replicating = false;
+
+        Segment(NativeBytes bytes, int segmentNum) {
             this.bytes = bytes;
-            long start = bytes.startAddr() + SharedHashMapBuilder.SEGMENT_HEADER;
+            this.segmentNum = segmentNum;
+            long start = bytes.startAddr() + segmentHeaderSize();
             long size = Maths.nextPower2(entriesPerSegment * 12, 16 * 8);
             NativeBytes iimmapBytes = new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + size, null);
-            iimmapBytes.load();
-            hashLookup = new IntIntMultiMap(iimmapBytes);
+            hashLookup = fingerprintIndex
+                    ? new FingerprintMultiMap(iimmapBytes, (int) entriesPerSegment)
+                    : new IntIntMultiMap(iimmapBytes);
             start += size;
-            NativeBytes bsBytes = new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + bitSetSizeInBytes, null);
-//            bsBytes.load();
-            freeList = new SingleThreadedDirectBitSet(bsBytes);
-            start += bitSetSizeInBytes * (1 + replicas);
+            freeList = bitSet(start);
+            start += bitSetSizeInBytes;
+            dirtyLists = new SingleThreadedDirectBitSet[replicas];
+            for (int i = 0; i < replicas; i++) {
+                dirtyLists[i] = bitSet(start);
+                start += bitSetSizeInBytes;
+            }
+            if (replicas > 0) {
+                deletedList = bitSet(start);
+                start += bitSetSizeInBytes;
+            } else {
+                deletedList = null;
+            }
+            if (evictWhenFull) {
+                NativeBytes bsBytes = new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + bitSetSizeInBytes, null);
+                referenced = new ATSDirectBitSet(bsBytes);
+                start += bitSetSizeInBytes;
+            } else {
+                referenced = null;
+            }
+            if (indexExtractors.length > 0) {
+                unindexedList = bitSet(start);
+                start += bitSetSizeInBytes;
+            } else {
+                unindexedList = null;
+            }
+            indexLookups = new IntIntMultiMap[indexExtractors.length];
+            indexedFields = new NativeBytes[indexExtractors.length];
+            for (int i = 0; i < indexExtractors.length; i++) {
+                indexLookups[i] = new IntIntMultiMap(new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + size, null));
+                start += size;
+                indexedFields[i] = new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + entriesPerSegment * 8, null);
+                start += entriesPerSegment * 8;
+            }
             entriesOffset = start - bytes.startAddr();
-            assert bytes.capacity() >= entriesOffset + entriesPerSegment * entrySize;
+            start += entriesPerSegment * entrySize;
+            undoBytes = undoLogSize == 0 ? null
+                    : new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + undoLogSize, null);
+            assert bytes.capacity() >= entriesOffset + entriesPerSegment * entrySize + undoLogSize;
         }
 
-        void lock() throws IllegalStateException {
-            while (true) {
-                boolean success = bytes.tryLockNanosInt(LOCK, lockTimeOutNS);
-                if (success) return;
-                if (Thread.currentThread().isInterrupted()) {
-                    throw new IllegalStateException(new InterruptedException("Unable to obtain lock, interrupted"));
-                } else {
-                    errorListener.onLockTimeout(bytes.threadIdForLockInt(LOCK));
-                    bytes.resetLockInt(LOCK);
-                }
+        /**
+         * Read each page, from the start of the index to the end of the index, the free lists or the
+         * entries, so later accesses don't wait for page faults.  Stops early if interrupted.
+         */
+        void warmUp(SharedMapWarmUp warmUp) {
+            long start = segmentHeaderSize();
+            long end = warmUp == SharedMapWarmUp.INDEX_IN_BACKGROUND
+                    ? start + Maths.nextPower2(entriesPerSegment * 12, 16 * 8)
+                    : warmUp == SharedMapWarmUp.INDEX ? entriesOffset : entriesOffset + entriesPerSegment * entrySize;
+            int pages = 0;
+            for (long offset = start; offset < end; offset += WARM_UP_PAGE_SIZE) {
+                // a volatile read so it isn't optimised away.
+                bytes.readVolatileInt(offset);
+                if ((++pages & WARM_UP_CHECK_MASK) == 0 && Thread.currentThread().isInterrupted())
+                    return;
             }
         }
 
-        void unlock() {
-            try {
-                bytes.unlockInt(LOCK);
-            } catch (IllegalMonitorStateException e) {
-                errorListener.errorOnUnlock(e);
-            }
+        /**
+         * Called with the lock held, starts logging the previous state of entries for a transaction.
+         */
+        void startUndo(long transactionId, int coordinator, int[] participants) {
+            undoBytes.position(0);
+            checkUndoRemaining(4 + 4 * participants.length);
+            undoBytes.writeInt(participants.length);
+            for (int participant : participants)
+                undoBytes.writeInt(participant);
+            bytes.writeInt(UNDO_COORDINATOR, coordinator);
+            bytes.writeInt(UNDO_HOLDER, bytes.threadIdForLockInt(LOCK));
+            bytes.writeInt(UNDO_LENGTH, (int) undoBytes.position());
+            bytes.writeOrderedLong(UNDO_TRANSACTION, transactionId);
         }
 
+        private void checkUndoRemaining(long needed) {
+            if (needed > undoBytes.remaining())
+                throw new IllegalArgumentException("Transaction too large for an undo log of " + undoLogSize + " bytes");
+        }
 
         /**
-         * used to acquire and object of type V from the map
-         *
-         * @param hash2 the hash code of the object to acquire
+         * Called with the lock held, logs the current state of the entry for this key before it is changed.
          */
-        V acquire(DirectBytes keyBytes, V value, int hash2, boolean create) {
-            lock();
-            try {
-                hash2 = hashLookup.startSearch(hash2);
-                while (true) {
-                    int pos = hashLookup.nextPos();
-                    if (pos < 0) {
-                        return create ? acquireEntry(keyBytes, value, hash2) : null;
-
-                    } else {
-                        long offset = entriesOffset + pos * entrySize;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize);
-                        long start0 = System.nanoTime();
-                        boolean miss = !keyEquals(keyBytes, tmpBytes);
-                        long time0 = System.nanoTime() - start0;
-                        if (time0 > 1e6)
-                            System.out.println("startsWith took " + time0 / 100000 / 10.0 + " ms.");
-                        if (miss)
-                            continue;
-                        long keyLength = align(keyBytes.remaining() + tmpBytes.position()); // includes the stop bit length.
-                        tmpBytes.position(keyLength);
-                        return readObjectUsing(value, offset + keyLength);
-                    }
+        void logUndo(DirectBytes keyBytes, long hash) {
+            long valueStart = -1, valueLength = 0;
+            long hash2 = hashLookup.startSearch(hash2(hash));
+            for (int pos; (pos = hashLookup.nextPos()) >= 0; ) {
+                int slots = readEntry(pos);
+                if (!keyEquals(keyBytes, tmpBytes))
+                    continue;
+                if (!isDeleted(pos) && !hasExpired(pos, slots)) {
+                    valueStart = align(tmpBytes.position() + keyBytes.remaining());
+                    valueLength = tmpBytes.limit() - valueStart;
                 }
-            } finally {
-                unlock();
+                break;
             }
+            long keyLength = keyBytes.remaining();
+            undoBytes.position(bytes.readInt(UNDO_LENGTH));
+            checkUndoRemaining(1 + stopBitLength(keyLength) + keyLength + stopBitLength(valueLength) + valueLength);
+            undoBytes.writeByte(valueStart < 0 ? UNDO_ABSENT : UNDO_PRESENT);
+            undoBytes.writeStopBit(keyLength);
+            undoBytes.write(keyBytes, keyBytes.position(), keyLength);
+            if (valueStart >= 0) {
+                undoBytes.writeStopBit(valueLength);
+                undoBytes.write(tmpBytes, valueStart, valueLength);
+            }
+            bytes.writeOrderedInt(UNDO_LENGTH, (int) undoBytes.position());
         }
 
-        long align(long num) {
-            return (num + 3) & ~3;
-        }
-
-        V acquireEntry(DirectBytes keyBytes, V value, int hash2) {
-            int pos = nextFree();
-            long offset = entriesOffset + pos * entrySize;
-            tmpBytes.storePositionAndSize(bytes, offset, entrySize);
-            long keyLength = keyBytes.remaining();
-            tmpBytes.writeStopBit(keyLength);
-            tmpBytes.write(keyBytes);
-            tmpBytes.position(align(tmpBytes.position()));
-            tmpBytes.zeroOut(tmpBytes.position(), tmpBytes.limit());
-            V v = readObjectUsing(value, offset + tmpBytes.position());
-            // add to index if successful.
-            hashLookup.put(hash2, pos);
-            return v;
+        /**
+         * Called with the lock held on the coordinator, the point at which the transaction is committed.
+         */
+        void commitUndo(long transactionId) {
+            bytes.writeOrderedLong(COMMITTED_TRANSACTION, transactionId);
         }
 
-        void putEntry(DirectBytes keyBytes, V value, int hash2) {
-            int pos = nextFree();
-            long offset = entriesOffset + pos * entrySize;
-            tmpBytes.storePositionAndSize(bytes, offset, entrySize);
-            long keyLength = keyBytes.remaining();
-            tmpBytes.writeStopBit(keyLength);
-            tmpBytes.write(keyBytes);
-            tmpBytes.position(align(tmpBytes.position()));
-            appendInstance(keyBytes, value);
-            // add to index if successful.
-            hashLookup.put(hash2, pos);
+        void endUndo() {
+            bytes.writeInt(UNDO_LENGTH, 0);
+            bytes.writeOrderedLong(UNDO_TRANSACTION, 0);
         }
 
-        int nextFree() {
-            int ret = (int) freeList.setNFrom(nextSet, 1);
-            if (ret == DirectBitSet.NOT_FOUND) {
-                ret = (int) freeList.setNFrom(0, 1);
-                if (ret == DirectBitSet.NOT_FOUND)
-                    throw new IllegalStateException("Segment is full, no free entries found");
+        /**
+         * Called with the lock held, restores the entries logged in reverse order and ends the transaction.
+         */
+        void rollbackUndo() {
+            int length = bytes.readInt(UNDO_LENGTH);
+            undoBytes.position(0);
+            undoBytes.position(4 + 4 * undoBytes.readInt());
+            List<Long> records = new ArrayList<Long>();
+            while (undoBytes.position() < length) {
+                records.add(undoBytes.position());
+                int type = undoBytes.readByte();
+                skipBytes(undoBytes);
+                if (type == UNDO_PRESENT)
+                    skipBytes(undoBytes);
             }
-            nextSet = ret + 1;
-            return ret;
+            for (int i = records.size() - 1; i >= 0; i--) {
+                undoBytes.position(records.get(i));
+                int type = undoBytes.readByte();
+                DirectBytes keyBytes = readBytes(undoBytes, acquireBytes());
+                long hash = longHashCode(keyBytes);
+                if (type == UNDO_PRESENT)
+                    put(keyBytes, readBytes(undoBytes, acquireValueBytes()), hash, true, false);
+                else
+                    remove(keyBytes, null, hash);
+            }
+            endUndo();
         }
 
         /**
-         * readObjectUsing - the "using" part means, reuse this object if possible.
-         *
-         * @param value  null - creates an object on demand.  It shouldn't be null in most examples, otherwise it will reuse this object
+         * Called on locking a segment left part way through a transaction by a holder which died.
          */
-        @SuppressWarnings("unchecked")
+        void recoverTransaction() {
+            long transactionId = bytes.readLong(UNDO_TRANSACTION);
+            int coordinatorNum = bytes.readInt(UNDO_COORDINATOR);
+            if (coordinatorNum == segmentNum) {
+                if (bytes.readLong(COMMITTED_TRANSACTION) != transactionId) {
+                    // roll back the participants first, so none is left to find the transaction undecided.
+                    undoBytes.position(0);
+                    int participants = undoBytes.readInt();
+                    for (int i = 0; i < participants; i++) {
+                        undoBytes.position(4 + 4 * i);
+                        recoverParticipant(undoBytes.readInt(), transactionId);
+                    }
+                    rollbackUndo();
+                }
+                endUndo();
+                return;
+            }
+            // the coordinator only ends the transaction before this one if it was committed.
+            Segment coordinator = currentSegments()[coordinatorNum];
+            if (coordinator.bytes.readVolatileLong(UNDO_TRANSACTION) == transactionId
+                    && coordinator.bytes.readVolatileLong(COMMITTED_TRANSACTION) != transactionId)
+                rollbackUndo();
+            else
+                endUndo();
+        }
+
+        private void recoverParticipant(int participantNum, long transactionId) {
+            Segment participant = currentSegments()[participantNum];
+            if (participant.bytes.readVolatileLong(UNDO_TRANSACTION) != transactionId)
+                return;
+            // the lock is still held by the holder which died.
+            int lockValue = participant.bytes.readVolatileInt(LOCK);
+            if (lockValue != 0 && participant.bytes.threadIdForLockInt(LOCK) == bytes.readInt(UNDO_HOLDER))
+                participant.bytes.compareAndSwapInt(LOCK, lockValue, 0);
+            // recovers the transaction on locking.
+            participant.lock();
+            participant.unlock();
+        }
+
+        private SingleThreadedDirectBitSet bitSet(long start) {
+            NativeBytes bsBytes = new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + bitSetSizeInBytes, null);
+            return new SingleThreadedDirectBitSet(bsBytes);
+        }
+
+        void lock() throws IllegalStateException {
+            checkWritable();
+            boolean timed = metrics != null || lockStatistics;
+            long start = timed ? System.nanoTime() : 0;
+            boolean contended = false;
+            int timeouts = 0;
+            // re-entered by this thread, e.g. from a compute function, so the outer hold is still changing it.
+            int lock = bytes.readInt(LOCK);
+            if (holder == Thread.currentThread() && lock != 0) {
+                if (lock >>> 24 == 255)
+                    throw new IllegalStateException("Segment " + segmentNum + " re-entered 255 times without an unlock");
+                bytes.writeOrderedInt(LOCK, lock + (1 << 24));
+                return;
+            }
+            while (true) {
+                boolean success = bytes.tryLockInt(LOCK);
+                if (!success) {
+                    contended = true;
+                    success = ProcessLocks.tryLockContended(bytes, LOCK, LOCK_PROCESS, lockTimeOutNS,
+                            "segment " + segmentNum);
+                }
+                if (success) {
+                    holder = Thread.currentThread();
+                    bytes.writeOrderedInt(LOCK_PROCESS, ProcessIds.PROCESS_ID);
+                    keysCompared = 0;
+                    if (timed) {
+                        lockedAt = System.nanoTime();
+                        if (metrics != null)
+                            metrics.onLockAcquired(segmentNum, lockedAt - start);
+                        if (lockStatistics)
+                            recordLockAcquired(contended ? lockedAt - start : 0, contended, timeouts);
+                    }
+                    long sequence = bytes.readLong(SEQUENCE);
+                    // the previous holder died part way through a change.
+                    if ((sequence & 1) != 0)
+                        bytes.writeOrderedLong(SEQUENCE, sequence + 1);
+                    // or part way through a transaction.
+                    if (undoBytes != null && bytes.readVolatileLong(UNDO_TRANSACTION) != 0)
+                        recoverTransaction();
+                    return;
+                }
+                ProcessLocks.lockTimedOut(bytes, LOCK, LOCK_PROCESS, errorListener);
+                timeouts++;
+            }
+        }
+
+        /**
+         * Called with the lock held, so plain writes are enough.
+         */
+        private void recordLockAcquired(long waitNanos, boolean contended, int timeouts) {
+            bytes.writeLong(LOCK_ACQUIRED, bytes.readLong(LOCK_ACQUIRED) + 1);
+            if (!contended)
+                return;
+            bytes.writeLong(LOCK_CONTENDED, bytes.readLong(LOCK_CONTENDED) + 1);
+            bytes.writeLong(LOCK_WAIT_NS, bytes.readLong(LOCK_WAIT_NS) + waitNanos);
+            if (waitNanos > bytes.readLong(LOCK_MAX_WAIT_NS))
+                bytes.writeLong(LOCK_MAX_WAIT_NS, waitNanos);
+            if (timeouts > 0)
+                bytes.writeInt(LOCK_TIMEOUTS, bytes.readInt(LOCK_TIMEOUTS) + timeouts);
+        }
+
+        private void recordLockReleased(long holdNanos) {
+            bytes.writeLong(LOCK_HOLD_NS, bytes.readLong(LOCK_HOLD_NS) + holdNanos);
+            if (holdNanos > bytes.readLong(LOCK_MAX_HOLD_NS)) {
+                bytes.writeLong(LOCK_MAX_HOLD_NS, holdNanos);
+                bytes.writeInt(LOCK_MAX_HOLD_PROCESS, ProcessIds.PROCESS_ID);
+                bytes.writeInt(LOCK_MAX_HOLD_THREAD, (int) Thread.currentThread().getId());
+            }
+        }
+
+        SegmentLockStatistics lockStatistics() {
+            return new SegmentLockStatistics(segmentNum,
+                    bytes.readVolatileLong(LOCK_ACQUIRED), bytes.readVolatileLong(LOCK_CONTENDED),
+                    bytes.readVolatileLong(LOCK_WAIT_NS), bytes.readVolatileLong(LOCK_HOLD_NS),
+                    bytes.readVolatileLong(LOCK_MAX_WAIT_NS), bytes.readVolatileLong(LOCK_MAX_HOLD_NS),
+                    bytes.readVolatileInt(LOCK_MAX_HOLD_PROCESS), bytes.readVolatileInt(LOCK_MAX_HOLD_THREAD),
+                    bytes.readVolatileInt(LOCK_TIMEOUTS));
+        }
+
+        void unlock() {
+            // the last unlock of a re-entrant lock ends the outermost hold, and any change made while held.
+            boolean lastUnlock = bytes.readInt(LOCK) >>> 24 == 1;
+            boolean changed = writing && lastUnlock;
+            List<FlyweightEntry> evictedEntries = null;
+            if (lastUnlock) {
+                if (!evicted.isEmpty()) {
+                    evictedEntries = new ArrayList<FlyweightEntry>(evicted);
+                    evicted.clear();
+                }
+                if (metrics != null || lockStatistics) {
+                    long heldNanos = System.nanoTime() - lockedAt;
+                    if (metrics != null)
+                        metrics.onLockReleased(segmentNum, heldNanos, keysCompared);
+                    if (lockStatistics)
+                        recordLockReleased(heldNanos);
+                }
+                if (writing) {
+                    writing = false;
+                    bytes.writeOrderedLong(SEQUENCE, bytes.readLong(SEQUENCE) + 1);
+                    if (flushFile != null)
+                        dirty = true;
+                }
+                bytes.writeOrderedInt(LOCK_PROCESS, 0);
+                holder = null;
+            }
+            try {
+                bytes.unlockInt(LOCK);
+            } catch (IllegalMonitorStateException e) {
+                errorListener.errorOnUnlock(e);
+            }
+            // forced after the lock is released, so others can use the segment meanwhile.
+            if (changed && durability == SharedMapDurability.SYNC)
+                commitChange();
+            // outside the lock, so the listener sees the change which evicted them and can use the map.
+            if (evictedEntries != null)
+                for (FlyweightEntry entry : evictedEntries)
+                    evictionListener.onEvict(entry.key, entry.value);
+        }
+
+        /**
+         * Force the segment to disk if it has changed since it was last flushed.
+         */
+        synchronized void flush() {
+            if (!dirty)
+                return;
+            // cleared first, so a change made while forcing is flushed next time.
+            dirty = false;
+            if (flushBuffers == null)
+                flushBuffers = mapFlushBuffers();
+            for (MappedByteBuffer buffer : flushBuffers)
+                buffer.force();
+        }
+
+        private MappedByteBuffer[] mapFlushBuffers() {
+            long size = segmentSize();
+            long position = SharedHashMapBuilder.HEADER_SIZE + segmentNum * size;
+            // a MappedByteBuffer is limited to 2 GB.
+            MappedByteBuffer[] buffers = new MappedByteBuffer[(int) ((size + FLUSH_CHUNK - 1) / FLUSH_CHUNK)];
+            try {
+                for (int i = 0; i < buffers.length; i++) {
+                    long offset = (long) i * FLUSH_CHUNK;
+                    buffers[i] = flushFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                            position + offset, Math.min(FLUSH_CHUNK, size - offset));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to map segment " + segmentNum + " of " + file, e);
+            }
+            return buffers;
+        }
+
+        /**
+         * Drop the views used to flush.  There is no public way to unmap them, so they are unmapped when collected.
+         */
+        synchronized void releaseFlushBuffers() {
+            flushBuffers = null;
+        }
+
+        /**
+         * @return the number of segments the index was built for, or INACTIVE
+         */
+        int indexedFor() {
+            int count = bytes.readVolatileInt(INDEXED_FOR);
+            return count == 0 ? initialSegments : count;
+        }
+
+        void indexedFor(int count) {
+            bytes.writeOrderedInt(INDEXED_FOR, count);
+        }
+
+        /**
+         * @return whether a key with this hash belongs in this segment.
+         */
+        boolean owns(long hash) {
+            int count = indexedFor();
+            return count != INACTIVE && (hash & (count - 1)) == segmentNum;
+        }
+
+        /**
+         * @return the hash used in the index for a key with this hash.
+         */
+        long hash2(long hash) {
+            return hash / indexedFor();
+        }
+
+        /**
+         * Called with the lock held, before the first change, so optimistic readers will retry.
+         */
+        void startWrite() {
+            if (writing)
+                return;
+            long sequence = bytes.readLong(SEQUENCE);
+            // a full barrier so the sequence is visible before any of the changes.
+            bytes.compareAndSwapLong(SEQUENCE, sequence, sequence + 1);
+            writing = true;
+        }
+
+        /**
+         * Lookup without taking the lock, retrying if the sequence shows a change occurred while reading,
+         * falling back to taking the lock if this keeps happening.
+         */
+        V get(DirectBytes keyBytes, V value, long hash) {
+            OptimisticReader reader = reader();
+            MultiStoreBytes entry = reader.entry;
+            long deadline = 0;
+            for (int i = 0; i < OPTIMISTIC_READ_ATTEMPTS || readOnly; i++) {
+                if (i >= OPTIMISTIC_READ_ATTEMPTS)
+                    deadline = pauseReadOnly(deadline);
+                long sequence = bytes.readVolatileLong(SEQUENCE);
+                if ((sequence & 1) != 0)
+                    continue;
+                // the segment has been split, the key might have moved.
+                if (!owns(hash))
+                    break;
+                long valueOffset;
+                DirectBytes valueBytes = null;
+                try {
+                    valueOffset = findOptimistically(reader, keyBytes, hash2(hash));
+                    if (valueOffset >= 0 && !(value instanceof Byteable)) {
+                        // copy the value so it can be deserialized after checking the sequence.
+                        valueBytes = acquireValueBytes();
+                        valueBytes.write(entry, entry.position(), entry.remaining());
+                        valueBytes.flip();
+                    }
+                } catch (RuntimeException e) {
+                    // read an inconsistent entry
+                    if (bytes.readVolatileLong(SEQUENCE) == sequence)
+                        throw e;
+                    continue;
+                }
+                if (bytes.readVolatileLong(SEQUENCE) != sequence)
+                    continue;
+                if (metrics != null)
+                    metrics.onOptimisticRead(segmentNum, reader.keysCompared, i + 1);
+                if (valueOffset < 0)
+                    return null;
+                return valueBytes == null ? readObjectUsing(value, valueOffset) : readObject(value, valueBytes);
+            }
+            return lookupLocked(keyBytes, value, hash, false);
+        }
+
+        boolean containsKey(DirectBytes keyBytes, long hash) {
+            OptimisticReader reader = reader();
+            long deadline = 0;
+            for (int i = 0; i < OPTIMISTIC_READ_ATTEMPTS || readOnly; i++) {
+                if (i >= OPTIMISTIC_READ_ATTEMPTS)
+                    deadline = pauseReadOnly(deadline);
+                long sequence = bytes.readVolatileLong(SEQUENCE);
+                if ((sequence & 1) != 0)
+                    continue;
+                if (!owns(hash))
+                    break;
+                boolean found;
+                try {
+                    found = findOptimistically(reader, keyBytes, hash2(hash)) >= 0;
+                } catch (RuntimeException e) {
+                    if (bytes.readVolatileLong(SEQUENCE) == sequence)
+                        throw e;
+                    continue;
+                }
+                if (bytes.readVolatileLong(SEQUENCE) == sequence) {
+                    if (metrics != null)
+                        metrics.onOptimisticRead(segmentNum, reader.keysCompared, i + 1);
+                    return found;
+                }
+            }
+            return lookupLocked(keyBytes, null, hash, false) != null;
+        }
+
+        /**
+         * Called by a read only map, which can't take the lock, between optimistic reads once they have failed
+         * OPTIMISTIC_READ_ATTEMPTS times.
+         *
+         * @return the deadline for a consistent read.
+         */
+        private long pauseReadOnly(long deadline) {
+            long now = System.nanoTime();
+            if (deadline == 0)
+                return now + lockTimeOutNS;
+            if (now > deadline)
+                throw new IllegalStateException("Unable to read segment " + segmentNum + " of " + file
+                        + " without a change in progress after " + lockTimeOutNS / 1000000 + " ms");
+            Thread.yield();
+            return deadline;
+        }
+
+        private OptimisticReader reader() {
+            OptimisticReader reader = readers.get();
+            if (reader == null)
+                readers.set(reader = new OptimisticReader());
+            return reader;
+        }
+
+        /**
+         * @return the offset of the value with entry positioned at it, or -1 if not found.
+         */
+        private long findOptimistically(OptimisticReader reader, DirectBytes keyBytes, long hash2) {
+            MultiStoreBytes entry = reader.entry;
+            reader.keysCompared = 0;
+            for (long state = hashLookup.nextPos(hash2, 0); state >= 0; state = hashLookup.nextPos(hash2, state)) {
+                int pos = (int) state;
+                if (pos < 0 || pos >= entriesPerSegment)
+                    throw new IllegalStateException("Corrupt position " + pos);
+                int slots = readEntry(entry, pos);
+                reader.keysCompared++;
+                if (!sameKey(keyBytes, entry))
+                    continue;
+                // an expired entry is removed by the next thread to lock the segment.
+                if (isDeleted(pos) || hasExpired(pos, slots))
+                    return -1;
+                markReferenced(pos);
+                skipKey(entry, keyBytes);
+                return offsetOf(pos) + entry.position();
+            }
+            return -1;
+        }
+
+
+        /**
+         * used to acquire and object of type V from the map, called with the lock held.
+         *
+         * @param hash the hash code of the object to acquire
+         */
+        V acquire(DirectBytes keyBytes, V value, long hash, boolean create) {
+            long hash2 = hashLookup.startSearch(hash2(hash));
+            while (true) {
+                int pos = hashLookup.nextPos();
+                if (pos < 0) {
+                    return create ? acquireEntry(keyBytes, value, hash2) : null;
+
+                } else {
+                    long offset = offsetOf(pos);
+                    int slots = readEntry(pos);
+                    if (!keyEquals(keyBytes, tmpBytes))
+                        continue;
+                    if (isDeleted(pos) || removeIfExpired(pos, slots, hash2)) {
+                        if (!create)
+                            return null;
+                        startWrite();
+                        if (isDeleted(pos))
+                            freeEntry(pos, slots, hash2);
+                        return acquireEntry(keyBytes, value, hash2);
+                    }
+                    markReferenced(pos);
+                    skipKey(keyBytes);
+                    return readObjectUsing(value, offset + tmpBytes.position());
+                }
+            }
+        }
+
+        long sequence() {
+            return bytes.readVolatileLong(SEQUENCE);
+        }
+
+        /**
+         * Called with the lock held, or by an optimistic reader which checks the sequence afterwards.
+         * <p/>
+         * If the segment has changed, entries are found from the next slot which starts one, so entries added,
+         * moved or removed since may or may not be seen, but entries are not visited more than once.
+         *
+         * @param entry         to read entries with.
+         * @param from          the slot to start from.
+         * @param knownSequence the sequence when from was known to be the start of an entry or after the last entry.
+         * @return the position of the first entry at or after from, or -1 if there are no more.
+         */
+        int nextEntryPos(MultiStoreBytes entry, int from, long knownSequence) {
+            if (from >= entriesPerSegment)
+                return -1;
+            long pos = freeList.nextSetBit(from);
+            if (from > 0 && knownSequence != sequence()) {
+                // from might now be part way through an entry.
+                while (pos >= 0 && !isEntryStart(entry, (int) pos))
+                    pos = freeList.nextSetBit(pos + 1);
+            }
+            while (pos >= 0 && (isDeleted(pos) || hasExpired((int) pos, readEntry(entry, (int) pos))))
+                pos = freeList.nextSetBit(pos + Math.max(1, readEntry(entry, (int) pos)));
+            return (int) pos;
+        }
+
+        /**
+         * @return whether an entry starts at pos, as only then does the index have pos for the hash of the key there.
+         */
+        boolean isEntryStart(MultiStoreBytes entry, int pos) {
+            long offset = offsetOf(pos);
+            long limit = (entriesPerSegment - pos) * entrySize;
+            entry.storePositionAndSize(bytes, offset, limit);
+            long slots = entry.readStopBit();
+            if (slots < 1 || slots > maxEntryOversizeFactor || pos + slots > entriesPerSegment)
+                return false;
+            if (entryTimeToLiveMS > 0)
+                entry.position(entry.position() + 8);
+            long keyLength = entry.readStopBit();
+            if (keyLength < 0 || entry.position() + keyLength > slots * entrySize)
+                return false;
+            entry.storePositionAndSize(bytes, offset + entry.position(), keyLength);
+            long hash2 = hash2(longHashCode(entry));
+            for (long state = hashLookup.nextPos(hash2, 0); state >= 0; state = hashLookup.nextPos(hash2, state))
+                if ((int) state == pos)
+                    return true;
+            return false;
+        }
+
+        /**
+         * @return the number of entries in this segment, as seen by any process.
+         */
+        int size() {
+            return bytes.readVolatileInt(SIZE);
+        }
+
+        /**
+         * Called with the lock held after startWrite()
+         */
+        void incrementSize(int delta) {
+            bytes.writeInt(SIZE, bytes.readInt(SIZE) + delta);
+        }
+
+        /**
+         * Reads the key and value of the entry at pos into entry, reusing its key and value where possible.
+         *
+         * @return the number of slots the entry spans.
+         */
+        @SuppressWarnings("unchecked")
+        int readEntry(MultiStoreBytes from, int pos, FlyweightEntry entry) {
+            int slots = readEntry(from, pos);
+            long keyLength = from.readStopBit();
+            long keyStart = from.position();
+            if (generatedKeyType) {
+                if (entry.key == null)
+                    entry.key = DataValueClasses.newInstance(kClass);
+                ((BytesMarshallable) entry.key).readMarshallable(from);
+            } else {
+                entry.key = from.readInstance(kClass, entry.key);
+            }
+            from.position(align(keyStart + keyLength));
+            if (entry.value == null && generatedValueType)
+                entry.value = DataValueClasses.newDirectReference(vClass);
+            if (entry.value instanceof Byteable)
+                ((Byteable) entry.value).bytes(bytes, offsetOf(pos) + from.position());
+            else
+                entry.value = readObject(entry.value, from);
+            return slots;
+        }
+
+        /**
+         * Remove the entry at pos, provided the segment hasn't changed since expectedSequence.
+         *
+         * @return whether the entry was removed.
+         */
+        boolean removeAt(int pos, long expectedSequence) {
+            lock();
+            try {
+                if (sequence() != expectedSequence)
+                    return false;
+                removeAt(pos);
+                return true;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Called with the lock held, removes the entry at pos hashing the key as stored.
+         */
+        void removeAt(int pos) {
+            long hash = hashOfKeyAt(pos);
+            int slots = readEntry(pos);
+            startWrite();
+            removeEntry(pos, slots, hash2(hash));
+        }
+
+        /**
+         * Called with the lock held after startWrite(). If the map has replicas, the entry is kept as deleted
+         * until the removal has been sent to each of them.
+         */
+        void removeEntry(int pos, int slots, long hash2) {
+            incrementSize(-1);
+            journal(pos, SharedMapChange.REMOVE);
+            if (deletedList != null && !replicating) {
+                unindex(pos);
+                deletedList.set(pos);
+                markDirty(pos);
+            } else {
+                freeEntry(pos, slots, hash2);
+            }
+        }
+
+        /**
+         * Called with the lock held after startWrite(), removes the entry from the index and frees its slots.
+         */
+        void freeEntry(int pos, int slots, long hash2) {
+            hashLookup.remove(hash2, pos);
+            // a removal kept for the replicas was unindexed when removed.
+            if (!isDeleted(pos))
+                unindex(pos);
+            freeSlots(pos, slots);
+        }
+
+        boolean isDeleted(long pos) {
+            return deletedList != null && deletedList.get(pos);
+        }
+
+        /**
+         * Called with the lock held after startWrite(), adds the entry at pos to each secondary index.
+         */
+        void index(int pos) {
+            if (unindexedList != null)
+                unindexedList.clear(pos);
+            for (int i = 0; i < indexLookups.length; i++) {
+                readEntry(pos);
+                long keyLength = tmpBytes.readStopBit();
+                tmpBytes.position(align(tmpBytes.position() + keyLength));
+                long field = indexExtractors[i].extract(tmpBytes);
+                indexedFields[i].writeLong((long) pos * 8, field);
+                indexLookups[i].put(field, pos);
+            }
+        }
+
+        /**
+         * Called with the lock held after startWrite(), removes the entry at pos from each secondary index,
+         * if it is there.
+         */
+        void unindex(int pos) {
+            if (unindexedList != null && unindexedList.get(pos)) {
+                unindexedList.clear(pos);
+                return;
+            }
+            for (int i = 0; i < indexLookups.length; i++)
+                indexLookups[i].remove(indexedFields[i].readLong((long) pos * 8), pos);
+        }
+
+        /**
+         * Called with the lock held, indexes the entries added by acquire, whose values have been written since.
+         */
+        void indexAcquired() {
+            long pos = unindexedList.nextSetBit(0);
+            if (pos < 0)
+                return;
+            startWrite();
+            for (; pos >= 0; pos = unindexedList.nextSetBit(pos + 1))
+                index((int) pos);
+        }
+
+        /**
+         * Called with the lock held, adds the live entries with this field to found.
+         */
+        void findByIndex(int index, long field, Map<K, V> found) {
+            lock();
+            try {
+                indexAcquired();
+                IntIntMultiMap lookup = indexLookups[index];
+                lookup.startSearch(field);
+                for (int pos; (pos = lookup.nextPos()) >= 0; ) {
+                    // the multi-map only keeps 32 bits of the field.
+                    if (indexedFields[index].readLong((long) pos * 8) != field || isDeleted(pos)
+                            || hasExpired(pos, readEntry(pos)))
+                        continue;
+                    FlyweightEntry entry = new FlyweightEntry();
+                    readEntry(tmpBytes, pos, entry);
+                    markReferenced(pos);
+                    found.put(entry.key, entry.value);
+                }
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Called with the lock held, so the records of a segment are in the order of its changes.
+         */
+        void journal(int pos, SharedMapChange change) {
+            if (journal == null)
+                return;
+            long keyHash = 0;
+            // hashed again, rather than passing the hash to every change, as only a map with a journal needs it.
+            if (pos >= 0) {
+                readEntry(journalBytes, pos);
+                long keyLength = journalBytes.readStopBit();
+                journalBytes.storePositionAndSize(bytes, offsetOf(pos) + journalBytes.position(), keyLength);
+                keyHash = longHashCode(journalBytes);
+            }
+            journal.append(segmentNum, pos, keyHash, change);
+        }
+
+        /**
+         * Called with the lock held, so the entry at pos will be sent to every replica.
+         */
+        void markDirty(int pos) {
+            if (replicating)
+                return;
+            for (SingleThreadedDirectBitSet dirtyList : dirtyLists)
+                dirtyList.set(pos);
+        }
+
+        boolean isDirty(int pos) {
+            for (SingleThreadedDirectBitSet dirtyList : dirtyLists)
+                if (dirtyList.get(pos))
+                    return true;
+            return false;
+        }
+
+        /**
+         * Called with the lock held, marks every entry to be sent to this replica.
+         */
+        void markAllDirty(int replica) {
+            for (long pos = freeList.nextSetBit(0); pos >= 0; pos = freeList.nextSetBit(pos + readEntry((int) pos)))
+                dirtyLists[replica].set(pos);
+        }
+
+        /**
+         * Called with the lock held, writes as many of the entries changed since they were last sent to this replica
+         * as fit.  An entry changed again after this is marked again, so it is sent again.
+         *
+         * @return the number of entries written.
+         */
+        int writeChanges(int replica, Bytes out, int[] sent) {
+            SingleThreadedDirectBitSet dirtyList = dirtyLists[replica];
+            int count = 0;
+            for (long pos = dirtyList.nextSetBit(0); pos >= 0 && count < sent.length; pos = dirtyList.nextSetBit(pos + 1)) {
+                int p = (int) pos;
+                readEntry(p);
+                long keyLength = tmpBytes.readStopBit();
+                long keyStart = tmpBytes.position();
+                long valueStart = align(keyStart + keyLength);
+                boolean deleted = isDeleted(p);
+                long valueLength = deleted ? 0 : tmpBytes.limit() - valueStart;
+                if (out.remaining() < 1 + stopBitLength(keyLength) + keyLength + stopBitLength(valueLength) + valueLength)
+                    break;
+                out.writeByte(deleted ? REPLICATED_REMOVE : REPLICATED_PUT);
+                out.writeStopBit(keyLength);
+                out.write(tmpBytes, keyStart, keyLength);
+                if (!deleted) {
+                    out.writeStopBit(valueLength);
+                    out.write(tmpBytes, valueStart, valueLength);
+                }
+                dirtyList.clear(p);
+                sent[count++] = p;
+            }
+            return count;
+        }
+
+        /**
+         * Called with the lock held, frees the deleted entries sent which don't need to be sent to any replica.
+         */
+        void changesAcknowledged(int[] sent, int count) {
+            for (int i = 0; i < count; i++) {
+                int pos = sent[i];
+                // the slot may have been reused since, by a new entry or one removed but not sent yet.
+                if (isDeleted(pos) && !isDirty(pos)) {
+                    long hash = hashOfKeyAt(pos);
+                    startWrite();
+                    freeEntry(pos, readEntry(pos), hash2(hash));
+                }
+            }
+        }
+
+        /**
+         * Called with the lock held, marks the entries sent to be sent again to this replica.
+         */
+        void changesNotSent(int replica, int[] sent, int count) {
+            for (int i = 0; i < count; i++) {
+                int pos = sent[i];
+                // the slots of an entry sent may have been freed or reused since.
+                if (freeList.get(pos) && isEntryStart(tmpBytes, pos))
+                    dirtyLists[replica].set(pos);
+            }
+        }
+
+        /**
+         * Called with the lock held after startWrite() when the segment is full, frees the deleted entries not yet
+         * sent to every replica, so a replica which isn't connected can't fill the segment.
+         *
+         * @return whether any were freed.
+         */
+        private boolean freeDeleted() {
+            boolean freed = false;
+            for (long pos = deletedList.nextSetBit(0); pos >= 0; pos = deletedList.nextSetBit(pos + 1)) {
+                int p = (int) pos;
+                long hash = hashOfKeyAt(p);
+                freeEntry(p, readEntry(p), hash2(hash));
+                freed = true;
+            }
+            if (freed)
+                LOGGER.warning("Segment " + segmentNum + " of " + file + " is full, so removals not yet sent to every replica are dropped");
+            return freed;
+        }
+
+        /**
+         * @return the hash of the key stored in the entry at pos.
+         */
+        long hashOfKeyAt(int pos) {
+            readEntry(pos);
+            long keyLength = tmpBytes.readStopBit();
+            storedKeyBytes.storePositionAndSize(bytes, offsetOf(pos) + tmpBytes.position(), keyLength);
+            return longHashCode(storedKeyBytes);
+        }
+
+        /**
+         * Called with the lock held on this segment and the child, moves the entries which belong in the child once
+         * there are segmentsAfter segments, and re-indexes the entries which remain.
+         * <p/>
+         * An entry is only freed here once the child has it, and not copied again if the child has it already, and
+         * the sizes are counted at the end, so if this is interrupted the split can be repeated to complete it.
+         */
+        void splitInto(Segment child, int segmentsAfter) {
+            startWrite();
+            child.startWrite();
+            int segmentsBefore = indexedFor();
+            for (long pos = freeList.nextSetBit(0); pos >= 0; ) {
+                int p = (int) pos;
+                long hash = hashOfKeyAt(p);
+                int slots = readEntry(p);
+                if ((hash & (segmentsAfter - 1)) != segmentNum) {
+                    // moved before this split was interrupted.
+                    if (!child.hasEntry(storedKeyBytes, hash / segmentsAfter))
+                        child.copyEntry(this, p, slots, hash / segmentsAfter);
+                    freeEntry(p, slots, hash / segmentsBefore);
+                }
+                pos = freeList.nextSetBit(p + slots);
+            }
+            child.countSize();
+            child.indexedFor(segmentsAfter);
+            reindex(segmentsAfter);
+        }
+
+        /**
+         * Called with the lock held after startWrite(), rebuilds the index of the entries for this many segments.
+         */
+        void reindex(int segments) {
+            hashLookup.clear();
+            for (long pos = freeList.nextSetBit(0); pos >= 0; ) {
+                int p = (int) pos;
+                long hash = hashOfKeyAt(p);
+                hashLookup.put(hash / segments, p);
+                pos = freeList.nextSetBit(p + readEntry(p));
+            }
+            countSize();
+            indexedFor(segments);
+        }
+
+        /**
+         * Called with the lock held after startWrite(), sets the size from the entries which haven't been removed.
+         */
+        void countSize() {
+            int size = 0;
+            for (long pos = freeList.nextSetBit(0); pos >= 0; ) {
+                int p = (int) pos;
+                if (!isDeleted(p))
+                    size++;
+                pos = freeList.nextSetBit(p + readEntry(p));
+            }
+            bytes.writeInt(SIZE, size);
+        }
+
+        /**
+         * Called with the lock held, whether there is an entry for this key, even one removed.
+         */
+        boolean hasEntry(Bytes keyBytes, long hash2) {
+            hashLookup.startSearch(hash2);
+            for (int pos; (pos = hashLookup.nextPos()) >= 0; ) {
+                readEntry(pos);
+                if (sameKey(keyBytes, tmpBytes))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Called with the lock held after startWrite(), adds a copy of an entry from another segment.
+         */
+        void copyEntry(Segment from, int fromPos, int slots, long hash2) {
+            int pos = nextFree(slots);
+            long length = (long) slots * entrySize;
+            tmpBytes.storePositionAndSize(bytes, offsetOf(pos), length);
+            from.tmpBytes.storePositionAndSize(from.bytes, from.offsetOf(fromPos), length);
+            tmpBytes.write(from.tmpBytes, 0, length);
+            hashLookup.put(hash2, pos);
+            for (int i = 0; i < dirtyLists.length; i++)
+                if (from.dirtyLists[i].get(fromPos))
+                    dirtyLists[i].set(pos);
+            if (from.isDeleted(fromPos))
+                deletedList.set(pos);
+            else
+                incrementSize(1);
+            if (referenced != null && from.referenced.get(fromPos))
+                referenced.set(pos);
+            if (unindexedList != null && from.unindexedList.get(fromPos)) {
+                unindexedList.set(pos);
+            } else if (!from.isDeleted(fromPos)) {
+                for (int i = 0; i < indexLookups.length; i++) {
+                    long field = from.indexedFields[i].readLong((long) fromPos * 8);
+                    indexedFields[i].writeLong((long) pos * 8, field);
+                    indexLookups[i].put(field, pos);
+                }
+            }
+        }
+
+        void clear() {
+            lock();
+            try {
+                startWrite();
+                if (deletedList != null) {
+                    // each entry is removed so the removal is sent to the replicas.
+                    for (long pos = freeList.nextSetBit(0); pos >= 0; pos = freeList.nextSetBit(pos + readEntry((int) pos))) {
+                        if (!isDeleted(pos)) {
+                            deletedList.set(pos);
+                            markDirty((int) pos);
+                            unindex((int) pos);
+                        }
+                    }
+                    bytes.writeInt(SIZE, 0);
+                    journal(-1, SharedMapChange.CLEAR);
+                    return;
+                }
+                hashLookup.clear();
+                for (IntIntMultiMap lookup : indexLookups)
+                    lookup.clear();
+                if (unindexedList != null)
+                    unindexedList.clear();
+                freeList.clear();
+                nextSet = 0;
+                bytes.writeInt(SIZE, 0);
+                journal(-1, SharedMapChange.CLEAR);
+            } finally {
+                unlock();
+            }
+        }
+
+        long align(long num) {
+            return (num + 3) & ~3;
+        }
+
+        long offsetOf(int pos) {
+            return entriesOffset + (long) pos * entrySize;
+        }
+
+        /**
+         * Points tmpBytes at the entry starting at pos, positioned after the slot count.
+         *
+         * @return the number of slots the entry spans.
+         */
+        int readEntry(int pos) {
+            return readEntry(tmpBytes, pos);
+        }
+
+        int readEntry(MultiStoreBytes entry, int pos) {
+            long offset = offsetOf(pos);
+            entry.storePositionAndSize(bytes, offset, entrySize);
+            long slots = entry.readStopBit();
+            if (slots > 1) {
+                if (slots > maxEntryOversizeFactor || pos + slots > entriesPerSegment)
+                    throw new IllegalStateException("Corrupt entry at " + pos + " of " + slots + " slots");
+                long position = entry.position();
+                entry.storePositionAndSize(bytes, offset, slots * entrySize);
+                entry.position(position);
+            }
+            if (entryTimeToLiveMS > 0)
+                entry.position(entry.position() + 8);
+            return (int) slots;
+        }
+
+        /**
+         * Moves the tmpBytes position from after the key length to the start of the value.
+         */
+        void skipKey(DirectBytes keyBytes) {
+            skipKey(tmpBytes, keyBytes);
+        }
+
+        void skipKey(MultiStoreBytes entry, DirectBytes keyBytes) {
+            entry.position(align(entry.position() + keyBytes.remaining()));
+        }
+
+        /**
+         * @return the number of slots an entry with this key and value needs.
+         */
+        int inSlots(long keyLength, long valueLength) {
+            long keySize = (entryTimeToLiveMS > 0 ? 8 : 0) + stopBitLength(keyLength) + keyLength;
+            int slots = 1;
+            while (true) {
+                long size = align(stopBitLength(slots) + keySize) + valueLength;
+                long needed = (size + entrySize - 1) / entrySize;
+                if (needed <= slots)
+                    return slots;
+                if (needed > maxEntryOversizeFactor)
+                    throw new IllegalArgumentException("Entry too large, requires " + size + " bytes, but the maximum is "
+                            + maxEntryOversizeFactor + " slots of " + entrySize + " bytes");
+                slots = (int) needed;
+            }
+        }
+
+        /**
+         * Writes the header and key of an entry at pos, leaving tmpBytes positioned at the start of the value.
+         */
+        void writeKey(int pos, int slots, DirectBytes keyBytes) {
+            tmpBytes.storePositionAndSize(bytes, offsetOf(pos), (long) slots * entrySize);
+            tmpBytes.writeStopBit(slots);
+            if (entryTimeToLiveMS > 0)
+                tmpBytes.writeLong(System.currentTimeMillis() + entryTimeToLiveMS);
+            long keyLength = keyBytes.remaining();
+            tmpBytes.writeStopBit(keyLength);
+            tmpBytes.write(keyBytes, keyBytes.position(), keyLength);
+            tmpBytes.position(align(tmpBytes.position()));
+        }
+
+        void writeEntry(int pos, int slots, DirectBytes keyBytes, DirectBytes valueBytes) {
+            writeKey(pos, slots, keyBytes);
+            if (valueBytes.remaining() > tmpBytes.remaining())
+                throw new IllegalArgumentException("Value too large for entry was " + valueBytes.remaining() + ", remaining: " + tmpBytes.remaining());
+            tmpBytes.write(valueBytes, valueBytes.position(), valueBytes.remaining());
+        }
+
+        V acquireEntry(DirectBytes keyBytes, V value, long hash2) {
+            long valueLength = value instanceof Byteable ? ((Byteable) value).maxSize() : 0;
+            int slots = inSlots(keyBytes.remaining(), valueLength);
+            startWrite();
+            int pos = nextFree(slots);
+            writeKey(pos, slots, keyBytes);
+            tmpBytes.zeroOut(tmpBytes.position(), tmpBytes.limit());
+            V v = readObjectUsing(value, offsetOf(pos) + tmpBytes.position());
+            // add to index if successful.
+            hashLookup.put(hash2, pos);
+            // the value is written by the caller, so it is indexed when the index is next searched.
+            if (unindexedList != null)
+                unindexedList.set(pos);
+            incrementSize(1);
+            markDirty(pos);
+            journal(pos, SharedMapChange.PUT);
+            return v;
+        }
+
+        void putEntry(DirectBytes keyBytes, DirectBytes valueBytes, long hash2) {
+            int slots = inSlots(keyBytes.remaining(), valueBytes.remaining());
+            startWrite();
+            int pos = nextFree(slots);
+            writeEntry(pos, slots, keyBytes, valueBytes);
+            // add to index if successful.
+            hashLookup.put(hash2, pos);
+            index(pos);
+            incrementSize(1);
+            markDirty(pos);
+            journal(pos, SharedMapChange.PUT);
+        }
+
+        /**
+         * Replaces the value of the entry at pos, growing or shrinking it in place where possible,
+         * otherwise moving it to a new run of slots.
+         */
+        void replaceEntry(int pos, int slots, DirectBytes keyBytes, DirectBytes valueBytes, long hash2) {
+            int newSlots = inSlots(keyBytes.remaining(), valueBytes.remaining());
+            startWrite();
+            if (newSlots < slots) {
+                freeSlots(pos + newSlots, slots - newSlots);
+
+            } else if (newSlots > slots && !growInPlace(pos, slots, newSlots)) {
+                // this entry mustn't be evicted to make room for its replacement.
+                int newPos = nextFree(newSlots, pos);
+                writeEntry(newPos, newSlots, keyBytes, valueBytes);
+                hashLookup.remove(hash2, pos);
+                hashLookup.put(hash2, newPos);
+                unindex(pos);
+                index(newPos);
+                freeSlots(pos, slots);
+                markDirty(newPos);
+                markReferenced(newPos);
+                journal(newPos, SharedMapChange.PUT);
+                return;
+            }
+            writeEntry(pos, newSlots, keyBytes, valueBytes);
+            unindex(pos);
+            index(pos);
+            markDirty(pos);
+            markReferenced(pos);
+            journal(pos, SharedMapChange.PUT);
+        }
+
+        boolean growInPlace(int pos, int slots, int newSlots) {
+            long end = pos + newSlots;
+            if (end > entriesPerSegment)
+                return false;
+            long nextUsed = freeList.nextSetBit(pos + slots);
+            if (nextUsed != DirectBitSet.NOT_FOUND && nextUsed < end)
+                return false;
+            freeList.set(pos + slots, end);
+            allocated(pos, newSlots);
+            return true;
+        }
+
+        void freeSlots(int pos, int slots) {
+            freeList.clear(pos, pos + slots);
+            for (SingleThreadedDirectBitSet dirtyList : dirtyLists)
+                dirtyList.clear(pos, pos + slots);
+            if (deletedList != null)
+                deletedList.clear(pos, pos + slots);
+            if (referenced != null)
+                referenced.clear(pos, pos + slots);
+            if (pos < nextSet)
+                nextSet = pos;
+        }
+
+        int nextFree(int slots) {
+            return nextFree(slots, -1);
+        }
+
+        /**
+         * Called with the lock held after startWrite(), allocates a run of free slots, evicting entries if the
+         * segment is full and entries are evicted when full.
+         *
+         * @param inUse the position of an entry which mustn't be evicted, or -1
+         */
+        int nextFree(int slots, int inUse) {
+            int ret = nextFreeFrom(nextSet, slots);
+            if (ret == DirectBitSet.NOT_FOUND) {
+                ret = nextFreeFrom(0, slots);
+                for (int victim; ret == DirectBitSet.NOT_FOUND && evictWhenFull && (victim = evictOne(inUse)) >= 0; )
+                    ret = nextFreeFrom(Math.max(0, victim - slots + 1), slots);
+                if (ret == DirectBitSet.NOT_FOUND && deletedList != null && freeDeleted())
+                    ret = nextFreeFrom(0, slots);
+                if (ret == DirectBitSet.NOT_FOUND)
+                    throw new IllegalStateException("Segment is full, no free entries found");
+            }
+            nextSet = ret + slots;
+            allocated(ret, slots);
+            return ret;
+        }
+
+        /**
+         * Called with the lock held, keeps the sweep position and the clock hand at the start of an entry,
+         * or a free slot, when slots from pos are allocated.
+         */
+        private void allocated(long pos, long slots) {
+            if (entryTimeToLiveMS > 0)
+                keepAtEntryStart(SWEEP_POSITION, pos, slots);
+            if (evictWhenFull)
+                keepAtEntryStart(CLOCK_HAND, pos, slots);
+        }
+
+        private void keepAtEntryStart(int offset, long pos, long slots) {
+            int position = bytes.readInt(offset);
+            if (position > pos && position < pos + slots)
+                bytes.writeInt(offset, (int) pos);
+        }
+
+        /**
+         * Marks the entry at pos as used since the clock hand passed it.  New entries are not marked, so entries
+         * used only once are evicted before those used again.
+         */
+        void markReferenced(int pos) {
+            if (referenced != null && !readOnly && !referenced.get(pos))
+                referenced.set(pos);
+        }
+
+        /**
+         * Called with the lock held after startWrite(), moves the clock hand to the next entry not referenced since
+         * the hand last passed it, clearing the reference of each entry passed, and evicts it.
+         *
+         * @param inUse the position of an entry which mustn't be evicted, or -1
+         * @return the position of the entry evicted, or -1 if there are none which can be.
+         */
+        int evictOne(int inUse) {
+            long pos = bytes.readInt(CLOCK_HAND);
+            // twice round, as the first time might only clear the references.
+            for (long steps = 0; steps <= 2 * entriesPerSegment; steps++) {
+                pos = freeList.nextSetBit(pos);
+                if (pos < 0) {
+                    pos = 0;
+                    continue;
+                }
+                int p = (int) pos;
+                int slots = readEntry(p);
+                pos = p + slots;
+                // a removal still to be sent to replicas isn't evicted.
+                if (p == inUse || isDeleted(p))
+                    continue;
+                if (referenced.get(p)) {
+                    referenced.clear(p);
+                    continue;
+                }
+                bytes.writeInt(CLOCK_HAND, pos < entriesPerSegment ? (int) pos : 0);
+                evict(p, slots);
+                return p;
+            }
+            return -1;
+        }
+
+        private void evict(int pos, int slots) {
+            if (evictionListener != null) {
+                // a copy, as the slots are reused by the entry being added.
+                FlyweightEntry entry = new FlyweightEntry();
+                if (generatedValueType)
+                    entry.value = DataValueClasses.newInstance(vClass);
+                readEntry(tmpBytes, pos, entry);
+                evicted.add(entry);
+            }
+            long hash = hashOfKeyAt(pos);
+            incrementSize(-1);
+            journal(pos, SharedMapChange.EVICT);
+            // not sent to replicas, which evict entries for themselves.
+            freeEntry(pos, slots, hash2(hash));
+        }
+
+        private int nextFreeFrom(long from, int slots) {
+            if (slots == 1)
+                return (int) freeList.setNFrom(from, 1);
+            // look for a run of clear bits long enough.
+            while (true) {
+                long start = freeList.nextClearBit(from);
+                if (start == DirectBitSet.NOT_FOUND || start + slots > entriesPerSegment)
+                    return (int) DirectBitSet.NOT_FOUND;
+                long nextUsed = freeList.nextSetBit(start);
+                if (nextUsed == DirectBitSet.NOT_FOUND || nextUsed >= start + slots) {
+                    freeList.set(start, start + slots);
+                    return (int) start;
+                }
+                from = nextUsed;
+            }
+        }
+
+        /**
+         * readObjectUsing - the "using" part means, reuse this object if possible.
+         *
+         * @param value  null - creates an object on demand.  It shouldn't be null in most examples, otherwise it will reuse this object
+         */
+        @SuppressWarnings("unchecked")
         V readObjectUsing(V value, long offset) {
             if (value instanceof Byteable) {
                 ((Byteable) value).bytes(bytes, offset);
                 return value;
             }
+            return readObject(value, tmpBytes);
+        }
+
+        V readObject(V value, Bytes from) {
             if (generatedValueType) {
                 if (value == null)
                     value = DataValueClasses.newInstance(vClass);
-                ((BytesMarshallable) value).readMarshallable(tmpBytes);
+                ((BytesMarshallable) value).readMarshallable(from);
                 return value;
             }
-            return tmpBytes.readInstance(vClass, value);
+            return from.readInstance(vClass, value);
         }
 
+        /**
+         * Called with the lock held, compares the key with the entry read into tmpBytes.
+         */
         boolean keyEquals(DirectBytes keyBytes, MultiStoreBytes tmpBytes) {
+            keysCompared++;
+            return sameKey(keyBytes, tmpBytes);
+        }
+
+        boolean sameKey(Bytes keyBytes, MultiStoreBytes tmpBytes) {
             // check the length is the same.
             long keyLength = tmpBytes.readStopBit();
             return keyLength == keyBytes.remaining()
+                    && keyLength <= tmpBytes.remaining()
                     && tmpBytes.startsWith(keyBytes);
         }
 
+        /**
+         * @return whether the entry at pos, of this many slots, has expired.
+         */
+        boolean hasExpired(int pos, int slots) {
+            if (entryTimeToLiveMS == 0)
+                return false;
+            long expires = bytes.readLong(offsetOf(pos) + stopBitLength(slots));
+            return expires <= System.currentTimeMillis();
+        }
+
+        /**
+         * Called with the lock held, removes the entry at pos if it has expired.
+         *
+         * @return whether it had expired.
+         */
+        boolean removeIfExpired(int pos, int slots, long hash2) {
+            if (!hasExpired(pos, slots))
+                return false;
+            startWrite();
+            removeEntry(pos, slots, hash2);
+            return true;
+        }
+
+        /**
+         * Removes the expired entries from the sweep position to the end of the segment, a chunk at a time.
+         * The key of an entry is hashed to remove it from the index, but is not deserialized.
+         *
+         * @return the number of entries removed.
+         */
+        int removeExpired() {
+            int removed = 0;
+            boolean finished = false;
+            while (!finished) {
+                lock();
+                try {
+                    long end = Math.min(bytes.readInt(SWEEP_POSITION) + (long) SWEEP_CHUNK, entriesPerSegment);
+                    long pos = freeList.nextSetBit(bytes.readInt(SWEEP_POSITION));
+                    while (pos >= 0 && pos < end) {
+                        int p = (int) pos;
+                        int slots = readEntry(p);
+                        if (!isDeleted(p) && hasExpired(p, slots)) {
+                            long hash = hashOfKeyAt(p);
+                            startWrite();
+                            removeEntry(p, slots, hash2(hash));
+                            removed++;
+                        }
+                        pos = freeList.nextSetBit(p + slots);
+                    }
+                    finished = pos < 0;
+                    // the next sweep starts from the beginning once this one reaches the end.
+                    bytes.writeInt(SWEEP_POSITION, finished ? 0 : (int) pos);
+                } finally {
+                    unlock();
+                }
+            }
+            return removed;
+        }
+
         /**
          * @param expectedValue if null no check if performed, otherwise, the remove will only occur if the value to be removed equals the expected value
          */
-        V remove(final DirectBytes keyBytes, final V expectedValue, int hash2) {
-            lock();
-            try {
-                hash2 = hashLookup.startSearch(hash2);
-                while (true) {
+        V remove(final DirectBytes keyBytes, final V expectedValue, long hash) {
+            final long hash2 = hashLookup.startSearch(hash2(hash));
+            while (true) {
+
+                final int pos = hashLookup.nextPos();
+                if (pos < 0) {
+                    return null;
 
-                    final int pos = hashLookup.nextPos();
-                    if (pos < 0) {
+                } else {
+                    final long offset = offsetOf(pos);
+                    final int slots = readEntry(pos);
+                    if (!keyEquals(keyBytes, tmpBytes))
+                        continue;
+                    if (isDeleted(pos) || removeIfExpired(pos, slots, hash2))
                         return null;
+                    skipKey(keyBytes);
+                    V valueRemoved = expectedValue == null && removeReturnsNull ? null : readObjectUsing(null, offset + tmpBytes.position());
 
-                    } else {
-                        final long offset = entriesOffset + pos * entrySize;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize);
-                        if (!keyEquals(keyBytes, tmpBytes))
-                            continue;
-                        final long keyLength = align(keyBytes.remaining() + tmpBytes.position()); // includes the stop bit length.
-                        tmpBytes.position(keyLength);
-                        V valueRemoved = expectedValue == null && removeReturnsNull ? null : readObjectUsing(null, offset + keyLength);
-
-                        if (expectedValue != null && !expectedValue.equals(valueRemoved))
-                            return null;
+                    if (expectedValue != null && !expectedValue.equals(valueRemoved))
+                        return null;
 
-                        hashLookup.remove(hash2, pos);
-                        freeList.clear(pos);
-                        if (pos < nextSet)
-                            nextSet = pos;
-                        return valueRemoved;
-                    }
+                    startWrite();
+                    removeEntry(pos, slots, hash2);
+                    return valueRemoved;
                 }
-            } finally {
-                unlock();
             }
         }
 
@@ -548,107 +3276,151 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
          *
          * @param keyBytes      the key of the entry to be replaced
          * @param expectedValue the expected value to replaced
-         * @param newValue      the new value that will only be set if the existing value in the map equals the {@param expectedValue} or  {@param expectedValue} is null
-         * @param hash2         the hash code
+         * @param newValueBytes the new value that will only be set if the existing value in the map equals the {@param expectedValue} or  {@param expectedValue} is null
+         * @param hash          the hash code
          * @return null if the value was not replaced, else the value that is replaced is returned
          */
-        V replace(final DirectBytes keyBytes, final V expectedValue, final V newValue, final int hash2) {
-            lock();
-            try {
+        V replace(final DirectBytes keyBytes, final V expectedValue, final DirectBytes newValueBytes, long hash) {
+            final long hash2 = hashLookup.startSearch(hash2(hash));
+            while (true) {
 
-                hashLookup.startSearch(hash2);
-                while (true) {
+                final int pos = hashLookup.nextPos();
 
-                    final int pos = hashLookup.nextPos();
+                if (pos < 0) {
+                    return null;
 
-                    if (pos < 0) {
-                        return null;
+                } else {
 
-                    } else {
+                    final int slots = readEntry(pos);
 
-                        final long offset = entriesOffset + pos * entrySize;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize);
+                    if (!keyEquals(keyBytes, tmpBytes) || isDeleted(pos) || removeIfExpired(pos, slots, hash2))
+                        continue;
 
-                        if (!keyEquals(keyBytes, tmpBytes))
-                            continue;
+                    skipKey(keyBytes);
 
-                        final long keyLength = keyBytes.remaining();
-                        tmpBytes.skip(keyLength);
+                    final V valueRead = readObjectUsing(null, offsetOf(pos) + tmpBytes.position());
 
-                        final long alignPosition = align(tmpBytes.position());
-                        tmpBytes.position(alignPosition);
+                    if (valueRead == null)
+                        return null;
 
-                        final V valueRead = readObjectUsing(null, offset + keyLength);
+                    if (expectedValue == null || expectedValue.equals(valueRead))
+                        replaceEntry(pos, slots, keyBytes, newValueBytes, hash2);
 
-                        if (valueRead == null)
-                            return null;
+                    return valueRead;
+                }
+            }
+        }
 
-                        if (expectedValue == null || expectedValue.equals(valueRead)) {
-                            tmpBytes.position(alignPosition);
-                            appendInstance(keyBytes, newValue);
-                        }
 
-                        return valueRead;
-                    }
+        /**
+         * Called with the lock held.
+         *
+         * @return the position of the entry for this key, or -1 if absent.
+         */
+        int find(DirectBytes keyBytes, long hash) {
+            long hash2 = hashLookup.startSearch(hash2(hash));
+            for (int pos; (pos = hashLookup.nextPos()) >= 0; ) {
+                int slots = readEntry(pos);
+                if (!keyEquals(keyBytes, tmpBytes))
+                    continue;
+                if (isDeleted(pos) || removeIfExpired(pos, slots, hash2))
+                    return -1;
+                markReferenced(pos);
+                return pos;
+            }
+            return -1;
+        }
+
+        /**
+         * Called with the lock held.
+         *
+         * @return the value of the entry at pos, a view of the entry if V is Byteable.
+         */
+        V valueAt(int pos, V using) {
+            readEntry(pos);
+            long keyLength = tmpBytes.readStopBit();
+            tmpBytes.position(align(tmpBytes.position() + keyLength));
+            if (using == null && generatedValueType)
+                using = DataValueClasses.newDirectReference(vClass);
+            return readObjectUsing(using, offsetOf(pos) + tmpBytes.position());
+        }
+
+        /**
+         * Called with the lock held, stores the result computed for the entry at pos, or -1 if absent.
+         *
+         * @return the result.
+         */
+        V store(DirectBytes keyBytes, long hash, int pos, V value, V result) {
+            long hash2 = hash2(hash);
+            if (result == null) {
+                if (pos >= 0) {
+                    startWrite();
+                    removeEntry(pos, readEntry(pos), hash2);
                 }
-            } finally {
-                unlock();
+                return null;
+            }
+            if (result == value && value instanceof Byteable) {
+                // changed in place
+                unindex(pos);
+                index(pos);
+                markDirty(pos);
+                journal(pos, SharedMapChange.PUT);
+                return result;
             }
+            DirectBytes valueBytes = getValueAsBytes(result);
+            if (pos < 0)
+                put(keyBytes, valueBytes, hash, false, false);
+            else
+                replaceEntry(pos, readEntry(pos), keyBytes, valueBytes, hash2);
+            return result;
         }
 
+        /**
+         * @param returnOld whether to return the previous value, otherwise null is returned.
+         */
+        V put(DirectBytes keyBytes, DirectBytes valueBytes, long hash, boolean replaceIfPresent, boolean returnOld) {
+            final long hash2 = hashLookup.startSearch(hash2(hash));
+            while (true) {
+                final int pos = hashLookup.nextPos();
+                if (pos < 0) {
+                    putEntry(keyBytes, valueBytes, hash2);
+                    return null;
 
-        V put(DirectBytes keyBytes, V value, int hash2, boolean replaceIfPresent) {
-            lock();
-            try {
-                hash2 = hashLookup.startSearch(hash2);
-                while (true) {
-                    final int pos = hashLookup.nextPos();
-                    if (pos < 0) {
-                        putEntry(keyBytes, value, hash2);
+                } else {
+                    final int slots = readEntry(pos);
+                    if (!keyEquals(keyBytes, tmpBytes))
+                        continue;
+                    if (isDeleted(pos) || removeIfExpired(pos, slots, hash2)) {
+                        // replaces the removal still to be sent.
+                        startWrite();
+                        if (isDeleted(pos))
+                            freeEntry(pos, slots, hash2);
+                        putEntry(keyBytes, valueBytes, hash2);
                         return null;
+                    }
+                    skipKey(keyBytes);
+                    if (replaceIfPresent) {
+                        if (!returnOld) {
+                            replaceEntry(pos, slots, keyBytes, valueBytes, hash2);
+                            return null;
+                        }
+                        final V v = readObjectUsing(null, offsetOf(pos) + tmpBytes.position());
+                        replaceEntry(pos, slots, keyBytes, valueBytes, hash2);
+                        return v;
 
                     } else {
-                        final long offset = entriesOffset + pos * entrySize;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize);
-                        if (!keyEquals(keyBytes, tmpBytes))
-                            continue;
-                        final long keyLength = keyBytes.remaining();
-                        tmpBytes.skip(keyLength);
-                        final long alignPosition = align(tmpBytes.position());
-                        tmpBytes.position(alignPosition);
-                        if (replaceIfPresent) {
-                            if (putReturnsNull) {
-                                appendInstance(keyBytes, value);
-                                return null;
-                            }
-                            final V v = readObjectUsing(null, offset + alignPosition);
-                            tmpBytes.position(alignPosition);
-                            appendInstance(keyBytes, value);
-                            return v;
-
-                        } else {
-                            if (putReturnsNull) {
-                                return null;
-                            }
-                            return readObjectUsing(null, offset + keyLength);
+                        if (!returnOld) {
+                            return null;
                         }
+                        return readObjectUsing(null, offsetOf(pos) + tmpBytes.position());
                     }
                 }
-            } finally {
-                unlock();
             }
         }
+    }
 
-        void appendInstance(DirectBytes bytes, V value) {
-            bytes.clear();
-            if (generatedValueType)
-                ((BytesMarshallable) value).writeMarshallable(bytes);
-            else
-                bytes.writeInstance(vClass, value);
-            bytes.flip();
-            if (bytes.remaining() > tmpBytes.remaining())
-                throw new IllegalArgumentException("Value too large for entry was " + bytes.remaining() + ", remaining: " + tmpBytes.remaining());
-            tmpBytes.write(bytes);
-        }
+    static int stopBitLength(long n) {
+        int bits = 64 - Long.numberOfLeadingZeros(n);
+        return bits <= 7 ? 1 : (bits + 6) / 7;
     }
 }
@@ -0,0 +1,1521 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectBytes;
+import net.openhft.lang.io.DirectStore;
+import net.openhft.lang.io.MappedStore;
+import net.openhft.lang.io.serialization.BytesMarshallable;
+import net.openhft.lang.model.Byteable;
+import net.openhft.lang.model.DataValueClasses;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A B+tree of fixed size pages in a mapped file, with the values in fixed size cells which don't move while
+ * their key is present.
+ * <p/>
+ * Readers use optimistic lock coupling: the version of each page is read before it and checked after reading it
+ * and the version of the next page, restarting from the root if a page changed.  Writers lock the leaf for the key
+ * and check it hasn't changed since it was found, which is enough unless the leaf has to split or become empty.
+ * Otherwise they lock pages from the root down, releasing the ancestors of a page which won't split or become
+ * empty.  A writer makes the version of each page it changes odd while changing it.  A writer which dies part way
+ * through a change, such as between splitting a page and adding the new page to its parent, leaves a change which
+ * can't be undone, so the next to lock the page marks the file as corrupt and every later change fails.
+ * <p/>
+ * A leaf other than the root left with fewer than a quarter of the keys it can hold takes keys from a neighbour, or
+ * is merged with it if they fit in one page, as is an inner page left with one child, so each leaf is at least a
+ * quarter full and there are fewer inner pages than leaves, which the file is sized for.  The root is always page 0, and a zeroed page is an empty leaf, so a new file is an
+ * empty tree.
+ */
+public class VanillaSharedTreeMap<K, V> extends AbstractMap<K, V> implements SharedTreeMap<K, V> {
+    /*
+    The header holds the settings written by the builder, then
+    - the int lock for allocating pages and cells.
+    - the int number of pages used after the root, not counting those freed.
+    - the int page + 1 at the head of the list of free pages, or 0.
+    - the int number of cells used.
+    - the int cell + 1 at the head of the list of free cells, or 0.
+    - the long number of entries.
+    - the int page + 1 left part way through a change by a writer which died, or 0.
+     */
+    static final int HEADER_ALLOC_LOCK = 64;
+    static final int HEADER_PAGES = 68;
+    static final int HEADER_FREE_PAGE = 72;
+    static final int HEADER_CELLS = 76;
+    static final int HEADER_FREE_CELL = 80;
+    static final int HEADER_ENTRIES = 88;
+    static final int HEADER_TORN_PAGE = 96;
+
+    /*
+    Each page, after the header, holds
+    - the long version, odd while the page is being changed.
+    - the int lock.
+    - the int 1 for an inner page, or 0 for a leaf.
+    - the int number of keys.
+    - the int first child of an inner page, for keys less than its first key, or the next free page + 1.
+    - the int id of the process holding the lock.
+    - a slot per key, the short length of the key, the key and the int cell of its value or the child for keys from
+      this one up to the next.
+     */
+    static final int PAGE_VERSION = 0;
+    static final int PAGE_LOCK = 8;
+    static final int PAGE_INNER = 12;
+    static final int PAGE_COUNT = 16;
+    static final int PAGE_FIRST_CHILD = 20;
+    static final int PAGE_LOCK_PROCESS = 24;
+    static final int PAGE_HEADER = 32;
+    static final int ROOT = 0;
+    static final int MAX_DEPTH = 64;
+
+    // each cell holds the int length of the value, or the next free cell + 1, then the value, aligned for Byteable.
+    static final int CELL_HEADER = 8;
+
+    private static final int LONG_KEY = 0;
+    private static final int INT_KEY = 1;
+    private static final int CHARS_KEY = 2;
+
+    private final ThreadLocal<Local> locals = new ThreadLocal<Local>();
+    private final File file;
+    private final Class<K> kClass;
+    private final Class<V> vClass;
+    private final int keyType;
+    private final int pageSize;
+    private final int maxKeySize;
+    private final int maxValueSize;
+    private final int slotSize;
+    private final int refOffset;
+    private final int capacity;
+    private final int minKeys;
+    private final int maxPages;
+    private final long entries;
+    private final long cellsOffset;
+    private final int cellSize;
+    private final long lockTimeOutNS;
+    private final SharedMapErrorListener errorListener;
+    private final boolean generatedValueType;
+    private MappedStore ms;
+    private final DirectBytes bytes;
+
+    public VanillaSharedTreeMap(SharedTreeMapBuilder builder, File file,
+                                Class<K> kClass, Class<V> vClass) throws IOException {
+        this.file = file;
+        this.kClass = kClass;
+        this.vClass = vClass;
+        if (kClass == Long.class)
+            keyType = LONG_KEY;
+        else if (kClass == Integer.class)
+            keyType = INT_KEY;
+        else if (kClass == CharSequence.class || kClass == String.class)
+            keyType = CHARS_KEY;
+        else
+            throw new IllegalArgumentException("Keys must be Long, Integer, CharSequence or String, not " + kClass);
+
+        pageSize = builder.pageSize();
+        maxKeySize = builder.maxKeySize();
+        if (keyType == LONG_KEY && maxKeySize < 8)
+            throw new IllegalArgumentException("Long keys need a maxKeySize of 8, was " + maxKeySize);
+        maxValueSize = builder.maxValueSize();
+        slotSize = (2 + maxKeySize + 4 + 7) & ~7;
+        refOffset = slotSize - 4;
+        capacity = (pageSize - PAGE_HEADER) / slotSize;
+        if (capacity < 4)
+            throw new IllegalArgumentException("A pageSize of " + pageSize + " is too small for keys of " + maxKeySize + " bytes");
+        minKeys = capacity / 4;
+        entries = builder.entries();
+        // the leaves with minKeys each, as many inner pages, and the pages a split adds meanwhile.
+        maxPages = (int) Math.min(Integer.MAX_VALUE - 1, 2 * (entries / minKeys + 1) + MAX_DEPTH);
+        cellsOffset = (long) (maxPages + 1) * pageSize;
+        cellSize = (CELL_HEADER + maxValueSize + 7) & ~7;
+        lockTimeOutNS = builder.lockTimeOutMS() * 1000000;
+        errorListener = builder.errorListener();
+        generatedValueType = builder.generatedValueType();
+
+        ms = new MappedStore(file, FileChannel.MapMode.READ_WRITE, cellsOffset + entries * cellSize);
+        bytes = ms.createSlice();
+        // the factory isn't thread safe when it creates a marshaller on first use, so do that before any thread can.
+        if (!generatedValueType)
+            ms.bytesMarshallerFactory().acquireMarshaller(vClass, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        if (ms == null)
+            return;
+        ms.free();
+        ms = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long longSize() {
+        return bytes.readVolatileLong(HEADER_ENTRIES);
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, longSize());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return longSize() == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        return kClass.isInstance(key) ? getUsing((K) key, null) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V getUsing(K key, V value) {
+        Local local = local();
+        KeyBuffer kb = encode(key, local.key);
+        while (true) {
+            long po = pageOffset(findLeaf(local, kb));
+            long version = local.version;
+            int idx = search(po, count(po), kb);
+            if (idx < 0) {
+                if (version(po) == version)
+                    return null;
+                continue;
+            }
+            int cell = bytes.readInt(slot(po, idx) + refOffset);
+            if (!validCell(cell)) {
+                if (version(po) == version)
+                    throw corrupt(po);
+                continue;
+            }
+            if (value instanceof Byteable) {
+                if (version(po) != version)
+                    continue;
+                ((Byteable) value).bytes(bytes, cellOffset(cell) + CELL_HEADER);
+                return value;
+            }
+            DirectBytes valueBytes = readCell(cell, local.readBytes);
+            // deserialize only once the copy is known to be consistent.
+            if (version(po) == version)
+                return readValue(valueBytes, value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean containsKey(Object key) {
+        if (!kClass.isInstance(key))
+            return false;
+        Local local = local();
+        KeyBuffer kb = encode((K) key, local.key);
+        while (true) {
+            long po = pageOffset(findLeaf(local, kb));
+            boolean found = search(po, count(po), kb) >= 0;
+            if (version(po) == local.version)
+                return found;
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (value == null)
+            throw new NullPointerException("value");
+        Local local = local();
+        KeyBuffer kb = encode(key, local.key);
+        DirectBytes valueBytes = writeValue(value, local.valueBytes);
+        while (true) {
+            long po = pageOffset(findLeaf(local, kb));
+            lockPage(po);
+            try {
+                // the leaf has changed since it was found.
+                if (version(po) != local.version)
+                    continue;
+                int count = count(po);
+                int idx = search(po, count, kb);
+                if (idx >= 0)
+                    return replaceValue(local, po, idx, valueBytes);
+                if (count < capacity) {
+                    int cell = allocCell();
+                    writeCell(cell, valueBytes);
+                    startWrite(po);
+                    insertSlot(po, count, -idx - 1, kb, cell);
+                    endWrite(po);
+                    bytes.addAtomicLong(HEADER_ENTRIES, 1);
+                    return null;
+                }
+            } finally {
+                unlockPage(po);
+            }
+            return putLocked(local, kb, valueBytes);
+        }
+    }
+
+    /**
+     * Put with the pages from the root down to the leaf locked, as the leaf is full.
+     */
+    private V putLocked(Local local, KeyBuffer kb, DirectBytes valueBytes) {
+        int[] pages = local.pages;
+        int depth = 0;
+        pages[0] = ROOT;
+        lockPage(pageOffset(ROOT));
+        try {
+            long po = pageOffset(ROOT);
+            while (isInner(po)) {
+                int child = childAt(po, childIndex(po, count(po), kb));
+                if (!validPage(child) || depth + 1 >= MAX_DEPTH)
+                    throw corrupt(po);
+                long co = pageOffset(child);
+                lockPage(co);
+                // the child won't split so its ancestors won't change.
+                if (count(co) < capacity) {
+                    unlockPages(pages, depth);
+                    depth = -1;
+                }
+                pages[++depth] = child;
+                po = co;
+            }
+            int count = count(po);
+            int idx = search(po, count, kb);
+            if (idx >= 0)
+                return replaceValue(local, po, idx, valueBytes);
+            int cell = allocCell();
+            writeCell(cell, valueBytes);
+            insertSplitting(local, depth, -idx - 1, kb, cell);
+            bytes.addAtomicLong(HEADER_ENTRIES, 1);
+            return null;
+        } finally {
+            unlockPages(pages, depth);
+        }
+    }
+
+    /**
+     * Called with the leaf locked, replaces the value in its cell.
+     *
+     * @return the previous value.
+     */
+    private V replaceValue(Local local, long po, int idx, DirectBytes valueBytes) {
+        int cell = bytes.readInt(slot(po, idx) + refOffset);
+        if (!validCell(cell))
+            throw corrupt(po);
+        V old = readValue(readCell(cell, local.readBytes), null);
+        startWrite(po);
+        writeCell(cell, valueBytes);
+        endWrite(po);
+        return old;
+    }
+
+    /**
+     * Called with pages[0 .. depth] locked, inserts the key and cell into the leaf pages[depth], splitting it and
+     * its ancestors as needed.  pages[0] is either the root or has room for a key.
+     */
+    private void insertSplitting(Local local, int depth, int pos, KeyBuffer key, int ref) {
+        int[] pages = local.pages;
+        int top = depth;
+        while (count(pageOffset(pages[top])) >= capacity && pages[top] != ROOT)
+            top--;
+        // top down, so a reader which sees a page after it has changed will see its parent has changed.
+        for (int i = top; i <= depth; i++)
+            startWrite(pageOffset(pages[i]));
+        try {
+            for (int level = depth; ; level--) {
+                long po = pageOffset(pages[level]);
+                int count = count(po);
+                if (count < capacity) {
+                    insertSlot(po, count, pos, key, ref);
+                    return;
+                }
+                KeyBuffer sep = key == local.sep ? local.sep2 : local.sep;
+                if (pages[level] == ROOT) {
+                    splitRoot(pos, key, ref, sep);
+                    return;
+                }
+                ref = split(po, pos, key, ref, sep);
+                key = sep;
+                long parent = pageOffset(pages[level - 1]);
+                pos = childIndex(parent, count(parent), key);
+            }
+        } finally {
+            for (int i = top; i <= depth; i++)
+                endWrite(pageOffset(pages[i]));
+        }
+    }
+
+    /**
+     * Splits a full page, inserting the key and ref at pos, keeping the first half.
+     *
+     * @param sep set to the least key of the new page.
+     * @return the new page for the second half.
+     */
+    private int split(long po, int pos, KeyBuffer key, int ref, KeyBuffer sep) {
+        int m = (capacity + 1) / 2;
+        boolean inner = isInner(po);
+        int right = allocPage();
+        long ro = pageOffset(right);
+        // locked like any page changed, so a page found odd and unlocked was left so by a writer which died.
+        lockPage(ro);
+        try {
+            startWrite(ro);
+            try {
+                fillRight(po, pos, key, ref, m, inner, ro, sep);
+            } finally {
+                endWrite(ro);
+            }
+        } finally {
+            unlockPage(ro);
+        }
+        if (pos < m) {
+            for (int i = m - 1; i > pos; i--)
+                copySlot(slot(po, i - 1), slot(po, i));
+            writeSlot(slot(po, pos), key, ref);
+        }
+        bytes.writeInt(po + PAGE_COUNT, m);
+        return right;
+    }
+
+    /**
+     * Splits the full root into two new pages, so the root stays at page 0.
+     */
+    private void splitRoot(int pos, KeyBuffer key, int ref, KeyBuffer sep) {
+        long root = pageOffset(ROOT);
+        int m = (capacity + 1) / 2;
+        boolean inner = isInner(root);
+        int left = allocPage();
+        int right = allocPage();
+        long lo = pageOffset(left);
+        long ro = pageOffset(right);
+        lockPage(lo);
+        lockPage(ro);
+        try {
+            startWrite(lo);
+            startWrite(ro);
+            try {
+                fillRight(root, pos, key, ref, m, inner, ro, sep);
+                for (int j = 0; j < m; j++)
+                    copyMerged(root, pos, key, ref, j, slot(lo, j));
+                bytes.writeInt(lo + PAGE_FIRST_CHILD, bytes.readInt(root + PAGE_FIRST_CHILD));
+                bytes.writeInt(lo + PAGE_INNER, inner ? 1 : 0);
+                bytes.writeInt(lo + PAGE_COUNT, m);
+            } finally {
+                endWrite(lo);
+                endWrite(ro);
+            }
+        } finally {
+            unlockPage(ro);
+            unlockPage(lo);
+        }
+        bytes.writeInt(root + PAGE_FIRST_CHILD, left);
+        writeSlot(slot(root, 0), sep, right);
+        bytes.writeInt(root + PAGE_INNER, 1);
+        bytes.writeInt(root + PAGE_COUNT, 1);
+    }
+
+    /**
+     * Fills the page at ro with the slots from m of a full page with the key and ref inserted at pos.  For an inner
+     * page, the key at m moves up to the parent and its child becomes the first child.
+     */
+    private void fillRight(long po, int pos, KeyBuffer key, int ref, int m, boolean inner, long ro, KeyBuffer sep) {
+        readMergedKey(po, pos, key, m, sep);
+        int from = m;
+        if (inner) {
+            bytes.writeInt(ro + PAGE_FIRST_CHILD, mergedRef(po, pos, ref, m));
+            from++;
+        }
+        for (int j = from; j <= capacity; j++)
+            copyMerged(po, pos, key, ref, j, slot(ro, j - from));
+        bytes.writeInt(ro + PAGE_INNER, inner ? 1 : 0);
+        bytes.writeInt(ro + PAGE_COUNT, capacity + 1 - from);
+    }
+
+    private void copyMerged(long po, int pos, KeyBuffer key, int ref, int j, long dst) {
+        if (j < pos)
+            copySlot(slot(po, j), dst);
+        else if (j == pos)
+            writeSlot(dst, key, ref);
+        else
+            copySlot(slot(po, j - 1), dst);
+    }
+
+    private void readMergedKey(long po, int pos, KeyBuffer key, int j, KeyBuffer out) {
+        if (j == pos) {
+            System.arraycopy(key.bytes, 0, out.bytes, 0, key.length);
+            out.length = key.length;
+        } else {
+            readKey(slot(po, j < pos ? j : j - 1), out);
+        }
+    }
+
+    private int mergedRef(long po, int pos, int ref, int j) {
+        return j == pos ? ref : bytes.readInt(slot(po, j < pos ? j : j - 1) + refOffset);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(Object key) {
+        if (!kClass.isInstance(key))
+            return null;
+        Local local = local();
+        KeyBuffer kb = encode((K) key, local.key);
+        while (true) {
+            int leaf = findLeaf(local, kb);
+            long po = pageOffset(leaf);
+            lockPage(po);
+            try {
+                if (version(po) != local.version)
+                    continue;
+                int count = count(po);
+                int idx = search(po, count, kb);
+                if (idx < 0)
+                    return null;
+                if (count > minKeys || leaf == ROOT) {
+                    int cell = bytes.readInt(slot(po, idx) + refOffset);
+                    if (!validCell(cell))
+                        throw corrupt(po);
+                    V old = readValue(readCell(cell, local.readBytes), null);
+                    startWrite(po);
+                    removeSlot(po, count, idx);
+                    endWrite(po);
+                    freeCell(cell);
+                    bytes.addAtomicLong(HEADER_ENTRIES, -1);
+                    return old;
+                }
+            } finally {
+                unlockPage(po);
+            }
+            return removeLocked(local, kb);
+        }
+    }
+
+    /**
+     * Remove with the pages from the root down to the leaf locked, as the leaf will be left short of keys.
+     */
+    private V removeLocked(Local local, KeyBuffer kb) {
+        int[] pages = local.pages;
+        int depth = 0;
+        int freed = 0;
+        pages[0] = ROOT;
+        lockPage(pageOffset(ROOT));
+        try {
+            long po = pageOffset(ROOT);
+            while (isInner(po)) {
+                int child = childAt(po, childIndex(po, count(po), kb));
+                if (!validPage(child) || depth + 1 >= MAX_DEPTH)
+                    throw corrupt(po);
+                long co = pageOffset(child);
+                lockPage(co);
+                // the child won't be left short of keys, so its ancestors won't change.
+                if (count(co) > (isInner(co) ? 1 : minKeys)) {
+                    unlockPages(pages, depth);
+                    depth = -1;
+                }
+                pages[++depth] = child;
+                po = co;
+            }
+            int count = count(po);
+            int idx = search(po, count, kb);
+            if (idx < 0)
+                return null;
+            int cell = bytes.readInt(slot(po, idx) + refOffset);
+            if (!validCell(cell))
+                throw corrupt(po);
+            V old = readValue(readCell(cell, local.readBytes), null);
+            if (count > minKeys || pages[depth] == ROOT) {
+                startWrite(po);
+                removeSlot(po, count, idx);
+                endWrite(po);
+            } else {
+                freed = removeRebalancing(local, depth, kb, idx);
+            }
+            freeCell(cell);
+            bytes.addAtomicLong(HEADER_ENTRIES, -1);
+            return old;
+        } finally {
+            unlockPages(pages, depth);
+            // once unlocked, so a writer waiting for one finds it has changed.
+            for (int i = 0; i < freed; i++)
+                freePage(local.freed[i]);
+        }
+    }
+
+    /**
+     * Called with pages[0 .. depth] locked, each but the first to be left short of keys, removes the key at idx from
+     * the leaf pages[depth].  Going up, a page left short takes keys from its next sibling, or its previous one if it
+     * is the last child, or is merged with it if they fit in one page, which removes a key from the parent.  A leaf is
+     * short with fewer than minKeys keys, and an inner page with one child.  A root left with one child is replaced
+     * by a copy of it, so every leaf stays at the same depth.
+     *
+     * @return the number of pages to free, in local.freed
+     */
+    private int removeRebalancing(Local local, int depth, KeyBuffer kb, int idx) {
+        int[] pages = local.pages;
+        int[] siblings = local.siblings;
+        int locked = 0;
+        int freed = 0;
+        // top down, as for a split, and before any sibling.
+        for (int i = 0; i <= depth; i++)
+            startWrite(pageOffset(pages[i]));
+        try {
+            long po = pageOffset(pages[depth]);
+            removeSlot(po, count(po), idx);
+            for (int level = depth; level > 0; level--) {
+                po = pageOffset(pages[level]);
+                boolean inner = isInner(po);
+                long parent = pageOffset(pages[level - 1]);
+                int parentCount = count(parent);
+                if (count(po) >= (inner ? 1 : minKeys) || parentCount == 0)
+                    return freed;
+                int childIndex = childIndex(parent, parentCount, kb);
+                boolean next = childIndex < parentCount;
+                int sibling = childAt(parent, next ? childIndex + 1 : childIndex - 1);
+                if (!validPage(sibling))
+                    throw corrupt(parent);
+                long so = pageOffset(sibling);
+                lockPage(so);
+                siblings[locked++] = sibling;
+                startWrite(so);
+                if (isInner(so) != inner)
+                    throw corrupt(parent);
+                int left = next ? pages[level] : sibling;
+                int right = next ? sibling : pages[level];
+                // the index of the key in the parent for the right page.
+                int sep = next ? childIndex : childIndex - 1;
+                if (!merge(local, parent, sep, pageOffset(left), pageOffset(right), inner))
+                    return freed;
+                removeSlot(parent, parentCount, sep);
+                local.freed[freed++] = right;
+            }
+            long root = pageOffset(ROOT);
+            if (pages[0] == ROOT && isInner(root) && count(root) == 0) {
+                // the only child is locked, as either the page merged into or its sibling.
+                int child = bytes.readInt(root + PAGE_FIRST_CHILD);
+                long co = pageOffset(child);
+                int count = count(co);
+                for (int i = 0; i < count; i++)
+                    copySlot(slot(co, i), slot(root, i));
+                bytes.writeInt(root + PAGE_FIRST_CHILD, bytes.readInt(co + PAGE_FIRST_CHILD));
+                bytes.writeInt(root + PAGE_INNER, bytes.readInt(co + PAGE_INNER));
+                bytes.writeInt(root + PAGE_COUNT, count);
+                local.freed[freed++] = child;
+            }
+            return freed;
+        } finally {
+            for (int i = 0; i < locked; i++)
+                endWrite(pageOffset(siblings[i]));
+            for (int i = 0; i <= depth; i++)
+                endWrite(pageOffset(pages[i]));
+            for (int i = 0; i < locked; i++)
+                unlockPage(pageOffset(siblings[i]));
+        }
+    }
+
+    /**
+     * Called with the parent and both pages locked, merges the right page into the left one if they fit in one page,
+     * or otherwise shares the keys evenly between them.  For inner pages, the key in the parent for the right page
+     * comes down between them.
+     *
+     * @param sep the index of the key in the parent for the right page.
+     * @return whether the pages were merged, leaving the right page to be removed from the parent.
+     */
+    private boolean merge(Local local, long parent, int sep, long lo, long ro, boolean inner) {
+        int leftCount = count(lo);
+        int rightCount = count(ro);
+        int rightPage = bytes.readInt(slot(parent, sep) + refOffset);
+        int down = inner ? 1 : 0;
+        if (leftCount + down + rightCount <= capacity) {
+            if (inner) {
+                readKey(slot(parent, sep), local.sep);
+                writeSlot(slot(lo, leftCount), local.sep, bytes.readInt(ro + PAGE_FIRST_CHILD));
+            }
+            for (int i = 0; i < rightCount; i++)
+                copySlot(slot(ro, i), slot(lo, leftCount + down + i));
+            bytes.writeInt(lo + PAGE_COUNT, leftCount + down + rightCount);
+            bytes.writeInt(ro + PAGE_COUNT, 0);
+            return true;
+        }
+        int leftAfter = (leftCount + rightCount) / 2;
+        if (!inner) {
+            if (leftAfter > leftCount) {
+                int moved = leftAfter - leftCount;
+                for (int i = 0; i < moved; i++)
+                    copySlot(slot(ro, i), slot(lo, leftCount + i));
+                for (int i = moved; i < rightCount; i++)
+                    copySlot(slot(ro, i), slot(ro, i - moved));
+                rightCount -= moved;
+            } else {
+                int moved = leftCount - leftAfter;
+                for (int i = rightCount - 1; i >= 0; i--)
+                    copySlot(slot(ro, i), slot(ro, i + moved));
+                for (int i = 0; i < moved; i++)
+                    copySlot(slot(lo, leftAfter + i), slot(ro, i));
+                rightCount += moved;
+            }
+            leftCount = leftAfter;
+        } else {
+            // a key at a time through the parent.
+            while (leftCount < leftAfter) {
+                readKey(slot(parent, sep), local.sep);
+                writeSlot(slot(lo, leftCount++), local.sep, bytes.readInt(ro + PAGE_FIRST_CHILD));
+                bytes.writeInt(ro + PAGE_FIRST_CHILD, bytes.readInt(slot(ro, 0) + refOffset));
+                readKey(slot(ro, 0), local.sep);
+                writeSlot(slot(parent, sep), local.sep, rightPage);
+                removeSlot(ro, rightCount--, 0);
+            }
+            while (leftCount > leftAfter) {
+                readKey(slot(parent, sep), local.sep);
+                insertSlot(ro, rightCount++, 0, local.sep, bytes.readInt(ro + PAGE_FIRST_CHILD));
+                bytes.writeInt(ro + PAGE_FIRST_CHILD, bytes.readInt(slot(lo, --leftCount) + refOffset));
+                readKey(slot(lo, leftCount), local.sep);
+                writeSlot(slot(parent, sep), local.sep, rightPage);
+            }
+        }
+        bytes.writeInt(lo + PAGE_COUNT, leftCount);
+        bytes.writeInt(ro + PAGE_COUNT, rightCount);
+        if (!inner) {
+            readKey(slot(ro, 0), local.sep);
+            writeSlot(slot(parent, sep), local.sep, rightPage);
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<K, V> firstEntry() {
+        return entry(null, true, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<K, V> lastEntry() {
+        return entry(null, true, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<K, V> ceilingEntry(K key) {
+        return entry(key, true, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<K, V> floorEntry(K key) {
+        return entry(key, true, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<K, V> higherEntry(K key) {
+        return entry(key, false, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry<K, V> lowerEntry(K key) {
+        return entry(key, false, false);
+    }
+
+    private Entry<K, V> entry(K key, boolean inclusive, boolean forward) {
+        Local local = local();
+        scan(local, key == null ? null : encode(key, local.key), inclusive, forward, local.single);
+        return local.single.size == 0 ? null : local.single.entry(0, local.readBytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new SubMap(copyOf(fromKey), fromInclusive, copyOf(toKey), toInclusive);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return subMap(null, true, null, true).entrySet();
+    }
+
+    private KeyBuffer copyOf(K key) {
+        if (key == null)
+            return null;
+        return encode(key, new KeyBuffer(maxKeySize + 3));
+    }
+
+    /**
+     * @return the leaf for the key, found without locking, with its version in local.version
+     */
+    private int findLeaf(Local local, KeyBuffer key) {
+        restart:
+        while (true) {
+            int page = ROOT;
+            long po = pageOffset(page);
+            long version = stableVersion(po);
+            for (int depth = 0; isInner(po); depth++) {
+                int child = childAt(po, childIndex(po, count(po), key));
+                if (!validPage(child) || depth >= MAX_DEPTH) {
+                    if (version(po) != version)
+                        continue restart;
+                    throw corrupt(po);
+                }
+                long co = pageOffset(child);
+                long childVersion = stableVersion(co);
+                if (version(po) != version)
+                    continue restart;
+                page = child;
+                po = co;
+                version = childVersion;
+            }
+            local.version = version;
+            return page;
+        }
+    }
+
+    /**
+     * Copy, without locking, up to batch.capacity entries from one leaf, starting from the key, or from the first
+     * or last key if null, going forward or backward, and moving on to the next leaf if there are none in the first.
+     */
+    void scan(Local local, KeyBuffer from, boolean inclusive, boolean forward, Batch batch) {
+        int[] pages = local.pages;
+        long[] versions = local.versions;
+        int[] indexes = local.indexes;
+        restart:
+        while (true) {
+            int depth = 0;
+            int page = ROOT;
+            long po = pageOffset(page);
+            long version = stableVersion(po);
+            KeyBuffer key = from;
+            while (true) {
+                while (isInner(po)) {
+                    int count = count(po);
+                    int childIndex = key == null ? (forward ? 0 : count) : childIndex(po, count, key);
+                    int child = childAt(po, childIndex);
+                    if (!validPage(child) || depth >= MAX_DEPTH) {
+                        if (version(po) != version)
+                            continue restart;
+                        throw corrupt(po);
+                    }
+                    long co = pageOffset(child);
+                    long childVersion = stableVersion(co);
+                    if (version(po) != version)
+                        continue restart;
+                    pages[depth] = page;
+                    versions[depth] = version;
+                    indexes[depth] = childIndex;
+                    depth++;
+                    page = child;
+                    po = co;
+                    version = childVersion;
+                }
+                int count = count(po);
+                int n = 0;
+                if (forward) {
+                    for (int i = key == null ? 0 : firstAtOrAfter(po, count, key, inclusive); i < count && n < batch.capacity; i++)
+                        batch.copy(n++, po, i);
+                } else {
+                    for (int i = key == null ? count - 1 : lastAtOrBefore(po, count, key, inclusive); i >= 0 && n < batch.capacity; i--)
+                        batch.copy(n++, po, i);
+                }
+                if (version(po) != version)
+                    continue restart;
+                batch.size = n;
+                if (n > 0) {
+                    batch.check(po);
+                    return;
+                }
+                // nothing in this leaf, so move to the next or previous child of the nearest ancestor with one.
+                while (true) {
+                    if (depth == 0)
+                        return;
+                    depth--;
+                    page = pages[depth];
+                    po = pageOffset(page);
+                    version = versions[depth];
+                    int childIndex = indexes[depth] + (forward ? 1 : -1);
+                    if (childIndex >= 0 && childIndex <= count(po)) {
+                        int child = childAt(po, childIndex);
+                        if (!validPage(child)) {
+                            if (version(po) != version)
+                                continue restart;
+                            throw corrupt(po);
+                        }
+                        long co = pageOffset(child);
+                        long childVersion = stableVersion(co);
+                        if (version(po) != version)
+                            continue restart;
+                        indexes[depth] = childIndex;
+                        depth++;
+                        page = child;
+                        po = co;
+                        version = childVersion;
+                        break;
+                    }
+                    if (version(po) != version)
+                        continue restart;
+                }
+                key = null;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the key, or -(insertion point) - 1 if absent.
+     */
+    private int search(long po, int count, KeyBuffer key) {
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(key, slot(po, mid));
+            if (cmp > 0)
+                low = mid + 1;
+            else if (cmp < 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return the index of the child of an inner page which holds the key.
+     */
+    private int childIndex(long po, int count, KeyBuffer key) {
+        int idx = search(po, count, key);
+        return idx >= 0 ? idx + 1 : -idx - 1;
+    }
+
+    private int firstAtOrAfter(long po, int count, KeyBuffer key, boolean inclusive) {
+        int idx = search(po, count, key);
+        return idx >= 0 ? (inclusive ? idx : idx + 1) : -idx - 1;
+    }
+
+    private int lastAtOrBefore(long po, int count, KeyBuffer key, boolean inclusive) {
+        int idx = search(po, count, key);
+        return idx >= 0 ? (inclusive ? idx : idx - 1) : -idx - 2;
+    }
+
+    private int compare(KeyBuffer key, long slot) {
+        int length = keyLength(slot);
+        for (int i = 0, n = Math.min(key.length, length); i < n; i++) {
+            int cmp = (key.bytes[i] & 0xFF) - bytes.readUnsignedByte(slot + 2 + i);
+            if (cmp != 0)
+                return cmp;
+        }
+        return key.length - length;
+    }
+
+    static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+        for (int i = 0, n = Math.min(aLength, bLength); i < n; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return aLength - bLength;
+    }
+
+    long pageOffset(int page) {
+        return (long) (page + 1) * pageSize;
+    }
+
+    private long slot(long po, int index) {
+        return po + PAGE_HEADER + (long) index * slotSize;
+    }
+
+    private long cellOffset(int cell) {
+        return cellsOffset + (long) cell * cellSize;
+    }
+
+    private boolean isInner(long po) {
+        return bytes.readInt(po + PAGE_INNER) != 0;
+    }
+
+    /**
+     * @return the number of keys, within the capacity even if read while the page is changing.
+     */
+    private int count(long po) {
+        int count = bytes.readInt(po + PAGE_COUNT);
+        return count < 0 ? 0 : count > capacity ? capacity : count;
+    }
+
+    private int keyLength(long slot) {
+        int length = bytes.readUnsignedShort(slot);
+        return length > maxKeySize ? maxKeySize : length;
+    }
+
+    private int childAt(long po, int childIndex) {
+        return childIndex == 0
+                ? bytes.readInt(po + PAGE_FIRST_CHILD)
+                : bytes.readInt(slot(po, childIndex - 1) + refOffset);
+    }
+
+    private boolean validPage(int page) {
+        return page > ROOT && page < maxPages;
+    }
+
+    private boolean validCell(int cell) {
+        return cell >= 0 && cell < entries;
+    }
+
+    private IllegalStateException corrupt(long po) {
+        return new IllegalStateException("Corrupt page at " + po + " of " + file);
+    }
+
+    private void readKey(long slot, KeyBuffer out) {
+        int length = keyLength(slot);
+        for (int i = 0; i < length; i++)
+            out.bytes[i] = bytes.readByte(slot + 2 + i);
+        out.length = length;
+    }
+
+    private void writeSlot(long slot, KeyBuffer key, int ref) {
+        bytes.writeShort(slot, key.length);
+        for (int i = 0; i < key.length; i++)
+            bytes.writeByte(slot + 2 + i, key.bytes[i]);
+        bytes.writeInt(slot + refOffset, ref);
+    }
+
+    private void copySlot(long from, long to) {
+        for (int i = 0; i < slotSize; i += 8)
+            bytes.writeLong(to + i, bytes.readLong(from + i));
+    }
+
+    private void insertSlot(long po, int count, int pos, KeyBuffer key, int ref) {
+        for (int i = count; i > pos; i--)
+            copySlot(slot(po, i - 1), slot(po, i));
+        writeSlot(slot(po, pos), key, ref);
+        bytes.writeInt(po + PAGE_COUNT, count + 1);
+    }
+
+    private void removeSlot(long po, int count, int idx) {
+        for (int i = idx; i < count - 1; i++)
+            copySlot(slot(po, i + 1), slot(po, i));
+        bytes.writeInt(po + PAGE_COUNT, count - 1);
+    }
+
+    private long version(long po) {
+        return bytes.readVolatileLong(po + PAGE_VERSION);
+    }
+
+    /**
+     * @return the version of the page once it is even, i.e. not being changed.
+     */
+    private long stableVersion(long po) {
+        long version = version(po);
+        if ((version & 1) == 0)
+            return version;
+        long deadline = System.nanoTime() + lockTimeOutNS;
+        while (true) {
+            Thread.yield();
+            version = version(po);
+            if ((version & 1) == 0)
+                return version;
+            if (System.nanoTime() > deadline) {
+                // a live writer may be part way through a split so it is waited for, but not one which died.
+                checkNotTorn();
+                if (ProcessLocks.releaseIfHolderDied(bytes, po + PAGE_LOCK, po + PAGE_LOCK_PROCESS, "page at " + po))
+                    throw torn(po);
+                deadline = System.nanoTime() + lockTimeOutNS;
+            }
+        }
+    }
+
+    /**
+     * Called with the page locked, before changing it, so readers will retry.
+     */
+    private void startWrite(long po) {
+        long version = bytes.readVolatileLong(po + PAGE_VERSION);
+        // a full barrier so the version is visible before any of the changes.
+        bytes.compareAndSwapLong(po + PAGE_VERSION, version, version | 1);
+    }
+
+    private void endWrite(long po) {
+        long version = bytes.readLong(po + PAGE_VERSION);
+        bytes.writeOrderedLong(po + PAGE_VERSION, (version | 1) + 1);
+    }
+
+    private void lockPage(long po) {
+        checkNotTorn();
+        while (!bytes.tryLockInt(po + PAGE_LOCK) && !ProcessLocks.tryLockContended(bytes, po + PAGE_LOCK,
+                po + PAGE_LOCK_PROCESS, lockTimeOutNS, "page at " + po)) {
+            ProcessLocks.lockTimedOut(bytes, po + PAGE_LOCK, po + PAGE_LOCK_PROCESS, errorListener);
+        }
+        bytes.writeOrderedInt(po + PAGE_LOCK_PROCESS, ProcessIds.PROCESS_ID);
+        // the previous holder died part way through a change.
+        if ((bytes.readVolatileLong(po + PAGE_VERSION) & 1) != 0) {
+            unlockPage(po);
+            throw torn(po);
+        }
+    }
+
+    /**
+     * Marks the file as corrupt, as a change left part way by a writer which died can't be undone or completed, and
+     * the keys a split had moved to a page not yet added to the parent would be lost.
+     */
+    private IllegalStateException torn(long po) {
+        bytes.compareAndSwapInt(HEADER_TORN_PAGE, 0, (int) (po / pageSize));
+        return tornException();
+    }
+
+    private void checkNotTorn() {
+        if (bytes.readVolatileInt(HEADER_TORN_PAGE) != 0)
+            throw tornException();
+    }
+
+    private IllegalStateException tornException() {
+        int page = bytes.readVolatileInt(HEADER_TORN_PAGE) - 1;
+        return new IllegalStateException("Corrupt page at " + pageOffset(page) + " of " + file
+                + ", left part way through a change by a process which died");
+    }
+
+    private void unlockPage(long po) {
+        // the last unlock of a re-entrant lock.
+        if (bytes.readInt(po + PAGE_LOCK) >>> 24 == 1)
+            bytes.writeOrderedInt(po + PAGE_LOCK_PROCESS, 0);
+        unlock(po + PAGE_LOCK);
+    }
+
+    private void unlockPages(int[] pages, int depth) {
+        for (int i = 0; i <= depth; i++)
+            unlockPage(pageOffset(pages[i]));
+    }
+
+    private void lock(long offset) {
+        while (!bytes.tryLockNanosInt(offset, lockTimeOutNS)) {
+            ProcessLocks.lockTimedOut(bytes, offset, errorListener);
+        }
+    }
+
+    private void unlock(long offset) {
+        try {
+            bytes.unlockInt(offset);
+        } catch (IllegalMonitorStateException e) {
+            errorListener.errorOnUnlock(e);
+        }
+    }
+
+    private int allocPage() {
+        lock(HEADER_ALLOC_LOCK);
+        try {
+            int free = bytes.readInt(HEADER_FREE_PAGE);
+            if (free > 0) {
+                int page = free - 1;
+                bytes.writeInt(HEADER_FREE_PAGE, bytes.readInt(pageOffset(page) + PAGE_FIRST_CHILD));
+                return page;
+            }
+            int page = bytes.readInt(HEADER_PAGES) + 1;
+            if (page >= maxPages)
+                throw new IllegalStateException("No free pages in " + file + " which has room for " + entries + " entries");
+            bytes.writeInt(HEADER_PAGES, page);
+            return page;
+        } finally {
+            unlock(HEADER_ALLOC_LOCK);
+        }
+    }
+
+    private void freePage(int page) {
+        lock(HEADER_ALLOC_LOCK);
+        try {
+            bytes.writeInt(pageOffset(page) + PAGE_FIRST_CHILD, bytes.readInt(HEADER_FREE_PAGE));
+            bytes.writeInt(HEADER_FREE_PAGE, page + 1);
+        } finally {
+            unlock(HEADER_ALLOC_LOCK);
+        }
+    }
+
+    private int allocCell() {
+        lock(HEADER_ALLOC_LOCK);
+        try {
+            int free = bytes.readInt(HEADER_FREE_CELL);
+            if (free > 0) {
+                int cell = free - 1;
+                bytes.writeInt(HEADER_FREE_CELL, bytes.readInt(cellOffset(cell)));
+                return cell;
+            }
+            int cell = bytes.readInt(HEADER_CELLS);
+            if (cell >= entries)
+                throw new IllegalStateException("No free cells in " + file + " which has room for " + entries + " entries");
+            bytes.writeInt(HEADER_CELLS, cell + 1);
+            return cell;
+        } finally {
+            unlock(HEADER_ALLOC_LOCK);
+        }
+    }
+
+    private void freeCell(int cell) {
+        lock(HEADER_ALLOC_LOCK);
+        try {
+            bytes.writeInt(cellOffset(cell), bytes.readInt(HEADER_FREE_CELL));
+            bytes.writeInt(HEADER_FREE_CELL, cell + 1);
+        } finally {
+            unlock(HEADER_ALLOC_LOCK);
+        }
+    }
+
+    private void writeCell(int cell, DirectBytes value) {
+        long co = cellOffset(cell);
+        long length = value.remaining();
+        // the cell and the buffer are both a multiple of 8 bytes.
+        for (long i = 0; i < length; i += 8)
+            bytes.writeLong(co + CELL_HEADER + i, value.readLong(value.position() + i));
+        bytes.writeInt(co, (int) length);
+    }
+
+    private DirectBytes readCell(int cell, DirectBytes out) {
+        long co = cellOffset(cell);
+        int length = bytes.readInt(co);
+        if (length < 0 || length > maxValueSize)
+            length = maxValueSize;
+        out.clear();
+        for (int i = 0; i < length; i += 8)
+            out.writeLong(i, bytes.readLong(co + CELL_HEADER + i));
+        out.limit(length);
+        return out;
+    }
+
+    private DirectBytes writeValue(V value, DirectBytes out) {
+        out.clear();
+        if (generatedValueType)
+            ((BytesMarshallable) value).writeMarshallable(out);
+        else
+            out.writeInstance(vClass, value);
+        out.flip();
+        if (out.remaining() > maxValueSize)
+            throw new IllegalArgumentException("Value of " + out.remaining() + " bytes is larger than maxValueSize " + maxValueSize);
+        return out;
+    }
+
+    V readValue(Bytes from, V value) {
+        if (generatedValueType) {
+            if (value == null)
+                value = DataValueClasses.newInstance(vClass);
+            ((BytesMarshallable) value).readMarshallable(from);
+            return value;
+        }
+        return from.readInstance(vClass, value);
+    }
+
+    private KeyBuffer encode(K key, KeyBuffer kb) {
+        if (key == null)
+            throw new NullPointerException("key");
+        byte[] b = kb.bytes;
+        int length = 0;
+        switch (keyType) {
+            case LONG_KEY: {
+                // big endian with the sign flipped, so the bytes sort as the numbers do.
+                long l = (Long) key ^ Long.MIN_VALUE;
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    b[length++] = (byte) (l >>> shift);
+                break;
+            }
+            case INT_KEY: {
+                int i = (Integer) key ^ Integer.MIN_VALUE;
+                for (int shift = 24; shift >= 0; shift -= 8)
+                    b[length++] = (byte) (i >>> shift);
+                break;
+            }
+            default: {
+                // each char as UTF-8, surrogates included, so the bytes sort as the Strings do.
+                CharSequence cs = (CharSequence) key;
+                for (int i = 0; i < cs.length(); i++) {
+                    char c = cs.charAt(i);
+                    if (c < 0x80) {
+                        b[length++] = (byte) c;
+                    } else if (c < 0x800) {
+                        b[length++] = (byte) (0xC0 | c >> 6);
+                        b[length++] = (byte) (0x80 | c & 0x3F);
+                    } else {
+                        b[length++] = (byte) (0xE0 | c >> 12);
+                        b[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                        b[length++] = (byte) (0x80 | c & 0x3F);
+                    }
+                    if (length > maxKeySize)
+                        throw new IllegalArgumentException("Key " + cs + " is longer than maxKeySize " + maxKeySize + " bytes");
+                }
+            }
+        }
+        kb.length = length;
+        return kb;
+    }
+
+    @SuppressWarnings("unchecked")
+    K decode(byte[] b, int length) {
+        switch (keyType) {
+            case LONG_KEY: {
+                long l = 0;
+                for (int i = 0; i < 8; i++)
+                    l = l << 8 | b[i] & 0xFF;
+                return (K) Long.valueOf(l ^ Long.MIN_VALUE);
+            }
+            case INT_KEY: {
+                int n = 0;
+                for (int i = 0; i < 4; i++)
+                    n = n << 8 | b[i] & 0xFF;
+                return (K) Integer.valueOf(n ^ Integer.MIN_VALUE);
+            }
+            default: {
+                StringBuilder sb = new StringBuilder(length);
+                for (int i = 0; i < length; ) {
+                    int c = b[i++] & 0xFF;
+                    if (c >= 0xE0)
+                        c = (c & 0x0F) << 12 | (b[i++] & 0x3F) << 6 | b[i++] & 0x3F;
+                    else if (c >= 0xC0)
+                        c = (c & 0x1F) << 6 | b[i++] & 0x3F;
+                    sb.append((char) c);
+                }
+                return (K) sb.toString();
+            }
+        }
+    }
+
+    private Local local() {
+        Local local = locals.get();
+        if (local == null)
+            locals.set(local = new Local());
+        return local;
+    }
+
+    static final class KeyBuffer {
+        final byte[] bytes;
+        int length;
+
+        KeyBuffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+    }
+
+    /**
+     * The state of a thread using the map.
+     */
+    final class Local {
+        final KeyBuffer key = new KeyBuffer(maxKeySize + 3);
+        final KeyBuffer sep = new KeyBuffer(maxKeySize + 3);
+        final KeyBuffer sep2 = new KeyBuffer(maxKeySize + 3);
+        // room to find a value is too large, rather than overflow.
+        final DirectBytes valueBytes = new DirectStore(ms.bytesMarshallerFactory(), cellSize + maxValueSize + 1024, false).createSlice();
+        final DirectBytes readBytes = new DirectStore(ms.bytesMarshallerFactory(), cellSize, false).createSlice();
+        final int[] pages = new int[MAX_DEPTH];
+        final long[] versions = new long[MAX_DEPTH];
+        final int[] indexes = new int[MAX_DEPTH];
+        final int[] freed = new int[MAX_DEPTH];
+        final int[] siblings = new int[MAX_DEPTH];
+        final Batch single = new Batch(1);
+        long version;
+    }
+
+    /**
+     * Copies of the keys and values of consecutive entries of a leaf.
+     */
+    final class Batch {
+        final int capacity;
+        final byte[][] keys;
+        final int[] keyLengths;
+        final byte[][] values;
+        final int[] valueLengths;
+        int size = 0;
+
+        Batch(int capacity) {
+            this.capacity = capacity;
+            keys = new byte[capacity][maxKeySize];
+            keyLengths = new int[capacity];
+            values = new byte[capacity][maxValueSize];
+            valueLengths = new int[capacity];
+        }
+
+        void copy(int n, long po, int index) {
+            long slot = slot(po, index);
+            int length = keyLength(slot);
+            for (int i = 0; i < length; i++)
+                keys[n][i] = bytes.readByte(slot + 2 + i);
+            keyLengths[n] = length;
+            int cell = bytes.readInt(slot + refOffset);
+            if (!validCell(cell)) {
+                valueLengths[n] = -1;
+                return;
+            }
+            long co = cellOffset(cell);
+            int valueLength = bytes.readInt(co);
+            if (valueLength < 0 || valueLength > maxValueSize)
+                valueLength = maxValueSize;
+            for (int i = 0; i < valueLength; i++)
+                values[n][i] = bytes.readByte(co + CELL_HEADER + i);
+            valueLengths[n] = valueLength;
+        }
+
+        /**
+         * Called once the copies are known to be consistent.
+         */
+        void check(long po) {
+            for (int i = 0; i < size; i++)
+                if (valueLengths[i] < 0)
+                    throw corrupt(po);
+        }
+
+        Entry<K, V> entry(int n, DirectBytes valueBytes) {
+            valueBytes.clear();
+            valueBytes.write(values[n], 0, valueLengths[n]);
+            valueBytes.flip();
+            return new SimpleImmutableEntry<K, V>(decode(keys[n], keyLengths[n]), readValue(valueBytes, null));
+        }
+    }
+
+    /**
+     * A view of a range of keys, which entries can be removed from but not added to.
+     */
+    class SubMap extends AbstractMap<K, V> {
+        final KeyBuffer from;
+        final boolean fromInclusive;
+        final KeyBuffer to;
+        final boolean toInclusive;
+
+        SubMap(KeyBuffer from, boolean fromInclusive, KeyBuffer to, boolean toInclusive) {
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.to = to;
+            this.toInclusive = toInclusive;
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean inRange(Object key) {
+            if (!kClass.isInstance(key))
+                return false;
+            KeyBuffer kb = encode((K) key, local().key);
+            if (from != null) {
+                int cmp = compare(kb.bytes, kb.length, from.bytes, from.length);
+                if (cmp < 0 || cmp == 0 && !fromInclusive)
+                    return false;
+            }
+            return !beyondTo(kb.bytes, kb.length);
+        }
+
+        boolean beyondTo(byte[] key, int length) {
+            if (to == null)
+                return false;
+            int cmp = compare(key, length, to.bytes, to.length);
+            return cmp > 0 || cmp == 0 && !toInclusive;
+        }
+
+        @Override
+        public V get(Object key) {
+            return inRange(key) ? VanillaSharedTreeMap.this.get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return inRange(key) && VanillaSharedTreeMap.this.containsKey(key);
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new RangeIterator(SubMap.this);
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (Iterator<Entry<K, V>> iter = iterator(); iter.hasNext(); iter.next())
+                        size++;
+                    return size;
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates over a range a leaf at a time, finding the next leaf from the last key read.
+     */
+    class RangeIterator implements Iterator<Entry<K, V>> {
+        private final SubMap range;
+        private final Batch batch = new Batch(capacity);
+        private final KeyBuffer last = new KeyBuffer(maxKeySize + 3);
+        private boolean started = false;
+        private boolean finished = false;
+        private int next = 0;
+        private Entry<K, V> lastReturned = null;
+
+        RangeIterator(SubMap range) {
+            this.range = range;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next < batch.size)
+                return true;
+            if (finished)
+                return false;
+            Local local = local();
+            if (started)
+                scan(local, last, false, true, batch);
+            else
+                scan(local, range.from, range.fromInclusive, true, batch);
+            started = true;
+            next = 0;
+            for (int i = 0; i < batch.size; i++) {
+                if (range.beyondTo(batch.keys[i], batch.keyLengths[i])) {
+                    batch.size = i;
+                    finished = true;
+                    break;
+                }
+            }
+            if (batch.size == 0) {
+                finished = true;
+                return false;
+            }
+            int n = batch.size - 1;
+            System.arraycopy(batch.keys[n], 0, last.bytes, 0, batch.keyLengths[n]);
+            last.length = batch.keyLengths[n];
+            return true;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return lastReturned = batch.entry(next++, local().readBytes);
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null)
+                throw new IllegalStateException();
+            VanillaSharedTreeMap.this.remove(lastReturned.getKey());
+            lastReturned = null;
+        }
+    }
+}
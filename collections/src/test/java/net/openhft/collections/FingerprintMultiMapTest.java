@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FingerprintMultiMapTest {
+    @Test
+    public void testPutRemoveSearch() {
+        HashPosMultiMap map = new FingerprintMultiMap(16, 100);
+        assertEquals("{ }", map.toString());
+        map.put(1, 11);
+        map.startSearch(1);
+        assertEquals(11, map.nextPos());
+        assertTrue(map.nextPos() < 0);
+
+        map.put(3, 33);
+        map.put(1, 12);
+        map.put(1, 13);
+        map.put(17, 32);
+        map.put(1, 14);
+        assertEquals("{ 1=11, 1=12, 3=33, 1=13, 17=32, 1=14 }", map.toString());
+
+        assertTrue(map.remove(1, 11));
+        assertFalse(map.remove(1, 11));
+        // the entries after it are moved back.
+        assertEquals("{ 1=12, 1=13, 3=33, 17=32, 1=14 }", map.toString());
+
+        map.startSearch(1);
+        assertEquals(12, map.nextPos());
+        assertEquals(13, map.nextPos());
+        assertEquals(14, map.nextPos());
+        assertTrue(map.nextPos() < 0);
+
+        map.startSearch(17);
+        assertEquals(32, map.nextPos());
+        assertTrue(map.nextPos() < 0);
+
+        map.remove(1, 12);
+        map.remove(1, 13);
+        map.remove(1, 14);
+        assertEquals("{ 17=32, 3=33 }", map.toString());
+    }
+
+    @Test
+    public void testKeepsMoreThan32Bits() {
+        HashPosMultiMap map = new FingerprintMultiMap(16, 100);
+        long hash1 = 0x1234567800000005L;
+        long hash2 = 0x0765432100000005L;
+        map.put(hash1, 1);
+        map.put(hash2, 2);
+        map.startSearch(hash1);
+        assertEquals(1, map.nextPos());
+        assertTrue(map.nextPos() < 0);
+        assertEquals(2, (int) map.nextPos(hash2, 0));
+        assertTrue(map.nextPos(hash2, map.nextPos(hash2, 0)) < 0);
+        // and position 0 is not confused with an unset entry.
+        map.put(0, 0);
+        assertEquals(0, (int) map.nextPos(0, 0));
+    }
+}
@@ -87,4 +87,25 @@ public class IntIntMultiMapTest {
         map.startSearch(15);
         assertTrue(map.nextPos() < 0);
     }
+
+    @Test
+    public void testStatelessSearch() {
+        HashPosMultiMap map = new IntIntMultiMap(16);
+        map.put(1, 11);
+        map.put(3, 33);
+        map.put(1, 12);
+        map.put(0, 10);
+
+        long state = map.nextPos(1, 0);
+        assertEquals(11, (int) state);
+        // a stateful search in between doesn't interfere.
+        map.startSearch(3);
+        state = map.nextPos(1, state);
+        assertEquals(12, (int) state);
+        assertTrue(map.nextPos(1, state) < 0);
+        assertEquals(33, map.nextPos());
+
+        assertEquals(10, (int) map.nextPos(0, 0));
+        assertTrue(map.nextPos(2, 0) < 0);
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class LongLongSharedHashMapTest {
+    static int counter = 0;
+
+    @Test
+    public void testPutGetRemove() throws IOException {
+        File file = getPersistenceFile();
+        LongLongSharedHashMap map = new SharedHashMapBuilder()
+                .entries(100 * 1000)
+                .minSegments(16)
+                .createLongLong(file);
+        for (long i = -50 * 1000; i < 50 * 1000; i++)
+            assertEquals(0, map.put(i, i * 10));
+        assertEquals(100 * 1000, map.longSize());
+        // the key 0 is kept apart from the other keys
+        assertTrue(map.containsKey(0));
+        assertEquals(0, map.put(0, 1));
+        assertEquals(1, map.remove(0));
+        assertEquals(0, map.put(0, 0));
+
+        // removing moves the entries after each one, which must still be found.
+        for (long i = -50 * 1000; i < 50 * 1000; i += 3)
+            assertEquals(i * 10, map.remove(i));
+        for (long i = -50 * 1000; i < 50 * 1000; i++) {
+            boolean removed = (i + 50 * 1000) % 3 == 0;
+            assertEquals(!removed, map.containsKey(i));
+            assertEquals(removed ? 0 : i * 10, map.get(i));
+        }
+        assertEquals(100 * 1000 - 33334, map.longSize());
+        map.close();
+
+        // reopen
+        LongLongSharedHashMap map2 = new SharedHashMapBuilder().createLongLong(file);
+        assertEquals(100 * 1000 - 33334, map2.longSize());
+        assertEquals(20, map2.get(2));
+        map2.clear();
+        assertEquals(0, map2.longSize());
+        assertFalse(map2.containsKey(2));
+        map2.close();
+    }
+
+    @Test
+    public void testAddAndGetAndCompareAndSwap() throws IOException {
+        LongLongSharedHashMap map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .createLongLong(getPersistenceFile());
+        assertEquals(5, map.addAndGet(7, 5));
+        assertEquals(3, map.addAndGet(7, -2));
+        assertFalse(map.compareAndSwap(7, 5, 10));
+        assertTrue(map.compareAndSwap(7, 3, 10));
+        assertEquals(10, map.get(7));
+        // an absent key is 0
+        assertFalse(map.compareAndSwap(8, 1, 2));
+        assertTrue(map.compareAndSwap(8, 0, 2));
+        assertEquals(2, map.get(8));
+        map.close();
+    }
+
+    @Test
+    public void testConcurrentCounters() throws Exception {
+        File file = getPersistenceFile();
+        final LongLongSharedHashMap map1 = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .createLongLong(file);
+        final LongLongSharedHashMap map2 = new SharedHashMapBuilder().createLongLong(file);
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 4; t++) {
+            final LongLongSharedHashMap map = t % 2 == 0 ? map1 : map2;
+            futures.add(es.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100 * 1000; i++) {
+                        map.addAndGet(i % 100, 1);
+                        map.get(i % 100 + 1);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        es.shutdown();
+        for (int i = 0; i < 100; i++)
+            assertEquals(4 * 1000, map1.get(i));
+        map1.close();
+        map2.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotASharedHashMap() throws IOException {
+        File file = getPersistenceFile();
+        new SharedHashMapBuilder().entries(1000).createLongLong(file).close();
+        new SharedHashMapBuilder().create(file, Long.class, Long.class);
+    }
+
+    static File getPersistenceFile() {
+        String TMP = System.getProperty("java.io.tmpdir");
+        File file = new File(TMP + "/shm-long-long-test" + counter++);
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+}
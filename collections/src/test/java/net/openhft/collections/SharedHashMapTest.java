@@ -16,6 +16,10 @@
 
 package net.openhft.collections;
 
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.MultiStoreBytes;
+import net.openhft.lang.io.NativeBytes;
+import net.openhft.lang.model.DataValueClasses;
 import net.openhft.lang.values.LongValue;
 import net.openhft.lang.values.LongValueNative;
 import org.junit.Ignore;
@@ -23,9 +27,21 @@ import org.junit.Test;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
@@ -199,6 +215,1357 @@ public class SharedHashMapTest {
     }
 
 
+    @Test
+    public void testValuesSpanningSeveralSlots() throws IOException {
+        final SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(2)
+                .entries(1000)
+                .entrySize(32)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+
+        for (int i = 0; i < 200; i++)
+            map.put("key" + i, repeat('a' + i % 26, i));
+        for (int i = 0; i < 200; i++)
+            assertEquals(repeat('a' + i % 26, i), map.get("key" + i).toString());
+
+        // grow and shrink in place or by moving the entry.
+        for (int i = 0; i < 200; i++)
+            assertEquals(repeat('a' + i % 26, i), map.replace("key" + i, repeat('z', 200 - i)).toString());
+        for (int i = 0; i < 200; i++)
+            assertEquals(repeat('z', 200 - i), map.get("key" + i).toString());
+
+        for (int i = 0; i < 200; i += 2)
+            map.remove("key" + i);
+        for (int i = 0; i < 200; i++) {
+            CharSequence value = map.get("key" + i);
+            if (i % 2 == 0)
+                assertNull(value);
+            else
+                assertEquals(repeat('z', 200 - i), value.toString());
+        }
+        map.close();
+    }
+
+    @Test
+    public void testSlotsFreedAreReused() throws IOException {
+        final SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(1)
+                .entries(64)
+                .entrySize(32)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+
+        // far more data than the map could hold at once.
+        String big = repeat('b', 150);
+        for (int i = 0; i < 1000; i++) {
+            map.put("key", big + i);
+            assertEquals(big + i, map.get("key").toString());
+            assertEquals(big + i, map.remove("key").toString());
+        }
+        map.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValueLargerThanMaxEntryOversizeFactor() throws IOException {
+        final SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(2)
+                .entrySize(32)
+                .maxEntryOversizeFactor(4)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        try {
+            map.put("key", repeat('x', 4 * 32));
+        } finally {
+            map.close();
+        }
+    }
+
+    @Test
+    public void testMaxEntryOversizeFactorReadFromFile() throws IOException {
+        File file = getPersistenceFile();
+        SharedHashMap<CharSequence, CharSequence> map1 = new SharedHashMapBuilder()
+                .minSegments(2)
+                .entrySize(32)
+                .maxEntryOversizeFactor(4)
+                .create(file, CharSequence.class, CharSequence.class);
+        SharedHashMap<CharSequence, CharSequence> map2 = new SharedHashMapBuilder()
+                .maxEntryOversizeFactor(2)
+                .create(file, CharSequence.class, CharSequence.class);
+        // three slots, too many for the factor given to the second builder.
+        String big = repeat('x', 2 * 32);
+        map1.put("key", big);
+        assertEquals(big, map2.get("key").toString());
+        map2.put("key2", big);
+        assertEquals(big, map1.get("key2").toString());
+        map1.close();
+        map2.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testSingleSlotFormatRejected() throws IOException {
+        File file = getPersistenceFile();
+        FileOutputStream fos = new FileOutputStream(file);
+        byte[] header = new byte[SharedHashMapBuilder.HEADER_SIZE];
+        System.arraycopy("SharedHM".getBytes(), 0, header, 0, 8);
+        fos.write(header);
+        fos.close();
+        new SharedHashMapBuilder().create(file, CharSequence.class, CharSequence.class);
+    }
+
+    @Test
+    public void testGetWhileUpdatingSeesWholeValues() throws Exception {
+        final SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(1)
+                .entries(100)
+                .entrySize(32)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        map.put("key", "a");
+
+        final AtomicInteger errors = new AtomicInteger();
+        final int runs = 100 * 1000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < runs; i++)
+                    map.put("key", repeat('a' + i % 26, 1 + i % 100));
+            }
+        });
+        writer.start();
+        StringBuilder value = new StringBuilder();
+        while (writer.isAlive()) {
+            CharSequence cs = map.getUsing("key", value);
+            for (int i = 1; i < cs.length(); i++)
+                if (cs.charAt(i) != cs.charAt(0)) {
+                    errors.incrementAndGet();
+                    break;
+                }
+        }
+        writer.join();
+        assertEquals(0, errors.get());
+        assertEquals(repeat('a' + (runs - 1) % 26, 1 + (runs - 1) % 100), map.get("key").toString());
+        map.close();
+    }
+
+    @Test
+    public void testEntrySetKeySetAndValues() throws IOException {
+        final SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(4)
+                .entries(1000)
+                .entrySize(32)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        Map<String, String> expected = new HashMap<String, String>();
+        for (int i = 0; i < 300; i++) {
+            String value = repeat('a' + i % 26, i % 70);
+            map.put("key" + i, value);
+            expected.put("key" + i, value);
+        }
+
+        assertEquals(300, map.size());
+        Map<String, String> actual = new HashMap<String, String>();
+        for (Map.Entry<CharSequence, CharSequence> entry : map.entrySet())
+            actual.put(entry.getKey().toString(), entry.getValue().toString());
+        assertEquals(expected, actual);
+        assertEquals(300, map.keySet().size());
+        assertEquals(300, map.values().size());
+        assertTrue(map.containsKey("key10"));
+        assertFalse(map.containsKey("key300"));
+
+        // remove every other entry as we go.
+        int count = 0;
+        for (Iterator<CharSequence> iter = map.keySet().iterator(); iter.hasNext(); ) {
+            iter.next();
+            if (count++ % 2 == 0)
+                iter.remove();
+        }
+        assertEquals(300, count);
+        assertEquals(150, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.entrySet().iterator().hasNext());
+        assertNull(map.get("key1"));
+        map.close();
+    }
+
+    @Test
+    public void testIterateWhileUpdating() throws Exception {
+        final SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(1)
+                .entries(10000)
+                .entrySize(32)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        for (int i = 0; i < 5000; i++)
+            map.put("key" + i, "a");
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // values of one size so no entry moves.
+                for (int i = 0; running.get(); i++)
+                    map.put("key" + i % 5000, String.valueOf((char) ('a' + i % 26)));
+            }
+        });
+        writer.start();
+        try {
+            // each change to the segment resumes from the last entry, rather than the start of the segment.
+            for (int n = 0; n < 5; n++) {
+                Set<String> keys = new HashSet<String>();
+                for (CharSequence key : map.keySet())
+                    assertTrue(keys.add(key.toString()));
+                assertEquals(5000, keys.size());
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+            map.close();
+        }
+    }
+
+    @Test
+    public void testEntrySetOfGeneratedValues() throws IOException {
+        SharedHashMap<CharSequence, LongValue> map = getSharedMap(1000, 4, 24);
+        LongValue value = new LongValueNative();
+        for (int i = 0; i < 100; i++) {
+            map.acquireUsing("user:" + i, value);
+            value.setValue(i);
+        }
+        long total = 0;
+        for (Map.Entry<CharSequence, LongValue> entry : map.entrySet()) {
+            // the value references the entry, so updates are applied to the map.
+            total += entry.getValue().addValue(1000);
+        }
+        assertEquals(100 * 1000 + 99 * 100 / 2, total);
+        assertEquals(1010, map.getUsing("user:10", value).getValue());
+        map.close();
+    }
+
+    @Test
+    public void testSizeSharedBetweenMaps() throws IOException {
+        File file = getPersistenceFile();
+        SharedHashMap<CharSequence, LongValue> map1 = new SharedHashMapBuilder()
+                .minSegments(8)
+                .generatedValueType(true)
+                .create(file, CharSequence.class, LongValue.class);
+        SharedHashMap<CharSequence, LongValue> map2 = new SharedHashMapBuilder()
+                .generatedValueType(true)
+                .create(file, CharSequence.class, LongValue.class);
+        assertTrue(map2.isEmpty());
+
+        LongValue value = new LongValueNative();
+        for (int i = 0; i < 1000; i++)
+            map1.acquireUsing("user:" + i, value);
+        map1.acquireUsing("user:1", value);
+        assertEquals(1000, map1.longSize());
+        assertEquals(1000, map2.size());
+
+        for (int i = 0; i < 1000; i += 4)
+            map2.remove("user:" + i);
+        assertEquals(750, map1.size());
+        assertEquals(750, map2.longSize());
+
+        map2.clear();
+        assertEquals(0, map1.longSize());
+        assertTrue(map1.isEmpty());
+        map1.close();
+        map2.close();
+    }
+
+    @Test
+    public void testHasherAndIndexStoredInFile() throws IOException {
+        File file = getPersistenceFile();
+        // as a map created before either could be set.
+        SharedHashMap<CharSequence, CharSequence> map1 = new SharedHashMapBuilder()
+                .minSegments(8)
+                .hasher(SharedMapHashers.VANILLA)
+                .fingerprintIndex(false)
+                .create(file, CharSequence.class, CharSequence.class);
+        for (int i = 0; i < 100; i++)
+            map1.put("key:" + i, "value:" + i);
+        map1.close();
+
+        SharedHashMap<CharSequence, CharSequence> map2 = new SharedHashMapBuilder()
+                .create(file, CharSequence.class, CharSequence.class);
+        for (int i = 0; i < 100; i++)
+            assertEquals("value:" + i, map2.get("key:" + i));
+        map2.close();
+    }
+
+    @Test
+    public void testMetrics() throws IOException {
+        SharedMapStatistics statistics = new SharedMapStatistics();
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(8)
+                .metrics(statistics)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        for (int i = 0; i < 100; i++)
+            map.put("key:" + i, "value:" + i);
+        for (int i = 0; i < 200; i++)
+            map.get("key:" + i);
+        map.remove("key:0");
+        assertFalse(map.containsKey("key:0"));
+
+        assertEquals(100, statistics.operations(SharedMapOperation.PUT));
+        assertEquals(200, statistics.operations(SharedMapOperation.GET));
+        assertEquals(1, statistics.operations(SharedMapOperation.REMOVE));
+        assertEquals(1, statistics.operations(SharedMapOperation.CONTAINS_KEY));
+        assertTrue(statistics.operationPercentile(SharedMapOperation.PUT, 1) > 0);
+        assertTrue(statistics.lockHoldPercentile(1) > 0);
+        // a key is only compared when its hash matches.
+        assertEquals(1, statistics.keysComparedPercentile(1));
+        assertEquals(0, statistics.slowOperations());
+        map.close();
+    }
+
+    @Test
+    public void testLockStatistics() throws Exception {
+        File file = getPersistenceFile();
+        final SharedHashMap<CharSequence, CharSequence> map1 = new SharedHashMapBuilder()
+                .minSegments(4)
+                .lockStatistics(true)
+                .create(file, CharSequence.class, CharSequence.class);
+        SharedHashMap<CharSequence, CharSequence> map2 = new SharedHashMapBuilder()
+                .create(file, CharSequence.class, CharSequence.class);
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 2; t++) {
+            futures.add(es.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++)
+                        map1.put("key:" + i % 100, "value:" + i);
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        es.shutdown();
+
+        // recorded in the file, so seen by the other map.
+        List<SegmentLockStatistics> statistics = map2.lockStatistics();
+        assertEquals(4, statistics.size());
+        long acquired = 0, held = 0;
+        for (SegmentLockStatistics s : statistics) {
+            acquired += s.acquired();
+            held += s.holdNanos();
+            assertTrue(s.contended() <= s.acquired());
+        }
+        assertEquals(20000, acquired);
+        assertTrue(held > 0);
+        // a shade per segment.
+        assertEquals(4, LockHeatmap.heatmap(statistics).split("\n")[0].length());
+        map1.close();
+        map2.close();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testLockStatisticsNotRecorded() throws IOException {
+        new SharedHashMapBuilder()
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class)
+                .lockStatistics();
+    }
+
+    @Test
+    public void testGrowWhileInUse() throws Exception {
+        final File file = getPersistenceFile();
+        SharedHashMap<CharSequence, CharSequence> map1 = new SharedHashMapBuilder()
+                .entries(10 * 1000)
+                .minSegments(4)
+                .entrySize(32)
+                .create(file, CharSequence.class, CharSequence.class);
+        final SharedHashMap<CharSequence, CharSequence> map2 = new SharedHashMapBuilder()
+                .create(file, CharSequence.class, CharSequence.class);
+        for (int i = 0; i < 1000; i++)
+            map1.put("key:" + i, "value:" + i);
+
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Future<?> writer = es.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1000; i < 3000; i++) {
+                    map2.put("key:" + i, "value:" + i);
+                    assertEquals("value:" + (i - 1000), map2.get("key:" + (i - 1000)));
+                }
+            }
+        });
+        map1.grow();
+        map2.grow();
+        writer.get();
+        es.shutdown();
+
+        assertEquals(3000, map1.size());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals("value:" + i, map1.get("key:" + i));
+            assertEquals("value:" + i, map2.get("key:" + i));
+        }
+        map1.close();
+        map2.close();
+
+        SharedHashMap<CharSequence, CharSequence> map3 = new SharedHashMapBuilder()
+                .create(file, CharSequence.class, CharSequence.class);
+        assertEquals(3000, map3.size());
+        for (int i = 0; i < 3000; i += 3)
+            assertEquals("value:" + i, map3.remove("key:" + i));
+        assertEquals(2000, map3.size());
+        map3.close();
+    }
+
+    @Test
+    public void testPutAllAndGetAll() throws IOException {
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(16)
+                .entries(10 * 1000)
+                .entrySize(32)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        Map<CharSequence, CharSequence> batch = new HashMap<CharSequence, CharSequence>();
+        for (int i = 0; i < 2000; i++)
+            batch.put("key" + i, "value" + i);
+        map.put("key0", "replaced");
+        map.putAll(batch);
+        assertEquals(2000, map.size());
+
+        CharSequence[] keys = new CharSequence[2001];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = "key" + i;
+        CharSequence[] values = new CharSequence[keys.length];
+        values[2000] = "absent";
+        map.getAll(keys, values);
+        for (int i = 0; i < 2000; i++)
+            assertEquals("value" + i, values[i].toString());
+        assertNull(values[2000]);
+        map.close();
+    }
+
+    @Test
+    public void testComputeInPlace() throws Exception {
+        final SharedHashMap<CharSequence, LongValue> map = new SharedHashMapBuilder()
+                .minSegments(4)
+                .entries(1000)
+                .entrySize(32)
+                .generatedValueType(true)
+                .create(getPersistenceFile(), CharSequence.class, LongValue.class);
+        final SharedMapFunction<CharSequence, LongValue> increment = new SharedMapFunction<CharSequence, LongValue>() {
+            final LongValue one = DataValueClasses.newInstance(LongValue.class);
+
+            {
+                one.setValue(1);
+            }
+
+            @Override
+            public LongValue apply(CharSequence key, LongValue value) {
+                if (value == null)
+                    return one;
+                value.setValue(value.getValue() + 1);
+                return value;
+            }
+        };
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(es.submit(new Runnable() {
+                @Override
+                public void run() {
+                    LongValue using = DataValueClasses.newDirectReference(LongValue.class);
+                    for (int i = 0; i < 10000; i++)
+                        map.compute("counter" + i % 10, using, increment);
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        es.shutdown();
+        for (int i = 0; i < 10; i++)
+            assertEquals(4000, map.get("counter" + i).getValue());
+
+        // null removes the entry.
+        assertNull(map.computeIfPresent("counter0", null, new SharedMapFunction<CharSequence, LongValue>() {
+            @Override
+            public LongValue apply(CharSequence key, LongValue value) {
+                return null;
+            }
+        }));
+        assertNull(map.get("counter0"));
+        assertNull(map.computeIfPresent("counter0", null, increment));
+        assertNull(map.get("counter0"));
+        map.close();
+    }
+
+    @Test
+    public void testPutInsideCompute() throws Exception {
+        final SharedHashMap<CharSequence, LongValue> map = new SharedHashMapBuilder()
+                .minSegments(1)
+                .entries(1000)
+                .entrySize(32)
+                .generatedValueType(true)
+                .create(getPersistenceFile(), CharSequence.class, LongValue.class);
+        final LongValue seven = DataValueClasses.newInstance(LongValue.class);
+        seven.setValue(7);
+        map.put("a", seven);
+        final ExecutorService es = Executors.newSingleThreadExecutor();
+        final List<Future<Long>> reads = new ArrayList<Future<Long>>();
+        LongValue using = DataValueClasses.newDirectReference(LongValue.class);
+        map.compute("a", using, new SharedMapFunction<CharSequence, LongValue>() {
+            @Override
+            public LongValue apply(CharSequence key, LongValue value) {
+                // the same segment, locked again by this thread.
+                map.put("b", seven);
+                // the change to "a" is still in progress.
+                assertEquals(1, map.version("a") & 1);
+                value.setValue(42);
+                reads.add(es.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return map.getUsing("a", DataValueClasses.newInstance(LongValue.class)).getValue();
+                    }
+                }));
+                value.setValue(43);
+                return value;
+            }
+        });
+        // only the value once the change is complete is read.
+        assertEquals(43L, (long) reads.get(0).get());
+        es.shutdown();
+        assertEquals(0, map.version("a") & 1);
+        assertEquals(43, map.get("a").getValue());
+        assertEquals(7, map.get("b").getValue());
+        assertEquals(2, map.size());
+        map.close();
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(2)
+                .entries(1000)
+                .entrySize(32)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        SharedMapMergeFunction<CharSequence> concat = new SharedMapMergeFunction<CharSequence>() {
+            @Override
+            public CharSequence merge(CharSequence oldValue, CharSequence value) {
+                return oldValue + "," + value;
+            }
+        };
+        assertEquals("a", map.merge("key", "a", null, concat).toString());
+        assertEquals("a,b", map.merge("key", "b", null, concat).toString());
+        StringBuilder using = new StringBuilder();
+        for (int i = 0; i < 20; i++)
+            map.merge("key", "c" + i, using, concat);
+        assertTrue(map.get("key").toString().startsWith("a,b,c0,c1,"));
+        assertTrue(map.get("key").toString().endsWith(",c19"));
+        map.close();
+    }
+
+    @Test
+    public void testTransactionCommitsAllChanges() throws IOException {
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(16)
+                .entries(1000)
+                .entrySize(32)
+                .maxEntryOversizeFactor(4)
+                .transactional(true)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        map.put("removed", "before");
+
+        SharedMapTransaction<CharSequence, CharSequence> tx = map.startTransaction();
+        for (int i = 0; i < 100; i++)
+            tx.put("key" + i, "value" + i);
+        tx.remove("removed");
+        assertEquals(1, map.size());
+        tx.commit();
+        assertEquals(100, map.size());
+        assertNull(map.get("removed"));
+        for (int i = 0; i < 100; i++)
+            assertEquals("value" + i, map.get("key" + i).toString());
+
+        // fails on the last change so none are applied.
+        for (int i = 0; i < 100; i++)
+            tx.put("key" + i, "changed" + i);
+        tx.remove("key1");
+        tx.put("removed", "again");
+        tx.put("too-large", repeat('x', 4 * 32));
+        try {
+            tx.commit();
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(100, map.size());
+        assertNull(map.get("removed"));
+        assertNull(map.get("too-large"));
+        for (int i = 0; i < 100; i++)
+            assertEquals("value" + i, map.get("key" + i).toString());
+        map.close();
+    }
+
+    @Test
+    public void testSyncBatchIsForcedOnce() throws IOException {
+        VanillaSharedHashMap<CharSequence, CharSequence> map = (VanillaSharedHashMap<CharSequence, CharSequence>)
+                new SharedHashMapBuilder()
+                        .minSegments(16)
+                        .entries(1000)
+                        .entrySize(32)
+                        .transactional(true)
+                        .durability(SharedMapDurability.SYNC)
+                        .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        map.put("key", "value");
+        assertEquals(1, map.commitsRequested());
+
+        // one force for all the segments changed, after every lock is released.
+        Map<CharSequence, CharSequence> batch = new HashMap<CharSequence, CharSequence>();
+        for (int i = 0; i < 100; i++)
+            batch.put("key" + i, "value" + i);
+        map.putAll(batch);
+        assertEquals(2, map.commitsRequested());
+
+        SharedMapTransaction<CharSequence, CharSequence> tx = map.startTransaction();
+        for (int i = 0; i < 100; i++)
+            tx.put("key" + i, "changed" + i);
+        tx.commit();
+        assertEquals(3, map.commitsRequested());
+
+        // nothing changed, so nothing to force.
+        map.putAll(new HashMap<CharSequence, CharSequence>());
+        assertEquals(3, map.commitsRequested());
+        for (int i = 0; i < 100; i++)
+            assertEquals("changed" + i, map.get("key" + i).toString());
+        map.close();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testTransactionNotSupported() throws IOException {
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        try {
+            map.startTransaction();
+        } finally {
+            map.close();
+        }
+    }
+
+    @Test
+    public void testTransactionRolledBackWhenHolderStops() throws Exception {
+        final SharedHashMap<CharSequence, Serializable> map = new SharedHashMapBuilder()
+                .minSegments(16)
+                .entries(1000)
+                .entrySize(64)
+                .lockTimeOutMS(100)
+                .transactional(true)
+                .create(getPersistenceFile(), CharSequence.class, Serializable.class);
+        for (int i = 0; i < 50; i++)
+            map.put("key" + i, "before" + i);
+
+        // the holder stops part way through a commit, holding the locks, as if the process had died.
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SharedMapTransaction<CharSequence, Serializable> tx = map.startTransaction();
+                for (int i = 0; i < 50; i++)
+                    tx.put("key" + i, "after" + i);
+                tx.put("key0", new StoppingValue(stopped));
+                try {
+                    tx.commit();
+                } catch (RuntimeException expected) {
+                    // interrupted once the test has finished with the map.
+                }
+            }
+        });
+        holder.setDaemon(true);
+        holder.start();
+        stopped.await();
+
+        try {
+            // rolled back as the segments are locked.
+            for (int i = 0; i < 50; i++)
+                map.put("other" + i, "value");
+            for (int i = 0; i < 50; i++)
+                assertEquals("before" + i, map.get("key" + i));
+            assertEquals(100, map.size());
+        } finally {
+            // the holder must stop using the map before it is closed.
+            holder.interrupt();
+            holder.join();
+            map.close();
+        }
+    }
+
+    @Test
+    public void testLockHeldByDeadProcessIsRecovered() throws IOException {
+        if (!new File("/proc/self").exists())
+            return;
+        VanillaSharedHashMap<CharSequence, CharSequence> map = (VanillaSharedHashMap<CharSequence, CharSequence>)
+                new SharedHashMapBuilder()
+                        .minSegments(4)
+                        .entries(1000)
+                        .entrySize(32)
+                        .lockTimeOutMS(60 * 1000)
+                        .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        // a pid no process has.
+        int deadPid = Integer.MAX_VALUE - 1;
+        while (new File("/proc/" + deadPid).exists())
+            deadPid--;
+        // every lock held by a thread of a process which has died.
+        for (int i = 0; i < map.segmentCount(); i++) {
+            NativeBytes bytes = map.segmentBytes(i);
+            bytes.writeOrderedInt(VanillaSharedHashMap.Segment.LOCK_PROCESS, deadPid);
+            bytes.writeOrderedInt(VanillaSharedHashMap.Segment.LOCK, (1 << 24) | 12345);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++)
+            map.put("key" + i, "value" + i);
+        assertEquals(100, map.size());
+        // well within the lock time out.
+        assertTrue(System.nanoTime() - start < 10 * 1000 * 1000 * 1000L);
+        for (int i = 0; i < map.segmentCount(); i++)
+            assertEquals(0, map.segmentBytes(i).readInt(VanillaSharedHashMap.Segment.LOCK_PROCESS));
+        map.close();
+    }
+
+    @Test
+    public void testSplitRepeatedAfterPartialMove() throws IOException {
+        VanillaSharedHashMap<CharSequence, CharSequence> map = (VanillaSharedHashMap<CharSequence, CharSequence>)
+                new SharedHashMapBuilder()
+                        .minSegments(1)
+                        .entries(1000)
+                        .entrySize(32)
+                        .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        for (int i = 0; i < 100; i++)
+            map.put("key" + i, "value" + i);
+        map.grow();
+        assertEquals(2, map.segmentCount());
+
+        // put the segments back as if the split died part way: the parent has every entry, and the child has
+        // copies of half of those which belong in it.
+        VanillaSharedHashMap<CharSequence, CharSequence>.Segment parent = map.segment(0);
+        VanillaSharedHashMap<CharSequence, CharSequence>.Segment child = map.segment(1);
+        parent.lock();
+        child.lock();
+        try {
+            parent.startWrite();
+            child.startWrite();
+            List<Integer> positions = new ArrayList<Integer>();
+            MultiStoreBytes entry = new MultiStoreBytes();
+            for (int pos = child.nextEntryPos(entry, 0, child.sequence()); pos >= 0;
+                 pos = child.nextEntryPos(entry, pos + child.readEntry(pos), child.sequence()))
+                positions.add(pos);
+            assertTrue(positions.size() > 10);
+            for (int i = 0; i < positions.size(); i++) {
+                int pos = positions.get(i);
+                int slots = child.readEntry(pos);
+                long hash = child.hashOfKeyAt(pos);
+                parent.copyEntry(child, pos, slots, hash);
+                if (i % 2 == 0)
+                    child.freeEntry(pos, slots, hash / 2);
+            }
+            child.countSize();
+            parent.reindex(1);
+            child.indexedFor(VanillaSharedHashMap.Segment.INACTIVE);
+        } finally {
+            child.unlock();
+            parent.unlock();
+        }
+
+        // completes the split before growing again.
+        map.grow();
+        assertEquals(4, map.segmentCount());
+        assertEquals(100, map.size());
+        Set<String> keys = new HashSet<String>();
+        for (CharSequence key : map.keySet())
+            assertTrue(keys.add(key.toString()));
+        assertEquals(100, keys.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals("value" + i, map.get("key" + i).toString());
+        map.close();
+    }
+
+    @Test
+    public void testSnapshotWhileInUse() throws Exception {
+        final SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(8)
+                .entries(10 * 1000)
+                .entrySize(32)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        for (int i = 0; i < 1000; i++)
+            map.put("key" + i, "value" + i);
+        map.grow();
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int n = 0; running.get(); n++)
+                    map.put("key" + n % 1000, "changed" + n % 1000);
+            }
+        });
+        writer.start();
+        File snapshotFile = getPersistenceFile();
+        map.snapshot(snapshotFile);
+        running.set(false);
+        writer.join();
+
+        SharedHashMap<CharSequence, CharSequence> copy = new SharedHashMapBuilder()
+                .create(snapshotFile, CharSequence.class, CharSequence.class);
+        assertEquals(16, ((VanillaSharedHashMap) copy).segmentCount());
+        assertEquals(1000, copy.size());
+        for (int i = 0; i < 1000; i++) {
+            String value = copy.get("key" + i).toString();
+            assertTrue(value, value.equals("value" + i) || value.equals("changed" + i));
+        }
+        // not locked in the copy.
+        copy.put("key0", "copied");
+        assertEquals("copied", copy.get("key0").toString());
+        copy.close();
+        map.close();
+    }
+
+    @Test
+    public void testDurability() throws Exception {
+        for (SharedMapDurability durability : SharedMapDurability.values()) {
+            File file = getPersistenceFile();
+            final SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                    .minSegments(8)
+                    .entries(10 * 1000)
+                    .entrySize(32)
+                    .durability(durability)
+                    .flushIntervalMS(10)
+                    .create(file, CharSequence.class, CharSequence.class);
+            // committing from several threads at once.
+            ExecutorService es = Executors.newFixedThreadPool(4);
+            for (int t = 0; t < 4; t++) {
+                final int start = t * 250;
+                es.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = start; i < start + 250; i++)
+                            map.put("key" + i, "value" + i);
+                        return null;
+                    }
+                });
+            }
+            es.shutdown();
+            assertTrue(es.awaitTermination(30, TimeUnit.SECONDS));
+            map.grow();
+            // closing flushes whatever the durability hasn't yet.
+            map.close();
+
+            SharedHashMap<CharSequence, CharSequence> reopened = new SharedHashMapBuilder()
+                    .create(file, CharSequence.class, CharSequence.class);
+            assertEquals(durability.toString(), 1000, reopened.size());
+            for (int i = 0; i < 1000; i++)
+                assertEquals("value" + i, reopened.get("key" + i).toString());
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        File file = getPersistenceFile();
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(4)
+                .entries(10 * 1000)
+                .entrySize(32)
+                .entryTimeToLive(200, TimeUnit.MILLISECONDS)
+                .expirySweepIntervalMS(0)
+                .create(file, CharSequence.class, CharSequence.class);
+        for (int i = 0; i < 1000; i++)
+            map.put("key" + i, "value" + i);
+        assertEquals("value0", map.get("key0").toString());
+        assertTrue(map.containsKey("key1"));
+        // the last put expires last.
+        for (long deadline = System.currentTimeMillis() + 5000; map.get("key999") != null; )
+            assertTrue(System.currentTimeMillis() < deadline);
+
+        // expired when read, and removed when used with the lock held.
+        assertNull(map.get("key0"));
+        assertFalse(map.containsKey("key1"));
+        assertNull(map.remove("key2"));
+        assertNull(map.put("key3", "again"));
+        assertEquals("again", map.get("key3").toString());
+        assertEquals(999, map.size());
+        assertEquals(998, map.removeExpired());
+        assertEquals(1, map.size());
+        assertEquals("again", map.get("key3").toString());
+        map.close();
+
+        // the time to live is stored in the file and entries are removed in the background.
+        SharedHashMap<CharSequence, CharSequence> map2 = new SharedHashMapBuilder()
+                .expirySweepIntervalMS(10)
+                .create(file, CharSequence.class, CharSequence.class);
+        for (long deadline = System.currentTimeMillis() + 5000; map2.size() > 0; Thread.yield())
+            assertTrue(System.currentTimeMillis() < deadline);
+        map2.close();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRemoveExpiredNotSupported() throws IOException {
+        getSharedMap(1000, 4, 32).removeExpired();
+    }
+
+    @Test
+    public void testEvictionListenerGetsCopiesOutsideTheLock() throws IOException {
+        final List<String> failures = new ArrayList<String>();
+        final Map<Long, LongValue> evicted = new HashMap<Long, LongValue>();
+        final SharedHashMap<Long, LongValue>[] maps = new SharedHashMap[1];
+        SharedHashMap<Long, LongValue> map = maps[0] = new SharedHashMapBuilder()
+                .minSegments(1)
+                .entries(100)
+                .entrySize(32)
+                .evictWhenFull(true)
+                .generatedValueType(true)
+                .evictionListener(new SharedMapEvictionListener<Long, LongValue>() {
+                    @Override
+                    public void onEvict(Long key, LongValue value) {
+                        // the put which evicted it has finished, so the map can be used.
+                        if (maps[0].containsKey(key))
+                            failures.add("still contains " + key);
+                        evicted.put(key, value);
+                    }
+                })
+                .create(getPersistenceFile(), Long.class, LongValue.class);
+        LongValue value = DataValueClasses.newInstance(LongValue.class);
+        for (long i = 0; i < 1000; i++) {
+            value.setValue(i);
+            map.put(i, value);
+        }
+        assertEquals(new ArrayList<String>(), failures);
+        assertFalse(evicted.isEmpty());
+        assertEquals(1000, map.size() + evicted.size());
+        // each value kept is a copy, not a view of slots since reused.
+        for (Map.Entry<Long, LongValue> entry : evicted.entrySet())
+            assertEquals(entry.getKey().longValue(), entry.getValue().getValue());
+        map.close();
+    }
+
+    @Test
+    public void testEvictWhenFull() throws IOException {
+        final AtomicInteger evictions = new AtomicInteger();
+        final List<String> evictedKeys = new ArrayList<String>();
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(2)
+                .entries(1000)
+                .entrySize(32)
+                .evictWhenFull(true)
+                .evictionListener(new SharedMapEvictionListener<CharSequence, CharSequence>() {
+                    @Override
+                    public void onEvict(CharSequence key, CharSequence value) {
+                        evictions.incrementAndGet();
+                        evictedKeys.add(key + "=" + value);
+                    }
+                })
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        map.put("hot", "value");
+        for (int i = 0; i < 20000; i++) {
+            map.put("key" + i, "value" + i);
+            // used since the clock hand last passed it, so never evicted.
+            assertEquals("value", map.get("hot").toString());
+        }
+        assertEquals(20001, map.size() + evictions.get());
+        assertTrue(map.size() >= 1000);
+        assertEquals(evictions.get(), evictedKeys.size());
+        assertFalse(evictedKeys.contains("hot=value"));
+        // the most recent entries remain.
+        assertEquals("value19999", map.get("key19999").toString());
+
+        // entries larger than one slot evict as many as needed.
+        for (int i = 0; i < 1000; i++)
+            map.put("large" + i, repeat('x', 100));
+        assertEquals(repeat('x', 100), map.get("large999").toString());
+        map.close();
+    }
+
+    @Test
+    public void testJournal() throws IOException {
+        File file = getPersistenceFile();
+        File journalFile = new File(file.getPath() + ".journal");
+        journalFile.delete();
+        journalFile.deleteOnExit();
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(4)
+                .entries(1000)
+                .entrySize(32)
+                .journalCapacity(100)
+                .create(file, CharSequence.class, CharSequence.class);
+        SharedMapJournalReader reader = map.journalReader();
+        assertFalse(reader.next());
+
+        map.put("a", "1");
+        map.put("a", "2");
+        map.remove("a");
+        map.clear();
+        SharedMapChange[] expected = {SharedMapChange.PUT, SharedMapChange.PUT, SharedMapChange.REMOVE};
+        int segment = -1;
+        long keyHash = 0;
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(reader.next());
+            assertEquals(i, reader.sequence());
+            assertEquals(expected[i], reader.change());
+            if (segment < 0) {
+                segment = reader.segment();
+                keyHash = reader.keyHash();
+            }
+            assertEquals(segment, reader.segment());
+            assertEquals(keyHash, reader.keyHash());
+        }
+        // one record per segment.
+        for (int i = 0; i < 4; i++) {
+            assertTrue(reader.next());
+            assertEquals(SharedMapChange.CLEAR, reader.change());
+            assertEquals(-1, reader.slot());
+            assertEquals(0, reader.keyHash());
+        }
+        assertFalse(reader.next());
+        assertEquals(0, reader.lost());
+
+        // the journal is shared with another map of the same file.
+        SharedHashMap<CharSequence, CharSequence> map2 = new SharedHashMapBuilder()
+                .create(file, CharSequence.class, CharSequence.class);
+        SharedMapJournalReader reader2 = map2.journalReader();
+        map.put("b", "1");
+        assertTrue(reader2.next());
+        assertEquals(SharedMapChange.PUT, reader2.change());
+        assertTrue(reader.next());
+        assertEquals(reader.sequence(), reader2.sequence());
+        assertEquals(reader.slot(), reader2.slot());
+        assertEquals(reader.keyHash(), reader2.keyHash());
+        assertTrue(keyHash != reader.keyHash());
+
+        // a reader which falls behind loses the oldest records.
+        long position = reader.position();
+        for (int i = 0; i < 200; i++)
+            map.put("key" + i, "value" + i);
+        int read = 0;
+        while (reader.next())
+            read++;
+        assertEquals(128, read);
+        assertEquals(200 - 128, reader.lost());
+        reader2.position(position + 200 - 10);
+        read = 0;
+        while (reader2.next())
+            read++;
+        assertEquals(10, read);
+        map2.close();
+        map.close();
+    }
+
+    @Test
+    public void testJournalSkipsUnpublishedRecord() throws IOException {
+        File file = getPersistenceFile();
+        File journalFile = SharedMapJournal.fileFor(file);
+        journalFile.delete();
+        journalFile.deleteOnExit();
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .entrySize(32)
+                .journalCapacity(16)
+                .lockTimeOutMS(100)
+                .create(file, CharSequence.class, CharSequence.class);
+        SharedMapJournalReader reader = map.journalReader();
+        // a writer which claims a record and dies before marking it.
+        SharedMapJournal journal = new SharedMapJournal(journalFile, 16, false, 0);
+        assertTrue(journal.bytes().compareAndSwapLong(SharedMapJournal.WRITE_SEQUENCE, 0, 1));
+        journal.close();
+
+        map.put("a", "1");
+        assertFalse(reader.next());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!reader.next())
+            assertTrue("The unpublished record wasn't skipped", System.currentTimeMillis() < deadline);
+        assertEquals(1, reader.sequence());
+        assertEquals(SharedMapChange.PUT, reader.change());
+        assertEquals(1, reader.skipped());
+        assertEquals(0, reader.lost());
+        map.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testVersionOfWrongKeyType() throws Exception {
+        SharedHashMap map = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        try {
+            map.version(1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        long start = System.nanoTime();
+        try {
+            map.awaitChange(null, 0, 10, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        map.close();
+    }
+
+    @Test
+    public void testAwaitChange() throws Exception {
+        File file = getPersistenceFile();
+        SharedHashMap<CharSequence, CharSequence> consumer = new SharedHashMapBuilder()
+                .entries(1000)
+                .entrySize(32)
+                .create(file, CharSequence.class, CharSequence.class);
+        // as if in another process.
+        final SharedHashMap<CharSequence, CharSequence> producer = new SharedHashMapBuilder()
+                .create(file, CharSequence.class, CharSequence.class);
+        producer.put("signal", "0");
+        long version = consumer.version("signal");
+        assertEquals(0, version & 1);
+        assertEquals(version, consumer.awaitChange("signal", version, 10, TimeUnit.MILLISECONDS));
+
+        final Thread consumerThread = Thread.currentThread();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // once the consumer has stopped spinning and parked, or it gives up.
+                long deadline = System.currentTimeMillis() + 1000;
+                while (consumerThread.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline)
+                    Thread.yield();
+                producer.put("signal", "1");
+            }
+        });
+        thread.start();
+        long newVersion = consumer.awaitChange("signal", version, 10, TimeUnit.SECONDS);
+        assertTrue(newVersion != version);
+        assertEquals(newVersion, consumer.version("signal"));
+        assertEquals("1", consumer.get("signal").toString());
+        thread.join();
+
+        Thread.currentThread().interrupt();
+        try {
+            consumer.awaitChange("signal", newVersion, 10, TimeUnit.SECONDS);
+            fail();
+        } catch (InterruptedException expected) {
+        }
+        producer.close();
+        consumer.close();
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        File file = getPersistenceFile();
+        final SharedHashMap<CharSequence, CharSequence> writer = new SharedHashMapBuilder()
+                .minSegments(4)
+                .entries(1000)
+                .entrySize(32)
+                .create(file, CharSequence.class, CharSequence.class);
+        for (int i = 0; i < 100; i++)
+            writer.put("key" + i, "value" + i);
+        SharedHashMap<CharSequence, CharSequence> reader = new SharedHashMapBuilder()
+                .readOnly(true)
+                .create(file, CharSequence.class, CharSequence.class);
+        assertEquals(100, reader.size());
+        assertEquals("value42", reader.get("key42").toString());
+        assertTrue(reader.containsKey("key99"));
+        assertNull(reader.get("key100"));
+        CharSequence[] keys = {"key1", "key2", "none"};
+        CharSequence[] values = new CharSequence[3];
+        reader.getAll(keys, values);
+        assertEquals("value2", values[1].toString());
+        assertNull(values[2]);
+        // iterating doesn't need the locks.
+        int count = 0;
+        for (Map.Entry<CharSequence, CharSequence> entry : reader.entrySet()) {
+            assertEquals("value" + entry.getKey().toString().substring(3), entry.getValue().toString());
+            count++;
+        }
+        assertEquals(100, count);
+        assertTrue(reader.containsValue("value7"));
+        try {
+            reader.put("key1", "changed");
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            reader.grow();
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        // reads are consistent while the writer changes the entries.
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch replacedAll = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; running.get(); i++) {
+                    writer.put("key" + i % 100, repeat('a' + i % 26, i % 50));
+                    if (i == 99)
+                        replacedAll.countDown();
+                }
+            }
+        });
+        thread.start();
+        // every value is one the writer wrote, so a value read part way through a change isn't mistaken for one.
+        assertTrue(replacedAll.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100000; i++) {
+            CharSequence value = reader.get("key" + i % 100);
+            for (int j = 1; j < value.length(); j++)
+                assertEquals(value.charAt(0), value.charAt(j));
+        }
+        for (int i = 0; i < 20; i++)
+            for (CharSequence value : reader.values())
+                for (int j = 1; j < value.length(); j++)
+                    assertEquals(value.charAt(0), value.charAt(j));
+        running.set(false);
+        thread.join();
+
+        // the reader follows the writer as the map grows.
+        writer.put("key1", "value1");
+        writer.grow();
+        assertEquals("value1", reader.get("key1").toString());
+        assertEquals(100, reader.size());
+        reader.close();
+        writer.close();
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testReadOnlyNeedsAnExistingFile() throws IOException {
+        new SharedHashMapBuilder()
+                .readOnly(true)
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+    }
+
+    @Test
+    public void testFindByIndex() throws IOException {
+        File file = getPersistenceFile();
+        SharedMapFieldExtractor account = new SharedMapFieldExtractor() {
+            @Override
+            public long extract(Bytes value) {
+                // values are "account:rest"
+                String s = value.readUTFΔ();
+                return Long.parseLong(s.substring(0, s.indexOf(':')));
+            }
+        };
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .minSegments(4)
+                .entries(1000)
+                .entrySize(32)
+                .addIndex("account", account)
+                .create(file, CharSequence.class, CharSequence.class);
+        for (int i = 0; i < 100; i++)
+            map.put("key" + i, i % 10 + ":value" + i);
+        Map<CharSequence, CharSequence> found = map.findByIndex("account", 3);
+        assertEquals(10, found.size());
+        for (Map.Entry<CharSequence, CharSequence> entry : found.entrySet())
+            assertTrue(entry.getValue().toString().startsWith("3:"));
+
+        // replaced in place, moved to larger slots and removed.
+        map.put("key3", "4:value3");
+        map.put("key13", "3:" + repeat('x', 100));
+        map.remove("key23");
+        assertEquals(8, map.findByIndex("account", 3).size());
+        assertEquals(11, map.findByIndex("account", 4).size());
+        assertEquals("4:value3", map.findByIndex("account", 4).get("key3").toString());
+        assertTrue(map.findByIndex("account", 42).isEmpty());
+
+        map.grow();
+        assertEquals(8, map.findByIndex("account", 3).size());
+        map.clear();
+        assertTrue(map.findByIndex("account", 4).isEmpty());
+        map.close();
+
+        try {
+            new SharedHashMapBuilder().create(file, CharSequence.class, CharSequence.class);
+            fail();
+        } catch (IOException expected) {
+        }
+        map = new SharedHashMapBuilder()
+                .addIndex("account", account)
+                .create(file, CharSequence.class, CharSequence.class);
+        try {
+            map.findByIndex("none", 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        map.close();
+    }
+
+    @Test
+    public void testFindByIndexOfAcquiredValue() throws IOException {
+        SharedMapFieldExtractor longValue = new SharedMapFieldExtractor() {
+            @Override
+            public long extract(Bytes value) {
+                return value.readLong();
+            }
+        };
+        SharedHashMap<CharSequence, LongValue> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .entrySize(32)
+                .generatedValueType(true)
+                .addIndex("value", longValue)
+                .create(getPersistenceFile(), CharSequence.class, LongValue.class);
+        LongValue value = new LongValueNative();
+        for (int i = 0; i < 10; i++) {
+            map.acquireUsing("key" + i, value);
+            // written after the entry is added.
+            value.setValue(i % 2 + 1);
+        }
+        assertTrue(map.findByIndex("value", 0).isEmpty());
+        assertEquals(5, map.findByIndex("value", 1).size());
+        assertEquals(5, map.findByIndex("value", 2).size());
+
+        map.remove("key1");
+        map.put("key2", DataValueClasses.newInstance(LongValue.class));
+        assertEquals(4, map.findByIndex("value", 1).size());
+        assertEquals(4, map.findByIndex("value", 2).size());
+        assertEquals(1, map.findByIndex("value", 0).size());
+        map.close();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testJournalNotSupported() throws IOException {
+        SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                .create(getPersistenceFile(), CharSequence.class, CharSequence.class);
+        try {
+            map.journalReader();
+        } finally {
+            map.close();
+        }
+    }
+
+    @Test
+    public void testWarmUp() throws IOException {
+        File file = getPersistenceFile();
+        for (SharedMapWarmUp warmUp : SharedMapWarmUp.values()) {
+            SharedHashMap<CharSequence, CharSequence> map = new SharedHashMapBuilder()
+                    .minSegments(16)
+                    .entries(10 * 1000)
+                    .entrySize(32)
+                    .warmUp(warmUp)
+                    .warmUpThreads(3)
+                    .create(file, CharSequence.class, CharSequence.class);
+            map.put("key-" + warmUp, "value");
+            assertEquals(warmUp.ordinal() + 1, map.size());
+            map.grow();
+            assertEquals("value", map.get("key-" + warmUp).toString());
+            // a background warm up is stopped before the file is unmapped.
+            map.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWarmUpThreadsMustBePositive() {
+        new SharedHashMapBuilder().warmUpThreads(0);
+    }
+
+    static class StoppingValue implements Serializable {
+        private final transient CountDownLatch stopped;
+
+        StoppingValue(CountDownLatch stopped) {
+            this.stopped = stopped;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws InterruptedException {
+            stopped.countDown();
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+
+    private static String repeat(int ch, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++)
+            sb.append((char) ch);
+        return sb.toString();
+    }
+
     @Test
     public void testAcquireWithNullKey() throws Exception {
         SharedHashMap<CharSequence, LongValue> map = getSharedMap(10 * 1000, 128, 24);
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.ByteBufferBytes;
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SharedMapHashersTest {
+    @Test
+    public void testXxHash64KnownValues() {
+        assertEquals(0xEF46DB3751D8E999L, SharedMapHashers.XXHASH64.hash(bytesOf("")));
+        assertEquals(0x44BC2CF5AD770999L, SharedMapHashers.XXHASH64.hash(bytesOf("abc")));
+    }
+
+    @Test
+    public void testSequentialKeysSpreadEvenly() {
+        int segments = 64, keys = 64 * 1000;
+        int[] counts = new int[segments];
+        ByteBuffer bb = ByteBuffer.allocateDirect(8).order(ByteOrder.nativeOrder());
+        Bytes bytes = new ByteBufferBytes(bb);
+        for (long i = 0; i < keys; i++) {
+            bytes.writeLong(0, i);
+            counts[((int) SharedMapHashers.XXHASH64.hash(bytes)) & (segments - 1)]++;
+        }
+        int mean = keys / segments;
+        for (int count : counts)
+            assertTrue("count " + count + " vs mean " + mean, Math.abs(count - mean) < mean / 5);
+    }
+
+    private static Bytes bytesOf(String s) {
+        byte[] b = s.getBytes();
+        ByteBuffer bb = ByteBuffer.allocateDirect(b.length);
+        bb.put(b).flip();
+        return new ByteBufferBytes(bb);
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.openhft.collections;
+
+import net.openhft.lang.model.DataValueClasses;
+import net.openhft.lang.values.LongValue;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SharedTreeMapTest {
+    static int counter = 0;
+
+    @Test
+    public void testPutGetRemove() throws IOException {
+        SharedTreeMap<Long, String> map = new SharedTreeMapBuilder()
+                .pageSize(256)
+                .maxKeySize(8)
+                .maxValueSize(16)
+                .entries(20000)
+                .create(getPersistenceFile(), Long.class, String.class);
+        List<Long> keys = new ArrayList<Long>();
+        for (long i = -5000; i < 5000; i++)
+            keys.add(i * 7);
+        Collections.shuffle(keys, new Random(1));
+        // enough keys for several levels of pages.
+        for (Long key : keys)
+            assertNull(map.put(key, "v" + key));
+        assertEquals(10000, map.longSize());
+        for (Long key : keys)
+            assertEquals("v" + key, map.get(key));
+        assertNull(map.get(1L));
+        assertFalse(map.containsKey(1L));
+        assertEquals("v7", map.put(7L, "seven"));
+        assertEquals("seven", map.get(7L));
+
+        long last = Long.MIN_VALUE;
+        int count = 0;
+        for (Map.Entry<Long, String> entry : map.entrySet()) {
+            assertTrue(entry.getKey() > last);
+            last = entry.getKey();
+            count++;
+        }
+        assertEquals(10000, count);
+
+        Collections.shuffle(keys, new Random(2));
+        for (Long key : keys.subList(0, 9000))
+            assertEquals(key == 7 ? "seven" : "v" + key, map.remove(key));
+        assertNull(map.remove(keys.get(0)));
+        assertEquals(1000, map.size());
+        for (Long key : keys.subList(9000, 10000))
+            assertTrue(map.containsKey(key));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.firstEntry());
+        // the pages and cells freed can be used again.
+        for (Long key : keys)
+            map.put(key, "w" + key);
+        assertEquals(10000, map.size());
+        assertEquals("w0", map.get(0L));
+        map.close();
+    }
+
+    @Test
+    public void testRefillAfterRandomRemoves() throws IOException {
+        SharedTreeMap<Long, Long> map = new SharedTreeMapBuilder()
+                .pageSize(256)
+                .maxKeySize(8)
+                .maxValueSize(16)
+                .entries(10000)
+                .create(getPersistenceFile(), Long.class, Long.class);
+        Random random = new Random(1);
+        Set<Long> keys = new TreeSet<Long>();
+        long next = 0;
+        for (int round = 0; round < 20; round++) {
+            List<Long> added = new ArrayList<Long>();
+            while (keys.size() < 10000) {
+                assertNull(map.put(next, -next));
+                keys.add(next);
+                added.add(next++);
+            }
+            assertEquals(10000, map.size());
+            // most of the keys just added are removed, leaving many leaves with a key or two unless they are merged.
+            Collections.shuffle(added, random);
+            for (Long key : added.subList(0, added.size() * 9 / 10)) {
+                assertEquals(-key, (long) map.remove(key));
+                keys.remove(key);
+            }
+        }
+        assertEquals(new ArrayList<Long>(keys), new ArrayList<Long>(map.keySet()));
+        for (Long key : keys)
+            assertEquals(-key, (long) map.get(key));
+        map.close();
+    }
+
+    @Test
+    public void testNavigation() throws IOException {
+        SharedTreeMap<Long, Long> map = new SharedTreeMapBuilder()
+                .pageSize(256)
+                .maxKeySize(8)
+                .maxValueSize(16)
+                .entries(10000)
+                .create(getPersistenceFile(), Long.class, Long.class);
+        assertNull(map.firstEntry());
+        assertNull(map.ceilingEntry(0L));
+        for (long i = 0; i < 1000; i++)
+            map.put(i * 10, i);
+
+        assertEquals(0L, (long) map.firstEntry().getKey());
+        assertEquals(9990L, (long) map.lastEntry().getKey());
+        assertEquals(100L, (long) map.ceilingEntry(100L).getKey());
+        assertEquals(110L, (long) map.ceilingEntry(101L).getKey());
+        assertEquals(100L, (long) map.floorEntry(109L).getKey());
+        assertEquals(110L, (long) map.higherEntry(100L).getKey());
+        assertEquals(90L, (long) map.lowerEntry(100L).getKey());
+        assertEquals(9L, (long) map.lowerEntry(100L).getValue());
+        assertNull(map.ceilingEntry(9991L));
+        assertNull(map.lowerEntry(0L));
+        assertEquals(0L, (long) map.higherEntry(-5L).getKey());
+
+        Map<Long, Long> sub = map.subMap(100L, true, 200L, false);
+        assertEquals(10, sub.size());
+        assertEquals(Long.valueOf(10), sub.get(100L));
+        assertNull(sub.get(200L));
+        assertEquals(11, map.subMap(100L, true, 200L, true).size());
+        assertEquals(9, map.subMap(100L, false, 200L, false).size());
+        assertEquals(10, map.subMap(null, true, 95L, true).size());
+        assertEquals(4, map.subMap(9950L, false, null, true).size());
+
+        // removing in a range leaves the rest.
+        Iterator<Long> iter = map.subMap(-1000L, true, 5000L, false).keySet().iterator();
+        while (iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+        assertEquals(500, map.size());
+        assertEquals(5000L, (long) map.firstEntry().getKey());
+        assertNull(map.floorEntry(4995L));
+        map.close();
+    }
+
+    @Test
+    public void testStringKeysSortAsStrings() throws IOException {
+        SharedTreeMap<CharSequence, Integer> map = new SharedTreeMapBuilder()
+                .pageSize(512)
+                .maxKeySize(24)
+                .maxValueSize(16)
+                .entries(10000)
+                .create(getPersistenceFile(), CharSequence.class, Integer.class);
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+        Random rand = new Random(3);
+        for (int i = 0; i < 2000; i++) {
+            String key = (i % 3 == 0 ? "admin:" : "user:") + rand.nextInt(5000) + (i % 7 == 0 ? "é" : "");
+            map.put(key, i);
+            expected.put(key, i);
+        }
+        assertEquals(new ArrayList<Map.Entry<String, Integer>>(expected.entrySet()).toString(),
+                new ArrayList<Map.Entry<CharSequence, Integer>>(map.entrySet()).toString());
+        // a prefix scan, as ';' follows ':'
+        assertEquals(expected.subMap("user:", "user;").size(), map.subMap("user:", true, "user;", false).size());
+        assertEquals(expected.ceilingKey("user:2"), map.ceilingEntry("user:2").getKey());
+        map.close();
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        File file = getPersistenceFile();
+        SharedTreeMapBuilder builder = new SharedTreeMapBuilder()
+                .entries(1000)
+                .maxKeySize(8);
+        SharedTreeMap<Integer, String> map1 = builder.create(file, Integer.class, String.class);
+        SharedTreeMap<Integer, String> map2 = builder.create(file, Integer.class, String.class);
+        for (int i = -500; i < 500; i++)
+            map1.put(i, "v" + i);
+        assertEquals(1000, map2.size());
+        assertEquals("v-500", map2.firstEntry().getValue());
+        map1.close();
+        map2.close();
+
+        SharedTreeMap<Integer, String> map3 = new SharedTreeMapBuilder()
+                .create(file, Integer.class, String.class);
+        assertEquals(1000, map3.size());
+        assertEquals("v499", map3.lastEntry().getValue());
+        map3.close();
+    }
+
+    @Test
+    public void testGetUsingFlyweight() throws IOException {
+        SharedTreeMap<Long, LongValue> map = new SharedTreeMapBuilder()
+                .entries(1000)
+                .maxKeySize(8)
+                .maxValueSize(8)
+                .generatedValueType(true)
+                .create(getPersistenceFile(), Long.class, LongValue.class);
+        LongValue value = DataValueClasses.newInstance(LongValue.class);
+        value.setValue(5);
+        map.put(1L, value);
+        LongValue ref = DataValueClasses.newDirectReference(LongValue.class);
+        assertSame(ref, map.getUsing(1L, ref));
+        assertEquals(5, ref.getValue());
+        // the value stays where it is while the key is present.
+        value.setValue(6);
+        map.put(1L, value);
+        assertEquals(6, ref.getValue());
+        ref.addValue(10);
+        assertEquals(16, map.get(1L).getValue());
+        assertNull(map.getUsing(2L, ref));
+        map.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyTooLong() throws IOException {
+        SharedTreeMap<String, String> map = new SharedTreeMapBuilder()
+                .maxKeySize(8)
+                .create(getPersistenceFile(), String.class, String.class);
+        map.put("123456789", "x");
+    }
+
+    @Test
+    public void testConcurrentWritersAndReaders() throws Exception {
+        final SharedTreeMap<Long, Long> map = new SharedTreeMapBuilder()
+                .pageSize(256)
+                .maxKeySize(8)
+                .maxValueSize(16)
+                .entries(100 * 1000)
+                .create(getPersistenceFile(), Long.class, Long.class);
+        final int threads = 4, perThread = 20000;
+        ExecutorService es = Executors.newFixedThreadPool(threads * 2);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            futures.add(es.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // interleaved keys, so the threads split the same pages.
+                    for (long i = 0; i < perThread; i++)
+                        map.put(i * threads + id, i);
+                    for (long i = 0; i < perThread; i += 2)
+                        assertEquals(Long.valueOf(i), map.remove(i * threads + id));
+                }
+            }));
+            futures.add(es.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 20; n++) {
+                        long last = -1;
+                        for (Long key : map.keySet()) {
+                            assertTrue(key > last);
+                            last = key;
+                        }
+                        for (long i = 0; i < 1000; i++) {
+                            Long value = map.get(i * threads + id);
+                            assertTrue(value == null || value == i);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        es.shutdown();
+        assertEquals(threads * perThread / 2, map.size());
+        for (long i = 1; i < perThread; i += 2)
+            for (int t = 0; t < threads; t++)
+                assertEquals(Long.valueOf(i), map.get(i * threads + t));
+        map.close();
+    }
+
+    @Test
+    public void testPageLeftByDeadWriterIsCorrupt() throws IOException {
+        if (!new File("/proc/self").exists())
+            return;
+        File file = getPersistenceFile();
+        SharedTreeMap<Long, Long> map = new SharedTreeMapBuilder()
+                .pageSize(256)
+                .maxKeySize(8)
+                .maxValueSize(16)
+                .entries(10000)
+                .lockTimeOutMS(100)
+                .create(file, Long.class, Long.class);
+        for (long i = 0; i < 100; i++)
+            map.put(i, i);
+        // a pid no process has.
+        int deadPid = Integer.MAX_VALUE - 1;
+        while (new File("/proc/" + deadPid).exists())
+            deadPid--;
+        // the root left part way through a change by a writer which died holding its lock.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer mbb = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 512);
+        mbb.order(ByteOrder.nativeOrder());
+        int root = 256;
+        mbb.putLong(root + VanillaSharedTreeMap.PAGE_VERSION, mbb.getLong(root + VanillaSharedTreeMap.PAGE_VERSION) | 1);
+        mbb.putInt(root + VanillaSharedTreeMap.PAGE_LOCK_PROCESS, deadPid);
+        mbb.putInt(root + VanillaSharedTreeMap.PAGE_LOCK, (1 << 24) | 12345);
+        raf.close();
+
+        try {
+            map.get(5L);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        // every later change fails, rather than using the page.
+        try {
+            map.put(1000L, 1000L);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        map.close();
+    }
+
+    static File getPersistenceFile() {
+        String TMP = System.getProperty("java.io.tmpdir");
+        File file = new File(TMP + "/shared-tree-map-test" + counter++);
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+}
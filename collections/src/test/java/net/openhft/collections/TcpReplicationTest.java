@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.ByteBufferBytes;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TcpReplicationTest {
+    static int counter = 0;
+
+    @Test
+    public void testChangesAreReplicated() throws Exception {
+        SharedHashMap<CharSequence, CharSequence> map1 = newMap(1);
+        SharedHashMap<CharSequence, CharSequence> map2 = newMap(0);
+        // sent when the sender connects.
+        map1.put("before", "connecting");
+
+        TcpReplicationReceiver receiver = new TcpReplicationReceiver(map2, 0);
+        TcpReplicationSender sender = new TcpReplicationSender(map1, 0, new InetSocketAddress("localhost", receiver.port()));
+
+        for (int i = 0; i < 1000; i++)
+            map1.put("key:" + i, "value:" + i);
+        for (int i = 0; i < 1000; i++)
+            map1.put("key:" + i, "value2:" + i);
+        for (int i = 0; i < 1000; i += 2)
+            map1.remove("key:" + i);
+        assertEquals(501, map1.size());
+
+        waitForSize(map2, 501);
+        assertEquals("connecting", map2.get("before").toString());
+        for (int i = 0; i < 1000; i++) {
+            CharSequence value = map2.get("key:" + i);
+            if (i % 2 == 0)
+                assertNull(value);
+            else
+                assertEquals("value2:" + i, value.toString());
+        }
+
+        // a removed key added again
+        map1.put("key:0", "again");
+        waitForSize(map2, 502);
+        assertEquals("again", map2.get("key:0").toString());
+
+        map1.clear();
+        waitForSize(map2, 0);
+
+        sender.close();
+        receiver.close();
+        map1.close();
+        map2.close();
+    }
+
+    @Test
+    public void testRemovalKeptUntilAcknowledged() throws IOException {
+        VanillaSharedHashMap<CharSequence, CharSequence> map = (VanillaSharedHashMap<CharSequence, CharSequence>) newMap(1);
+        map.put("key", "value");
+        map.remove("key");
+        ByteBufferBytes out = new ByteBufferBytes(ByteBuffer.allocate(4096));
+        int[] sent = new int[100];
+        int segment = -1, count = 0;
+        for (int i = 0; i < map.segmentCount() && count == 0; i++) {
+            out.clear();
+            count = map.writeChanges(0, segment = i, out, sent);
+        }
+        assertEquals(1, count);
+        assertEquals(VanillaSharedHashMap.REPLICATED_REMOVE, out.readByte(0));
+
+        // the send failed, so the removal is sent again.
+        map.changesNotSent(0, segment, sent, count);
+        out.clear();
+        assertEquals(1, map.writeChanges(0, segment, out, sent));
+        assertEquals(VanillaSharedHashMap.REPLICATED_REMOVE, out.readByte(0));
+
+        // once acknowledged, it is freed, so there is nothing to send again.
+        map.changesAcknowledged(segment, sent, 1);
+        map.changesNotSent(0, segment, sent, 1);
+        out.clear();
+        assertEquals(0, map.writeChanges(0, segment, out, sent));
+        map.close();
+    }
+
+    @Test
+    public void testRemovalsDontFillSegmentsWithoutASender() throws IOException {
+        SharedHashMap<CharSequence, CharSequence> map = newMap(1);
+        // many times the capacity of a segment.
+        for (int i = 0; i < 100 * 1000; i++) {
+            map.put("key:" + i, "value:" + i);
+            map.remove("key:" + i);
+        }
+        assertTrue(map.isEmpty());
+        map.close();
+    }
+
+    private static void waitForSize(SharedHashMap<?, ?> map, int size) throws InterruptedException {
+        for (int i = 0; i < 500 && map.size() != size; i++)
+            Thread.sleep(10);
+        assertEquals(size, map.size());
+    }
+
+    private static SharedHashMap<CharSequence, CharSequence> newMap(int replicas) throws IOException {
+        String TMP = System.getProperty("java.io.tmpdir");
+        File file = new File(TMP + "/shm-replication-test" + counter++);
+        file.delete();
+        file.deleteOnExit();
+        return new SharedHashMapBuilder()
+                .entries(10 * 1000)
+                .minSegments(8)
+                .entrySize(32)
+                .replicas(replicas)
+                .create(file, CharSequence.class, CharSequence.class);
+    }
+}